@@ -0,0 +1,148 @@
+package org.micromanager.data.internal.io.asynctiff;
+
+import org.micromanager.data.internal.io.Alignment;
+import org.micromanager.data.internal.io.BufferedPositionGroup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of parsing and serializing an IFD held in memory.
+ *
+ * The IFD has {@code entryCount} LONG entries of {@code valueSize} bytes
+ * each; values of 4 bytes fit in the entry, so that there are no offset
+ * fields to update.
+ *
+ * Offset fields can only be written once, so {@code writeIFD} writes
+ * freshly built IFDs, {@value #WRITE_BATCH} per invocation. They are built
+ * outside the measured region, but their allocation is included in the GC
+ * profiler's figures for {@code writeIFD} (only).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TiffIFDBenchmark {
+   private static final int FIRST_TAG = 50000;
+   private static final int WRITE_BATCH = 64;
+
+   @Param({ "8", "32", "128" })
+   public int entryCount;
+
+   @Param({ "4", "64", "1024" })
+   public int valueSize;
+
+   @Param({ "LITTLE_ENDIAN", "BIG_ENDIAN" })
+   public String byteOrder;
+
+   private ByteOrder order_;
+   private TiffIFD ifd_;
+   private TiffOffsetFieldGroup fieldGroup_;
+   private ByteBuffer serialized_; // The IFD followed by its values
+   private ByteBuffer dest_;
+
+   @Setup
+   public void setup() {
+      order_ = "BIG_ENDIAN".equals(byteOrder) ?
+         ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+      fieldGroup_ = TiffOffsetFieldGroup.create();
+      ifd_ = createIFD(fieldGroup_);
+
+      int size = Alignment.align(TiffFormat.CLASSIC.getIFDSize(entryCount), 4);
+      if (valueSize > 4) {
+         size += entryCount * valueSize;
+      }
+      dest_ = ByteBuffer.allocate(size).order(order_);
+      dest_.position(TiffFormat.CLASSIC.getIFDSize(entryCount));
+      BufferedPositionGroup posGroup = BufferedPositionGroup.forBufferAt(0);
+      for (TiffIFDEntry entry : ifd_.getEntries()) {
+         entry.writeValue(dest_, posGroup);
+      }
+      dest_.position(0);
+      ifd_.write(dest_, posGroup);
+      fieldGroup_.updateAll(dest_);
+      serialized_ = ByteBuffer.allocate(size).order(order_);
+      serialized_.put(dest_.array());
+      serialized_.rewind();
+   }
+
+   /**
+    * A batch of IFDs not yet written, used only by {@code writeIFD}.
+    */
+   @State(Scope.Thread)
+   public static class UnwrittenIFDs {
+      private final TiffIFD[] ifds_ = new TiffIFD[WRITE_BATCH];
+
+      @Setup(Level.Invocation)
+      public void create(TiffIFDBenchmark bench) {
+         for (int i = 0; i < ifds_.length; ++i) {
+            ifds_[i] = bench.createIFD(TiffOffsetFieldGroup.create());
+         }
+      }
+   }
+
+   private TiffIFD createIFD(TiffOffsetFieldGroup fieldGroup) {
+      int[] values = new int[valueSize / 4];
+      for (int i = 0; i < values.length; ++i) {
+         values[i] = i;
+      }
+      List<TiffIFDEntry> entries = new ArrayList<>();
+      for (int i = 0; i < entryCount; ++i) {
+         entries.add(TiffIFDEntry.createForWrite(order_,
+            TiffTag.fromTiffConstant(FIRST_TAG + i),
+            TiffValue.Longs.create(values), fieldGroup));
+      }
+      return TiffIFD.createForWrite(order_, entries,
+         TiffOffsetField.create("NextIFDOffset"));
+   }
+
+   @Benchmark
+   public TiffIFD readIFD() throws IOException {
+      return TiffIFD.read(serialized_.duplicate().order(order_));
+   }
+
+   @Benchmark
+   public void readEntries(Blackhole bh) throws IOException {
+      ByteBuffer b = serialized_.duplicate().order(order_);
+      b.position(TiffFormat.CLASSIC.getEntryCountSize());
+      for (int i = 0; i < entryCount; ++i) {
+         bh.consume(TiffIFDEntry.read(b));
+      }
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(WRITE_BATCH)
+   public void writeIFD(UnwrittenIFDs unwritten, Blackhole bh) {
+      for (TiffIFD ifd : unwritten.ifds_) {
+         dest_.clear();
+         bh.consume(ifd.write(dest_, BufferedPositionGroup.forBufferAt(0)));
+      }
+   }
+
+   // Offset positions and values remain those set in setup()
+   @Benchmark
+   public ByteBuffer updateOffsets() {
+      fieldGroup_.updateAll(dest_);
+      return dest_;
+   }
+}
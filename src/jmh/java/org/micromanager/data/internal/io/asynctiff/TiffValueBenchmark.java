@@ -0,0 +1,58 @@
+package org.micromanager.data.internal.io.asynctiff;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of decoding values of every field type.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TiffValueBenchmark {
+   @Param
+   public TiffFieldType type;
+
+   @Param({ "1", "16", "1024" })
+   public int count;
+
+   @Param({ "LITTLE_ENDIAN", "BIG_ENDIAN" })
+   public String byteOrder;
+
+   private ByteOrder order_;
+   private ByteBuffer data_;
+
+   @Setup
+   public void setup() {
+      order_ = "BIG_ENDIAN".equals(byteOrder) ?
+         ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+      byte[] bytes = new byte[count * type.getElementSize()];
+      new Random(0).nextBytes(bytes);
+      if (bytes.length > 0) {
+         bytes[bytes.length - 1] = 0; // Null-terminate ASCII
+      }
+      data_ = ByteBuffer.wrap(bytes);
+   }
+
+   @Benchmark
+   public TiffValue read() {
+      return type.read(count, data_.duplicate().order(order_));
+   }
+}
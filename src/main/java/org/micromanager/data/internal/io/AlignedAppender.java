@@ -0,0 +1,295 @@
+package org.micromanager.data.internal.io;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sequential writer that turns appends of arbitrary size into block-aligned,
+ * block-sized writes, as required by direct I/O.
+ *
+ * Appended data is copied into a small set of aligned staging chunks, each
+ * of which is written, at a block-aligned file offset, once full. When no
+ * chunk is free, {@link #append} blocks until a write completes, whereas
+ * {@link #tryAppend} copies as much as it can and returns, so that the
+ * caller can resume once {@link #whenChunkFree} completes. On
+ * {@link #finish}, the last chunk is written padded with zeros to the next
+ * block boundary; the caller must then truncate the file to {@link #getEnd}
+ * (which requires a channel not opened for direct I/O on some systems).
+ *
+ * Appends must be made by one thread at a time, at nondecreasing offsets;
+ * any gap is filled with zeros.
+ */
+public final class AlignedAppender {
+   private final AsynchronousFileChannel chan_;
+   private final int blockSize_;
+   private final BlockingQueue<ByteBuffer> freeChunks_;
+   private final Preallocator preallocator_; // may be null
+
+   private ByteBuffer current_; // null if no chunk was free
+   private long currentStart_; // file offset of current_ index 0
+   private CompletableFuture<Void> currentWritten_ = new CompletableFuture<>();
+   // Completed, and replaced, whenever a chunk is returned to freeChunks_
+   private final AtomicReference<CompletableFuture<Void>> chunkFreed_ =
+      new AtomicReference<>(new CompletableFuture<>());
+
+   // Outstanding chunk writes, plus one until finish() is called
+   private final AtomicInteger pending_ = new AtomicInteger(1);
+   private final AtomicReference<Throwable> error_ = new AtomicReference<>();
+   private final CompletableFuture<Void> drained_ = new CompletableFuture<>();
+   private boolean finished_;
+
+   /**
+    * Create an appender.
+    *
+    * @param chan the asynchronous file channel
+    * @param start the file offset of the first append, which must be
+    * block-aligned
+    * @param blockSize the block size, a power of 2
+    * @param chunkSize the size of each staging chunk, a multiple of the
+    * block size
+    * @param chunkCount the number of staging chunks; at least 2 allows
+    * copying to overlap writing
+    * @return the appender
+    */
+   public static AlignedAppender create(AsynchronousFileChannel chan, long start,
+                                        int blockSize, int chunkSize,
+                                        int chunkCount) {
+      return create(chan, start, blockSize, chunkSize, chunkCount, null);
+   }
+
+   /**
+    * Create an appender whose writes wait for space to be preallocated.
+    *
+    * @param chan the asynchronous file channel
+    * @param start the file offset of the first append, which must be
+    * block-aligned
+    * @param blockSize the block size, a power of 2
+    * @param chunkSize the size of each staging chunk, a multiple of the
+    * block size
+    * @param chunkCount the number of staging chunks
+    * @param preallocator the preallocator for the file, or null
+    * @return the appender
+    */
+   public static AlignedAppender create(AsynchronousFileChannel chan, long start,
+                                        int blockSize, int chunkSize,
+                                        int chunkCount,
+                                        Preallocator preallocator) {
+      Preconditions.checkArgument(blockSize > 0 && Integer.bitCount(blockSize) == 1,
+         "Block size must be a power of 2");
+      Preconditions.checkArgument(start % blockSize == 0,
+         "Start must be block-aligned");
+      Preconditions.checkArgument(chunkSize > 0 && chunkSize % blockSize == 0,
+         "Chunk size must be a multiple of block size");
+      Preconditions.checkArgument(chunkCount > 0, "Need at least one chunk");
+      return new AlignedAppender(chan, start, blockSize, chunkSize, chunkCount,
+         preallocator);
+   }
+
+   private AlignedAppender(AsynchronousFileChannel chan, long start,
+                           int blockSize, int chunkSize, int chunkCount,
+                           Preallocator preallocator) {
+      chan_ = chan;
+      preallocator_ = preallocator;
+      blockSize_ = blockSize;
+      freeChunks_ = new ArrayBlockingQueue<>(chunkCount);
+      for (int i = 0; i < chunkCount; ++i) {
+         freeChunks_.add(DirectIO.allocateAligned(chunkSize, blockSize));
+      }
+      current_ = freeChunks_.poll();
+      currentStart_ = start;
+   }
+
+   /**
+    * Get the end of the data appended so far.
+    */
+   public long getEnd() {
+      return currentStart_ + (current_ == null ? 0 : current_.position());
+   }
+
+   /**
+    * Append data, blocking while no staging chunk is free.
+    *
+    * @param src the data, from its position to its limit; it has been
+    * copied (and its position advanced to its limit) when this method
+    * returns
+    * @param offset the file offset of the data, at or after
+    * {@link #getEnd}
+    * @return a completion stage that completes when the data has been
+    * written (which, for the last chunk, is after {@link #finish})
+    */
+   public CompletionStage<Void> append(ByteBuffer src, long offset) {
+      int start = src.position();
+      for (;;) {
+         CompletableFuture<Void> freed = whenChunkFree().toCompletableFuture();
+         CompletionStage<Void> written =
+            tryAppend(src, offset + (src.position() - start));
+         if (written != null) {
+            return written;
+         }
+         freed.join();
+      }
+   }
+
+   /**
+    * Append data without blocking, copying only as much as fits in the free
+    * staging chunks.
+    *
+    * If not all of the data could be copied, the rest should be appended,
+    * with another call, once {@link #whenChunkFree} completes; nothing else
+    * may be appended in between.
+    *
+    * @param src the data, from its position to its limit; its position is
+    * advanced past the data copied
+    * @param offset the file offset of the data at the position of
+    * {@code src}, at or after {@link #getEnd}
+    * @return a completion stage that completes when the data has been
+    * written (which, for the last chunk, is after {@link #finish}), or null
+    * if {@code src} still has data remaining
+    */
+   public CompletionStage<Void> tryAppend(ByteBuffer src, long offset) {
+      Preconditions.checkState(!finished_, "Appender already finished");
+      Preconditions.checkArgument(offset >= getEnd(),
+         "Append must not overlap previous data");
+      Throwable error = error_.get();
+      if (error != null) {
+         return Async.completedExceptionally(error);
+      }
+      for (long gap = offset - getEnd(); gap > 0; ) {
+         if (!takeChunkIfNone()) {
+            return null;
+         }
+         int n = (int) Math.min(gap, current_.remaining());
+         for (int i = 0; i < n; ++i) {
+            current_.put((byte) 0);
+         }
+         gap -= n;
+         writeCurrentIfFull();
+      }
+      while (src.hasRemaining()) {
+         if (!takeChunkIfNone()) {
+            return null;
+         }
+         int n = Math.min(src.remaining(), current_.remaining());
+         ByteBuffer part = src.duplicate();
+         part.limit(part.position() + n);
+         current_.put(part);
+         src.position(src.position() + n);
+         if (!src.hasRemaining()) {
+            // Report completion with the chunk holding the last byte
+            CompletableFuture<Void> written = currentWritten_;
+            writeCurrentIfFull();
+            return written;
+         }
+         writeCurrentIfFull();
+      }
+      return currentWritten_;
+   }
+
+   /**
+    * Get a completion stage that completes when a staging chunk is free,
+    * which it already is if one is free now.
+    *
+    * The stage may be completed on the thread completing a chunk write.
+    */
+   public CompletionStage<Void> whenChunkFree() {
+      // Get the signal before checking, so as not to miss a chunk freed in
+      // between
+      CompletableFuture<Void> freed = chunkFreed_.get();
+      if (current_ != null || !freeChunks_.isEmpty()) {
+         return CompletableFuture.completedFuture(null);
+      }
+      return freed;
+   }
+
+   private boolean takeChunkIfNone() {
+      if (current_ == null) {
+         current_ = freeChunks_.poll();
+         if (current_ == null) {
+            return false;
+         }
+         current_.clear();
+      }
+      return true;
+   }
+
+   private void writeCurrentIfFull() {
+      if (!current_.hasRemaining()) {
+         writeCurrent(current_.capacity());
+         current_ = null;
+         takeChunkIfNone();
+      }
+   }
+
+   private void writeCurrent(int length) {
+      ByteBuffer chunk = current_;
+      CompletableFuture<Void> written = currentWritten_;
+      long start = currentStart_;
+      chunk.position(0);
+      chunk.limit(length);
+      pending_.incrementAndGet();
+      CompletionStage<Void> ready = preallocator_ == null ?
+         CompletableFuture.completedFuture(null) :
+         preallocator_.ready(start + length);
+      ready.thenCompose(v -> Async.write(chan_, chunk, start, IOKind.RECORD)).
+         whenComplete((v, e) -> {
+            freeChunks_.add(chunk);
+            chunkFreed_.getAndSet(new CompletableFuture<>()).complete(null);
+            if (e != null) {
+               error_.compareAndSet(null, e);
+               written.completeExceptionally(e);
+            }
+            else {
+               written.complete(null);
+            }
+            if (pending_.decrementAndGet() == 0) {
+               drained_.complete(null);
+            }
+         });
+      currentStart_ += length;
+      currentWritten_ = new CompletableFuture<>();
+   }
+
+   /**
+    * Write the remaining data, padded to a whole block, and wait for all
+    * writes to complete.
+    *
+    * @return a completion stage bearing the end of the appended data (to
+    * which the file should be truncated), or completing exceptionally if
+    * any write failed
+    */
+   public CompletionStage<Long> finish() {
+      Preconditions.checkState(!finished_, "Appender already finished");
+      finished_ = true;
+      long end = getEnd();
+      int length = current_ == null ? 0 :
+         Alignment.align(current_.position(), blockSize_);
+      if (length > 0) {
+         while (current_.position() < length) {
+            current_.put((byte) 0);
+         }
+         writeCurrent(length);
+      }
+      else {
+         // Complete the stage returned for any empty append
+         currentWritten_.complete(null);
+      }
+      if (pending_.decrementAndGet() == 0) {
+         drained_.complete(null);
+      }
+      return drained_.thenCompose(v -> {
+         Throwable error = error_.get();
+         if (error != null) {
+            return Async.completedExceptionally(error);
+         }
+         return CompletableFuture.completedFuture(end);
+      });
+   }
+}
@@ -0,0 +1,69 @@
+package org.micromanager.data.internal.io;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.channels.AsynchronousFileChannel;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocator of file regions for appending writes.
+ *
+ * The end of the file is tracked in memory rather than obtained from the
+ * channel, and regions are reserved atomically, so that any number of writes
+ * to distinct regions can be in flight at once. Alignment padding is part of
+ * the reservation and is never written: the gap reads as zeros once data
+ * beyond it has been written.
+ */
+public final class AppendCursor {
+   private final AtomicLong end_;
+
+   public static AppendCursor at(long end) {
+      Preconditions.checkArgument(end >= 0, "Negative file offset");
+      return new AppendCursor(end);
+   }
+
+   /**
+    * Create a cursor at the current end of a file.
+    *
+    * @param chan the asynchronous file channel
+    * @return a completion stage bearing the cursor
+    */
+   public static CompletionStage<AppendCursor> forChannel(AsynchronousFileChannel chan) {
+      return Async.size(chan).thenApply(AppendCursor::at);
+   }
+
+   private AppendCursor(long end) {
+      end_ = new AtomicLong(end);
+   }
+
+   public long reserve(long size) {
+      return reserve(size, 1);
+   }
+
+   /**
+    * Reserve a region.
+    *
+    * @param size the size of the region
+    * @param alignment alignment of the start of the region; must be a power
+    * of 2
+    * @return the file offset of the region
+    */
+   public long reserve(long size, int alignment) {
+      Preconditions.checkArgument(size >= 0, "Negative region size");
+      for (;;) {
+         long end = end_.get();
+         long start = Alignment.align(end, alignment);
+         if (end_.compareAndSet(end, start + size)) {
+            return start;
+         }
+      }
+   }
+
+   /**
+    * Get the end of the last reserved region.
+    */
+   public long getEnd() {
+      return end_.get();
+   }
+}
@@ -5,8 +5,15 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.CompletionHandler;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Async {
    private Async() {}
@@ -27,12 +34,35 @@ public class Async {
    public static CompletionStage<ByteBuffer> read(AsynchronousFileChannel chan,
                                                   ByteBuffer buffer,
                                                   long offset) {
+      return read(chan, buffer, offset, IOKind.OTHER);
+   }
+
+   /**
+    * Read from an asynchronous file channel into a byte buffer, recording
+    * the read in {@link IOMetrics} under the given kind (and as a
+    * {@link FlightRecorderEvents#FILE_IO} event while recording).
+    *
+    * @param chan the asynchronous file channel
+    * @param buffer the destination buffer
+    * @param offset absolute file offset from which to read
+    * @param kind what is being read
+    * @return a completion stage for the pending read, bearing {@code buffer}
+    * @see #read(AsynchronousFileChannel, ByteBuffer, long)
+    */
+   public static CompletionStage<ByteBuffer> read(AsynchronousFileChannel chan,
+                                                  ByteBuffer buffer,
+                                                  long offset,
+                                                  IOKind kind) {
       int bytesToRead = buffer.remaining();
+      long start = IOMetrics.start();
+      FlightRecorderEvents.Event event = FlightRecorderEvents.FILE_IO.begin();
       CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
       chan.read(buffer, offset, future,
          new CompletionHandler<Integer, CompletableFuture<ByteBuffer>>() {
             @Override
             public void completed(Integer result, CompletableFuture<ByteBuffer> f) {
+               recordCompletion(IOMetrics.Op.READ, kind, offset,
+                  Math.max(result, 0), result != bytesToRead, start, event);
                if (result == bytesToRead) {
                   f.complete(buffer);
                }
@@ -43,12 +73,72 @@ public class Async {
 
             @Override
             public void failed(Throwable t, CompletableFuture<ByteBuffer> f) {
+               recordCompletion(IOMetrics.Op.READ, kind, offset, 0, true,
+                  start, event);
                f.completeExceptionally(t);
             }
          });
       return future;
    }
 
+   /**
+    * Read from an asynchronous file channel into a byte buffer, stopping
+    * early only at end of file.
+    *
+    * Unlike {@link #read}, reaching the end of file is not an error. The
+    * buffer's position indicates how many bytes were read.
+    *
+    * @param chan the asynchronous file channel
+    * @param buffer the destination buffer
+    * @param offset absolute file offset from which to read
+    * @return a completion stage for the pending read, bearing {@code buffer}
+    */
+   public static CompletionStage<ByteBuffer> readAtMost(AsynchronousFileChannel chan,
+                                                        ByteBuffer buffer,
+                                                        long offset) {
+      return readAtMost(chan, buffer, offset, IOKind.OTHER);
+   }
+
+   public static CompletionStage<ByteBuffer> readAtMost(AsynchronousFileChannel chan,
+                                                        ByteBuffer buffer,
+                                                        long offset,
+                                                        IOKind kind) {
+      CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+      long start = IOMetrics.start();
+      FlightRecorderEvents.Event event = FlightRecorderEvents.FILE_IO.begin();
+      int position = buffer.position();
+      readAtMost(chan, buffer, offset, future);
+      if (IOMetrics.isEnabled() || event != null) {
+         future.whenComplete((b, e) -> recordCompletion(IOMetrics.Op.READ,
+            kind, offset, buffer.position() - position, e != null, start,
+            event));
+      }
+      return future;
+   }
+
+   private static void readAtMost(AsynchronousFileChannel chan,
+                                  ByteBuffer buffer,
+                                  long offset,
+                                  CompletableFuture<ByteBuffer> future) {
+      chan.read(buffer, offset, future,
+         new CompletionHandler<Integer, CompletableFuture<ByteBuffer>>() {
+            @Override
+            public void completed(Integer result, CompletableFuture<ByteBuffer> f) {
+               if (result < 0 || !buffer.hasRemaining()) {
+                  f.complete(buffer);
+               }
+               else {
+                  readAtMost(chan, buffer, offset + result, f);
+               }
+            }
+
+            @Override
+            public void failed(Throwable t, CompletableFuture<ByteBuffer> f) {
+               f.completeExceptionally(t);
+            }
+         });
+   }
+
    /**
     * Write from a byte buffer to an asynchronous file channel.
     *
@@ -60,12 +150,42 @@ public class Async {
    public static CompletionStage<Void> write(AsynchronousFileChannel chan,
                                                 ByteBuffer buffer,
                                                 long offset) {
+      return write(chan, buffer, offset, IOKind.OTHER);
+   }
+
+   /**
+    * Write from a byte buffer to an asynchronous file channel, recording the
+    * write in {@link IOMetrics} under the given kind (and as a
+    * {@link FlightRecorderEvents#FILE_IO} event while recording).
+    *
+    * @param chan the asynchronous file channel
+    * @param buffer the source buffer
+    * @param offset absolute file offset at which to write
+    * @param kind what is being written
+    * @return a completion stage for the pending write
+    */
+   public static CompletionStage<Void> write(AsynchronousFileChannel chan,
+                                             ByteBuffer buffer,
+                                             long offset,
+                                             IOKind kind) {
+      return write(chan, buffer, offset, IOMetrics.Op.WRITE, kind);
+   }
+
+   private static CompletionStage<Void> write(AsynchronousFileChannel chan,
+                                              ByteBuffer buffer,
+                                              long offset,
+                                              IOMetrics.Op op,
+                                              IOKind kind) {
       int bytesToWrite = buffer.remaining();
+      long start = IOMetrics.start();
+      FlightRecorderEvents.Event event = FlightRecorderEvents.FILE_IO.begin();
       CompletableFuture<Void> future = new CompletableFuture<>();
       chan.write(buffer, offset, future,
          new CompletionHandler<Integer, CompletableFuture<Void>>() {
             @Override
             public void completed(Integer result, CompletableFuture<Void> f) {
+               recordCompletion(op, kind, offset, result,
+                  result != bytesToWrite, start, event);
                if (result != bytesToWrite) {
                   f.completeExceptionally(new AssertionError(
                      "AsynchronousFileChannel write completed without exception but did not write expected number of bytes"));
@@ -75,22 +195,39 @@ public class Async {
 
             @Override
             public void failed(Throwable t, CompletableFuture<Void> f) {
+               recordCompletion(op, kind, offset, 0, true, start, event);
                f.completeExceptionally(t);
             }
          });
       return future;
    }
 
+   // Record a completed operation in the metrics and, if one was begun, as
+   // a flight recorder event
+   private static void recordCompletion(IOMetrics.Op op, IOKind kind,
+                                        long offset, long bytes,
+                                        boolean failed, long start,
+                                        FlightRecorderEvents.Event event) {
+      IOMetrics.record(op, kind, bytes, failed, start);
+      if (event != null) {
+         event.commit(op.name(), kind.name(), offset, bytes, failed);
+      }
+   }
+
    /**
     * Determine the current file size.
     * @param chan the asynchronous file channel
     * @return a completion stage bearing the file size
     */
    public static CompletionStage<Long> size(AsynchronousFileChannel chan) {
+      long start = IOMetrics.start();
       try {
-         return CompletableFuture.completedFuture(chan.size());
+         long size = chan.size();
+         IOMetrics.record(IOMetrics.Op.SIZE, IOKind.OTHER, 0, false, start);
+         return CompletableFuture.completedFuture(size);
       }
       catch (IOException e) {
+         IOMetrics.record(IOMetrics.Op.SIZE, IOKind.OTHER, 0, true, start);
          return completedExceptionally(e);
       }
    }
@@ -104,9 +241,64 @@ public class Async {
     */
    public static CompletionStage<Void> pad(AsynchronousFileChannel chan,
                                            int alignment) {
+      return pad(chan, alignment, BufferPool.getDefault());
+   }
+
+   public static CompletionStage<Void> pad(AsynchronousFileChannel chan,
+                                           int alignment,
+                                           BufferPool pool) {
       return size(chan).thenCompose(start -> {
          long bytes = Alignment.align(start, alignment) - start;
-         return write(chan, ByteBuffer.allocate((int) bytes), start);
+         if (bytes == 0) {
+            return CompletableFuture.completedFuture(null);
+         }
+         ByteBuffer zeros = pool.acquire((int) bytes);
+         while (zeros.hasRemaining()) {
+            zeros.put((byte) 0);
+         }
+         zeros.flip();
+         return write(chan, zeros, start, IOMetrics.Op.PAD, IOKind.OTHER).
+            whenComplete((v, e) -> pool.release(zeros));
+      });
+   }
+
+   /**
+    * Open an asynchronous file channel whose I/O completions are handled by
+    * the given thread pool.
+    *
+    * Without this, completion handlers (and any non-async continuations of
+    * the returned completion stages) run on the JVM-wide default channel
+    * group.
+    *
+    * @param file the file to open
+    * @param ioPool the thread pool, which the caller must shut down after
+    * the channel is closed
+    * @param options the open options
+    * @return the channel
+    * @throws IOException if the file could not be opened
+    */
+   public static AsynchronousFileChannel open(Path file,
+                                              ExecutorService ioPool,
+                                              OpenOption... options)
+      throws IOException {
+      return AsynchronousFileChannel.open(file,
+         new HashSet<>(Arrays.asList(options)), ioPool);
+   }
+
+   /**
+    * Create a fixed-size pool of daemon threads, suitable for
+    * {@link #open} or as a parsing executor.
+    *
+    * @param name prefix for the thread names
+    * @param threadCount the number of threads
+    * @return the thread pool
+    */
+   public static ExecutorService newThreadPool(String name, int threadCount) {
+      AtomicInteger serial = new AtomicInteger();
+      return Executors.newFixedThreadPool(threadCount, r -> {
+         Thread t = new Thread(r, name + "-" + serial.incrementAndGet());
+         t.setDaemon(true);
+         return t;
       });
    }
 
@@ -0,0 +1,45 @@
+package org.micromanager.data.internal.io;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Source of direct byte buffers for I/O.
+ *
+ * Buffers obtained from {@link #acquire} are big-endian, with their position
+ * at zero and their limit at the requested size; their capacity may be
+ * larger, and their content is undefined. A buffer may be handed back with
+ * {@link #release} once no I/O on it is pending and no references to it (or
+ * to views of it) remain in use. Releasing is optional: a buffer that is
+ * never released is simply garbage collected. A buffer must not be released
+ * more than once, and only buffers acquired from the same pool may be
+ * released to it, except that releasing a read-only buffer has no effect.
+ */
+public interface BufferPool {
+   ByteBuffer acquire(int size);
+
+   void release(ByteBuffer buffer);
+
+   /**
+    * A pool that allocates a new buffer on every call and never reuses them.
+    */
+   static BufferPool unpooled() {
+      return BufferPools.UNPOOLED;
+   }
+
+   /**
+    * Get the pool used by default for TIFF reading and writing.
+    *
+    * Unless replaced with {@link #setDefault}, this is a
+    * {@link SizeClassedBufferPool} with default settings.
+    */
+   static BufferPool getDefault() {
+      return BufferPools.default_;
+   }
+
+   static void setDefault(BufferPool pool) {
+      Preconditions.checkNotNull(pool);
+      BufferPools.default_ = pool;
+   }
+}
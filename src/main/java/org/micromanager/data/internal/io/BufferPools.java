@@ -0,0 +1,23 @@
+package org.micromanager.data.internal.io;
+
+import java.nio.ByteBuffer;
+
+// Holder of the static pools behind BufferPool's static methods; fields of
+// an interface would be public and final
+final class BufferPools {
+   static final BufferPool UNPOOLED = new BufferPool() {
+      @Override
+      public ByteBuffer acquire(int size) {
+         return ByteBuffer.allocateDirect(size);
+      }
+
+      @Override
+      public void release(ByteBuffer buffer) {
+      }
+   };
+
+   static volatile BufferPool default_ =
+      SizeClassedBufferPool.builder().build();
+
+   private BufferPools() {}
+}
@@ -0,0 +1,59 @@
+package org.micromanager.data.internal.io;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Implementations of {@link AsynchronousFileChannel} that can be used for
+ * TIFF I/O.
+ */
+public enum ChannelBackend {
+   /**
+    * The JDK's {@code AsynchronousFileChannel}.
+    */
+   ASYNCHRONOUS {
+      @Override
+      public AsynchronousFileChannel open(Path file, OpenOption... options)
+         throws IOException {
+         return AsynchronousFileChannel.open(file,
+            new HashSet<>(Arrays.asList(options)), null);
+      }
+   },
+
+   /**
+    * Blocking positional I/O on a {@code FileChannel}; see
+    * {@link PositionalFileChannel}.
+    */
+   POSITIONAL {
+      @Override
+      public AsynchronousFileChannel open(Path file, OpenOption... options)
+         throws IOException {
+         return PositionalFileChannel.open(file, options);
+      }
+   },
+
+   /**
+    * Read-only memory mapping; see {@link MappedFileChannel}.
+    */
+   MAPPED {
+      @Override
+      public AsynchronousFileChannel open(Path file, OpenOption... options)
+         throws IOException {
+         for (OpenOption option : options) {
+            Preconditions.checkArgument(option == StandardOpenOption.READ,
+               "Memory-mapped channels are read-only");
+         }
+         return MappedFileChannel.open(file);
+      }
+   };
+
+   public abstract AsynchronousFileChannel open(Path file, OpenOption... options)
+      throws IOException;
+}
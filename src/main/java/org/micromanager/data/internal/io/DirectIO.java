@@ -0,0 +1,117 @@
+package org.micromanager.data.internal.io;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+
+/**
+ * Access to direct (unbuffered) file I/O, which bypasses the page cache.
+ *
+ * Direct I/O is available when the JVM provides
+ * {@code com.sun.nio.file.ExtendedOpenOption.DIRECT} and
+ * {@code ByteBuffer.alignedSlice} (JDK 10 or later); these are looked up by
+ * reflection so that this library still runs on Java 8. Whether a given file
+ * system accepts direct I/O is only known when opening a file.
+ *
+ * With direct I/O, the file offset and length of every read or write, and
+ * the memory address of the buffer, must be multiples of the file system's
+ * block size; see {@link AlignedAppender}.
+ */
+public final class DirectIO {
+   private static final int DEFAULT_BLOCK_SIZE = 4096;
+
+   private static final OpenOption DIRECT_OPTION;
+   private static final Method ALIGNED_SLICE;
+   private static final Method GET_BLOCK_SIZE;
+
+   static {
+      OpenOption direct = null;
+      Method alignedSlice = null;
+      Method getBlockSize = null;
+      try {
+         Class<?> c = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+         direct = (OpenOption) c.getField("DIRECT").get(null);
+         alignedSlice = ByteBuffer.class.getMethod("alignedSlice", int.class);
+         getBlockSize = FileStore.class.getMethod("getBlockSize");
+      }
+      catch (ReflectiveOperationException | ClassCastException unsupported) {
+         direct = null;
+      }
+      DIRECT_OPTION = direct;
+      ALIGNED_SLICE = alignedSlice;
+      GET_BLOCK_SIZE = getBlockSize;
+   }
+
+   private DirectIO() {}
+
+   public static boolean isSupported() {
+      return DIRECT_OPTION != null;
+   }
+
+   /**
+    * Get the open option requesting direct I/O.
+    *
+    * @throws UnsupportedOperationException if direct I/O is not supported
+    */
+   public static OpenOption directOption() {
+      if (!isSupported()) {
+         throw new UnsupportedOperationException("Direct I/O not supported");
+      }
+      return DIRECT_OPTION;
+   }
+
+   /**
+    * Get the block size to which direct I/O must be aligned.
+    *
+    * @param file an existing file or directory on the file system
+    * @return the block size, or 4096 if it cannot be determined
+    */
+   public static int blockSize(Path file) throws IOException {
+      if (GET_BLOCK_SIZE == null) {
+         return DEFAULT_BLOCK_SIZE;
+      }
+      try {
+         long size = (Long) GET_BLOCK_SIZE.invoke(Files.getFileStore(file));
+         if (size > 0 && size <= (1 << 20) && Long.bitCount(size) == 1) {
+            return (int) size;
+         }
+      }
+      catch (ReflectiveOperationException e) {
+         // Fall through
+      }
+      return DEFAULT_BLOCK_SIZE;
+   }
+
+   /**
+    * Allocate a direct buffer whose memory address is aligned.
+    *
+    * @param capacity the capacity
+    * @param alignment the alignment, a power of 2
+    * @return the big-endian buffer, or a plain direct buffer if aligned
+    * allocation is not supported
+    */
+   public static ByteBuffer allocateAligned(int capacity, int alignment) {
+      Preconditions.checkArgument(alignment > 0 && Integer.bitCount(alignment) == 1,
+         "Alignment must be a power of 2");
+      if (ALIGNED_SLICE == null) {
+         return ByteBuffer.allocateDirect(capacity);
+      }
+      // alignedSlice() also rounds the end down to the alignment
+      ByteBuffer raw = ByteBuffer.allocateDirect(
+         Alignment.align(capacity, alignment) + alignment);
+      try {
+         ByteBuffer aligned = (ByteBuffer) ALIGNED_SLICE.invoke(raw, alignment);
+         aligned.limit(capacity);
+         return aligned.slice();
+      }
+      catch (ReflectiveOperationException e) {
+         return ByteBuffer.allocateDirect(capacity);
+      }
+   }
+}
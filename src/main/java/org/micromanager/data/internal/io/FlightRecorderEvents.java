@@ -0,0 +1,355 @@
+package org.micromanager.data.internal.io;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.function.ToLongFunction;
+
+/**
+ * Custom Java Flight Recorder events, so that this library's I/O can be
+ * correlated with GC and CPU activity in a recording.
+ *
+ * Three event types are emitted, in the "Micro-Manager" category:
+ * {@link #FILE_IO} for every read and write issued through {@link Async},
+ * with the operation, {@link IOKind}, file offset and byte count, and a
+ * duration from issue to completion; {@link #OPERATION} for higher-level
+ * reads such as {@code TiffIFD.read} and {@code readPixels}, spanning all
+ * of their I/O and decoding; and {@link #FRAME_WRITE} for each frame written
+ * by {@code TiffStackWriter}, with its duration broken down into waiting for
+ * budget, waiting in the queue and writing.
+ *
+ * JFR is accessed by reflection ({@code jdk.jfr.EventFactory}) so that this
+ * library still runs on Java 8; where JFR is not available, no events are
+ * emitted. Events are only created while a recording is running, as tracked
+ * by a {@code FlightRecorderListener}; otherwise beginning an event costs
+ * one volatile read. While recording, the recording's settings (enabled,
+ * threshold) decide which events are kept; stack traces are not collected,
+ * as events are committed on completion threads.
+ */
+public final class FlightRecorderEvents {
+   private static final String CATEGORY = "Micro-Manager";
+
+   private static final Constructor<?> ANNOTATION_ELEMENT;
+   private static final Constructor<?> VALUE_DESCRIPTOR;
+   private static final Method CREATE_FACTORY;
+   private static final Method NEW_EVENT;
+   private static final Method BEGIN;
+   private static final Method END;
+   private static final Method SET;
+   private static final Method COMMIT;
+   private static final Method GET_FLIGHT_RECORDER;
+   private static final Method GET_RECORDINGS;
+   private static final Method GET_STATE;
+
+   private static volatile boolean recording_;
+
+   public static final Definition FILE_IO = new Definition(
+      "org.micromanager.io.FileIO", "File I/O",
+      "A read or write issued through Async",
+      new Field(String.class, "operation", "Operation", null),
+      new Field(String.class, "kind", "Kind", null),
+      new Field(long.class, "offset", "Offset", null),
+      new Field(long.class, "bytes", "Bytes", "DataAmount"),
+      new Field(boolean.class, "failed", "Failed", null));
+
+   public static final Definition OPERATION = new Definition(
+      "org.micromanager.io.Operation", "TIFF Operation",
+      "A read comprising one or more I/O operations and decoding",
+      new Field(String.class, "name", "Name", null),
+      new Field(long.class, "offset", "Offset", null),
+      new Field(long.class, "bytes", "Bytes", "DataAmount"),
+      new Field(boolean.class, "failed", "Failed", null));
+
+   public static final Definition FRAME_WRITE = new Definition(
+      "org.micromanager.io.FrameWrite", "Frame Write",
+      "A frame written by a TIFF stack writer, from submission to completion",
+      new Field(long.class, "offset", "Offset", null),
+      new Field(long.class, "bytes", "Bytes", "DataAmount"),
+      new Field(long.class, "budgetWait", "Budget Wait", "Timespan"),
+      new Field(long.class, "queueTime", "Queue Time", "Timespan"),
+      new Field(long.class, "writeTime", "Write Time", "Timespan"),
+      new Field(boolean.class, "failed", "Failed", null));
+
+   private static final List<Definition> DEFINITIONS =
+      Arrays.asList(FILE_IO, OPERATION, FRAME_WRITE);
+
+   static {
+      Constructor<?> annotationElement = null;
+      Constructor<?> valueDescriptor = null;
+      Method createFactory = null;
+      Method newEvent = null;
+      Method begin = null;
+      Method end = null;
+      Method set = null;
+      Method commit = null;
+      Method getFlightRecorder = null;
+      Method getRecordings = null;
+      Method getState = null;
+      Method addListener = null;
+      Class<?> listener = null;
+      try {
+         Class<?> event = Class.forName("jdk.jfr.Event");
+         Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+         Class<?> recorder = Class.forName("jdk.jfr.FlightRecorder");
+         listener = Class.forName("jdk.jfr.FlightRecorderListener");
+         annotationElement = Class.forName("jdk.jfr.AnnotationElement").
+            getConstructor(Class.class, Object.class);
+         valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor").
+            getConstructor(Class.class, String.class, List.class);
+         createFactory = factory.getMethod("create", List.class, List.class);
+         newEvent = factory.getMethod("newEvent");
+         begin = event.getMethod("begin");
+         end = event.getMethod("end");
+         set = event.getMethod("set", int.class, Object.class);
+         commit = event.getMethod("commit");
+         getFlightRecorder = recorder.getMethod("getFlightRecorder");
+         getRecordings = recorder.getMethod("getRecordings");
+         getState = Class.forName("jdk.jfr.Recording").getMethod("getState");
+         addListener = recorder.getMethod("addListener", listener);
+      }
+      catch (ReflectiveOperationException | LinkageError unsupported) {
+         annotationElement = null;
+      }
+      ANNOTATION_ELEMENT = annotationElement;
+      VALUE_DESCRIPTOR = valueDescriptor;
+      CREATE_FACTORY = createFactory;
+      NEW_EVENT = newEvent;
+      BEGIN = begin;
+      END = end;
+      SET = set;
+      COMMIT = commit;
+      GET_FLIGHT_RECORDER = getFlightRecorder;
+      GET_RECORDINGS = getRecordings;
+      GET_STATE = getState;
+
+      if (isSupported()) {
+         // The listener methods are default methods; we only need to know
+         // that some recording changed state
+         Object proxy = Proxy.newProxyInstance(
+            FlightRecorderEvents.class.getClassLoader(),
+            new Class<?>[] { listener },
+            (p, method, args) -> {
+               switch (method.getName()) {
+                  case "recorderInitialized":
+                  case "recordingStateChanged":
+                     refresh();
+                     return null;
+                  case "hashCode":
+                     return System.identityHashCode(p);
+                  case "equals":
+                     return p == args[0];
+                  case "toString":
+                     return FlightRecorderEvents.class.getName();
+                  default:
+                     return null;
+               }
+            });
+         try {
+            addListener.invoke(null, proxy);
+         }
+         catch (ReflectiveOperationException | RuntimeException e) {
+            // Not permitted; events are never emitted
+         }
+      }
+   }
+
+   private FlightRecorderEvents() {}
+
+   public static boolean isSupported() {
+      return ANNOTATION_ELEMENT != null;
+   }
+
+   /**
+    * Return whether any flight recording is running, in which case events
+    * are created.
+    */
+   public static boolean isRecording() {
+      return recording_;
+   }
+
+   // Called by JFR when a recording changes state
+   private static void refresh() {
+      boolean running = false;
+      try {
+         Object recorder = GET_FLIGHT_RECORDER.invoke(null);
+         for (Object r : (List<?>) GET_RECORDINGS.invoke(recorder)) {
+            if ("RUNNING".equals(String.valueOf(GET_STATE.invoke(r)))) {
+               running = true;
+               break;
+            }
+         }
+         if (running) {
+            // Register the event types before the first event is begun
+            for (Definition d : DEFINITIONS) {
+               d.register();
+            }
+         }
+      }
+      catch (ReflectiveOperationException | RuntimeException e) {
+         running = false;
+      }
+      recording_ = running;
+   }
+
+   //
+   //
+   //
+
+   /**
+    * Commit an {@link #OPERATION} event when an asynchronous operation
+    * completes.
+    *
+    * So as not to allocate when not recording, callers begin the event
+    * before starting the operation and call this only if it is non-null.
+    *
+    * @param event the event, begun before the operation was started
+    * @param stage the operation
+    * @param name the name of the operation, such as "TiffIFD.read"
+    * @param offset the file offset at which the operation reads, or -1 if
+    * it has no single offset
+    * @param bytes gives the number of bytes read from the result
+    * @param <T> the result type
+    */
+   public static <T> void commitOperation(Event event, CompletionStage<T> stage,
+                                          String name, long offset,
+                                          ToLongFunction<? super T> bytes) {
+      stage.whenComplete((r, e) -> event.commit(name, offset,
+         e == null ? bytes.applyAsLong(r) : 0L, e != null));
+   }
+
+   private static final class Field {
+      final Class<?> type;
+      final String name;
+      final String label;
+      final String contentType; // "Timespan", "DataAmount" or null
+
+      Field(Class<?> type, String name, String label, String contentType) {
+         this.type = type;
+         this.name = name;
+         this.label = label;
+         this.contentType = contentType;
+      }
+   }
+
+   /**
+    * An event type, registered with JFR when a recording first starts.
+    */
+   public static final class Definition {
+      private final String name_;
+      private final String label_;
+      private final String description_;
+      private final List<Field> fields_;
+      private volatile Object factory_; // jdk.jfr.EventFactory
+
+      private Definition(String name, String label, String description,
+                         Field... fields) {
+         name_ = name;
+         label_ = label;
+         description_ = description;
+         fields_ = Arrays.asList(fields);
+      }
+
+      public String getName() {
+         return name_;
+      }
+
+      private synchronized void register() throws ReflectiveOperationException {
+         if (factory_ != null) {
+            return;
+         }
+         List<Object> annotations = new ArrayList<>();
+         annotations.add(annotation("Name", name_));
+         annotations.add(annotation("Label", label_));
+         annotations.add(annotation("Description", description_));
+         annotations.add(annotation("Category", new String[] { CATEGORY }));
+         annotations.add(annotation("StackTrace", false));
+         List<Object> fields = new ArrayList<>();
+         for (Field f : fields_) {
+            List<Object> fieldAnnotations = new ArrayList<>();
+            fieldAnnotations.add(annotation("Label", f.label));
+            if ("Timespan".equals(f.contentType)) {
+               fieldAnnotations.add(annotation("Timespan", "NANOSECONDS"));
+            }
+            else if ("DataAmount".equals(f.contentType)) {
+               fieldAnnotations.add(annotation("DataAmount", "BYTES"));
+            }
+            fields.add(VALUE_DESCRIPTOR.newInstance(f.type, f.name,
+               fieldAnnotations));
+         }
+         factory_ = CREATE_FACTORY.invoke(null, annotations, fields);
+      }
+
+      private static Object annotation(String type, Object value)
+         throws ReflectiveOperationException {
+         Class<? extends Annotation> c =
+            Class.forName("jdk.jfr." + type).asSubclass(Annotation.class);
+         return ANNOTATION_ELEMENT.newInstance(c, value);
+      }
+
+      /**
+       * Begin an event, if recording.
+       *
+       * @return the event, to be committed when the operation completes, or
+       * null if not recording
+       */
+      public Event begin() {
+         if (!recording_) {
+            return null;
+         }
+         Object factory = factory_;
+         if (factory == null) {
+            return null;
+         }
+         try {
+            Object event = NEW_EVENT.invoke(factory);
+            BEGIN.invoke(event);
+            return new Event(event, fields_.size());
+         }
+         catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+         }
+      }
+   }
+
+   /**
+    * An event that has begun.
+    */
+   public static final class Event {
+      private final Object event_; // jdk.jfr.Event
+      private final int fieldCount_;
+
+      private Event(Object event, int fieldCount) {
+         event_ = event;
+         fieldCount_ = fieldCount;
+      }
+
+      /**
+       * End the event and commit it; failures are ignored, so that tracing
+       * never affects I/O.
+       *
+       * @param values the field values, in the order of the event type's
+       * fields
+       */
+      public void commit(Object... values) {
+         if (values.length != fieldCount_) {
+            throw new IllegalArgumentException("Expected " + fieldCount_ +
+               " event field values");
+         }
+         try {
+            END.invoke(event_);
+            for (int i = 0; i < values.length; ++i) {
+               SET.invoke(event_, i, values[i]);
+            }
+            COMMIT.invoke(event_);
+         }
+         catch (ReflectiveOperationException | RuntimeException e) {
+            // Ignore
+         }
+      }
+   }
+}
@@ -0,0 +1,23 @@
+package org.micromanager.data.internal.io;
+
+/**
+ * What an I/O operation reads or writes, for {@link IOMetrics}.
+ */
+public enum IOKind {
+   /** The TIFF file header. */
+   HEADER,
+   /** An IFD (entry count, entries and next-IFD offset). */
+   IFD,
+   /** An out-of-line IFD entry value. */
+   VALUE,
+   /** Pixel data. */
+   PIXELS,
+   /** A Micro-Manager block (index map, summary metadata, etc.). */
+   MM_BLOCK,
+   /** An IFD written together with its values and pixels. */
+   RECORD,
+   /** Zeros written to preallocate file space. */
+   PREALLOCATE,
+   /** Anything else, including offset patches. */
+   OTHER,
+}
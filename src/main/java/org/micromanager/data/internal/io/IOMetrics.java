@@ -0,0 +1,249 @@
+package org.micromanager.data.internal.io;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts, bytes and latency histograms of the operations performed through
+ * {@link Async}, by operation and {@link IOKind}.
+ *
+ * Recording is disabled by default, in which case each operation costs one
+ * volatile read. When enabled, the latency of each operation is measured
+ * from when it is issued until its completion handler runs, and recorded in
+ * a {@link LatencyHistogram}.
+ *
+ * The metrics can be read with {@link #snapshot}, or over JMX after calling
+ * {@link #registerMBean}.
+ */
+public final class IOMetrics {
+   public static final String OBJECT_NAME =
+      "org.micromanager.data.internal.io:type=IOMetrics";
+
+   public enum Op {
+      READ,
+      WRITE,
+      PAD,
+      SIZE,
+   }
+
+   // Returned by start() when disabled
+   private static final long NOT_TIMED = Long.MIN_VALUE;
+
+   private static volatile boolean enabled_;
+   private static final LatencyHistogram[][] HISTOGRAMS =
+      new LatencyHistogram[Op.values().length][IOKind.values().length];
+   static {
+      for (LatencyHistogram[] row : HISTOGRAMS) {
+         for (int k = 0; k < row.length; ++k) {
+            row[k] = new LatencyHistogram();
+         }
+      }
+   }
+
+   private IOMetrics() {}
+
+   public static boolean isEnabled() {
+      return enabled_;
+   }
+
+   public static void setEnabled(boolean enabled) {
+      enabled_ = enabled;
+   }
+
+   /**
+    * Clear all metrics.
+    */
+   public static void reset() {
+      for (LatencyHistogram[] row : HISTOGRAMS) {
+         for (LatencyHistogram h : row) {
+            h.reset();
+         }
+      }
+   }
+
+   // Call when issuing an operation, and pass the result to record()
+   static long start() {
+      return enabled_ ? System.nanoTime() : NOT_TIMED;
+   }
+
+   static void record(Op op, IOKind kind, long bytes, boolean failed,
+                      long start) {
+      if (start == NOT_TIMED) {
+         return;
+      }
+      HISTOGRAMS[op.ordinal()][kind.ordinal()].record(
+         System.nanoTime() - start, bytes, failed);
+   }
+
+   //
+   //
+   //
+
+   /**
+    * A point-in-time copy of all metrics.
+    */
+   public static final class Snapshot {
+      private final Map<Op, Map<IOKind, LatencyHistogram.Snapshot>> histograms_ =
+         new EnumMap<>(Op.class);
+
+      private Snapshot() {
+         for (Op op : Op.values()) {
+            Map<IOKind, LatencyHistogram.Snapshot> row = new EnumMap<>(IOKind.class);
+            for (IOKind kind : IOKind.values()) {
+               row.put(kind, HISTOGRAMS[op.ordinal()][kind.ordinal()].snapshot());
+            }
+            histograms_.put(op, row);
+         }
+      }
+
+      public LatencyHistogram.Snapshot get(Op op, IOKind kind) {
+         return histograms_.get(op).get(kind);
+      }
+
+      @Override
+      public String toString() {
+         StringBuilder sb = new StringBuilder();
+         sb.append(String.format("%-6s %-9s %10s %14s %10s %10s %10s %10s%n",
+            "op", "kind", "count", "bytes", "mean(us)", "p50(us)", "p99(us)",
+            "max(us)"));
+         for (Op op : Op.values()) {
+            for (IOKind kind : IOKind.values()) {
+               LatencyHistogram.Snapshot s = get(op, kind);
+               if (s.getCount() == 0) {
+                  continue;
+               }
+               sb.append(String.format(
+                  "%-6s %-9s %10d %14d %10.1f %10.1f %10.1f %10.1f%n",
+                  op, kind, s.getCount(), s.getBytes(), s.getMeanNanos() / 1e3,
+                  s.getPercentileNanos(50) / 1e3, s.getPercentileNanos(99) / 1e3,
+                  s.getMaxNanos() / 1e3));
+            }
+         }
+         return sb.toString();
+      }
+   }
+
+   public static Snapshot snapshot() {
+      return new Snapshot();
+   }
+
+   //
+   //
+   //
+
+   /**
+    * JMX view of the metrics. Map keys are of the form "READ/PIXELS", and
+    * only operation kinds that have occurred are included.
+    */
+   public interface IOMetricsMXBean {
+      boolean isEnabled();
+
+      void setEnabled(boolean enabled);
+
+      void reset();
+
+      Map<String, Long> getCounts();
+
+      Map<String, Long> getErrorCounts();
+
+      Map<String, Long> getBytes();
+
+      Map<String, Double> getMeanMicros();
+
+      Map<String, Double> getMedianMicros();
+
+      Map<String, Double> getP99Micros();
+
+      Map<String, Double> getMaxMicros();
+   }
+
+   private static final class MXBeanImpl implements IOMetricsMXBean {
+      @Override
+      public boolean isEnabled() {
+         return IOMetrics.isEnabled();
+      }
+
+      @Override
+      public void setEnabled(boolean enabled) {
+         IOMetrics.setEnabled(enabled);
+      }
+
+      @Override
+      public void reset() {
+         IOMetrics.reset();
+      }
+
+      @Override
+      public Map<String, Long> getCounts() {
+         return collect(s -> s.getCount());
+      }
+
+      @Override
+      public Map<String, Long> getErrorCounts() {
+         return collect(s -> s.getErrorCount());
+      }
+
+      @Override
+      public Map<String, Long> getBytes() {
+         return collect(s -> s.getBytes());
+      }
+
+      @Override
+      public Map<String, Double> getMeanMicros() {
+         return collect(s -> s.getMeanNanos() / 1e3);
+      }
+
+      @Override
+      public Map<String, Double> getMedianMicros() {
+         return collect(s -> s.getPercentileNanos(50) / 1e3);
+      }
+
+      @Override
+      public Map<String, Double> getP99Micros() {
+         return collect(s -> s.getPercentileNanos(99) / 1e3);
+      }
+
+      @Override
+      public Map<String, Double> getMaxMicros() {
+         return collect(s -> s.getMaxNanos() / 1e3);
+      }
+
+      private static <T> Map<String, T> collect(
+            Function<LatencyHistogram.Snapshot, T> f) {
+         Snapshot snapshot = snapshot();
+         Map<String, T> ret = new TreeMap<>();
+         for (Op op : Op.values()) {
+            for (IOKind kind : IOKind.values()) {
+               LatencyHistogram.Snapshot s = snapshot.get(op, kind);
+               if (s.getCount() > 0) {
+                  ret.put(op + "/" + kind, f.apply(s));
+               }
+            }
+         }
+         return ret;
+      }
+   }
+
+   /**
+    * Register the metrics with the platform MBean server, under
+    * {@link #OBJECT_NAME}. Registering does not enable recording.
+    *
+    * @throws JMException if registration failed (including if already
+    * registered)
+    */
+   public static void registerMBean() throws JMException {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.registerMBean(new MXBeanImpl(), new ObjectName(OBJECT_NAME));
+   }
+
+   public static void unregisterMBean() throws JMException {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.unregisterMBean(new ObjectName(OBJECT_NAME));
+   }
+}
@@ -0,0 +1,162 @@
+package org.micromanager.data.internal.io;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of operation latencies, with lock-free recording.
+ *
+ * As in HdrHistogram, buckets are log-linear: each power-of-2 range of
+ * latencies is divided into 16 equal buckets, so that percentiles are
+ * reported with a relative error of at most 1/16, over a range of 1 ns to
+ * about 18 minutes (longer latencies are counted in the top bucket).
+ * Recording is a few atomic increments and does not allocate.
+ */
+public final class LatencyHistogram {
+   private static final int SUB_BUCKET_BITS = 4;
+   private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+   private static final int MAX_EXPONENT = 40;
+   private static final int BUCKET_COUNT =
+      (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+   private final AtomicLongArray buckets_ = new AtomicLongArray(BUCKET_COUNT);
+   private final LongAdder errorCount_ = new LongAdder();
+   private final LongAdder bytes_ = new LongAdder();
+   private final LongAdder totalNanos_ = new LongAdder();
+   private final LongAccumulator maxNanos_ = new LongAccumulator(Math::max, 0);
+
+   /**
+    * A point-in-time copy of a histogram.
+    */
+   public static final class Snapshot {
+      private final long[] buckets_;
+      private final long count_;
+      private final long errorCount_;
+      private final long bytes_;
+      private final long totalNanos_;
+      private final long maxNanos_;
+
+      private Snapshot(LatencyHistogram h) {
+         buckets_ = new long[BUCKET_COUNT];
+         long count = 0;
+         for (int i = 0; i < BUCKET_COUNT; ++i) {
+            buckets_[i] = h.buckets_.get(i);
+            count += buckets_[i];
+         }
+         // Use the bucket total, so that percentiles are self-consistent
+         count_ = count;
+         errorCount_ = h.errorCount_.sum();
+         bytes_ = h.bytes_.sum();
+         totalNanos_ = h.totalNanos_.sum();
+         maxNanos_ = h.maxNanos_.get();
+      }
+
+      public long getCount() {
+         return count_;
+      }
+
+      /**
+       * Get the number of operations that failed (which are included in
+       * the count and latencies).
+       */
+      public long getErrorCount() {
+         return errorCount_;
+      }
+
+      public long getBytes() {
+         return bytes_;
+      }
+
+      public long getMeanNanos() {
+         return count_ == 0 ? 0 : totalNanos_ / count_;
+      }
+
+      public long getMaxNanos() {
+         return maxNanos_;
+      }
+
+      /**
+       * Get a percentile of the latencies.
+       *
+       * @param percentile the percentile, from 0 to 100
+       * @return the upper bound of the bucket holding the percentile, or 0
+       * if there were no operations
+       */
+      public long getPercentileNanos(double percentile) {
+         Preconditions.checkArgument(percentile >= 0.0 && percentile <= 100.0,
+            "Percentile must be from 0 to 100");
+         if (count_ == 0) {
+            return 0;
+         }
+         long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count_));
+         long seen = 0;
+         for (int i = 0; i < BUCKET_COUNT; ++i) {
+            seen += buckets_[i];
+            if (seen >= rank) {
+               return Math.min(upperBound(i), maxNanos_);
+            }
+         }
+         return maxNanos_;
+      }
+   }
+
+   /**
+    * Record an operation.
+    *
+    * @param nanos the latency
+    * @param bytes the number of bytes transferred
+    * @param failed whether the operation failed
+    */
+   public void record(long nanos, long bytes, boolean failed) {
+      nanos = Math.max(nanos, 0);
+      buckets_.incrementAndGet(bucketIndex(nanos));
+      if (failed) {
+         errorCount_.increment();
+      }
+      bytes_.add(bytes);
+      totalNanos_.add(nanos);
+      maxNanos_.accumulate(nanos);
+   }
+
+   public Snapshot snapshot() {
+      return new Snapshot(this);
+   }
+
+   /**
+    * Clear all counts. Operations recorded concurrently may be partially
+    * cleared.
+    */
+   public void reset() {
+      for (int i = 0; i < BUCKET_COUNT; ++i) {
+         buckets_.set(i, 0);
+      }
+      errorCount_.reset();
+      bytes_.reset();
+      totalNanos_.reset();
+      maxNanos_.reset();
+   }
+
+   static int bucketIndex(long nanos) {
+      if (nanos < SUB_BUCKETS) {
+         return (int) nanos;
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+      if (exponent > MAX_EXPONENT) {
+         return BUCKET_COUNT - 1;
+      }
+      int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+      return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+   }
+
+   static long upperBound(int index) {
+      if (index < SUB_BUCKETS) {
+         return index;
+      }
+      int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+      int sub = index % SUB_BUCKETS;
+      return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+   }
+}
@@ -0,0 +1,236 @@
+package org.micromanager.data.internal.io;
+
+import com.google.common.base.Preconditions;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A read-only {@link AsynchronousFileChannel} backed by a memory mapping of
+ * the file.
+ *
+ * Besides copying reads, which complete immediately on the calling thread,
+ * this channel provides {@link #view}, which returns a read-only buffer
+ * sharing memory with the mapping. The TIFF readers use views when given this
+ * channel, so that reading a contiguous image or an entry value involves
+ * neither a copy nor a system call.
+ *
+ * Because a single mapping cannot exceed 2 GB, the file is mapped lazily in
+ * overlapping windows: window {@code i} starts at {@code i * stride} and is
+ * up to twice the stride long, so that any range no longer than the stride
+ * lies within a single window. The file size is fixed when the channel is
+ * opened; this channel is meant for finished datasets.
+ */
+public final class MappedFileChannel extends AsynchronousFileChannel {
+   private static final long DEFAULT_WINDOW_STRIDE = 1L << 30;
+
+   private final FileChannel fileChannel_;
+   private final long size_;
+   private final long windowStride_;
+   private final AtomicReferenceArray<ByteBuffer> windows_;
+
+   public static MappedFileChannel open(Path file) throws IOException {
+      return open(file, DEFAULT_WINDOW_STRIDE);
+   }
+
+   static MappedFileChannel open(Path file, long windowStride) throws IOException {
+      Preconditions.checkArgument(windowStride > 0 &&
+            windowStride <= DEFAULT_WINDOW_STRIDE,
+         "Window stride must be positive and at most 1 GiB");
+      FileChannel fc = FileChannel.open(file, StandardOpenOption.READ);
+      try {
+         return new MappedFileChannel(fc, fc.size(), windowStride);
+      }
+      catch (RuntimeException e) {
+         fc.close();
+         throw e;
+      }
+   }
+
+   private MappedFileChannel(FileChannel fileChannel, long size, long windowStride) {
+      fileChannel_ = fileChannel;
+      size_ = size;
+      windowStride_ = windowStride;
+      long windowCount = (size + windowStride - 1) / windowStride;
+      Preconditions.checkArgument(windowCount <= Integer.MAX_VALUE,
+         "File too large to map");
+      windows_ = new AtomicReferenceArray<>((int) windowCount);
+   }
+
+   //
+   //
+   //
+
+   /**
+    * Get a read-only view of a range of the file.
+    *
+    * The returned buffer is big-endian, has its position at zero and its
+    * limit at {@code length}, and remains valid after this channel is
+    * closed.
+    *
+    * @param offset the file offset
+    * @param length the length of the range
+    * @return the view, or null if {@code length} exceeds the window stride
+    * and the range does not fit in one window
+    * @throws EOFException if the range extends beyond the end of the file
+    * @throws IOException if the file could not be mapped
+    */
+   public ByteBuffer view(long offset, int length) throws IOException {
+      Preconditions.checkArgument(offset >= 0 && length >= 0);
+      if (offset + length > size_) {
+         throw new EOFException();
+      }
+      if (length == 0) {
+         return ByteBuffer.allocate(0).asReadOnlyBuffer();
+      }
+      int index = (int) (offset / windowStride_);
+      ByteBuffer window = window(index);
+      long windowStart = index * windowStride_;
+      if (offset + length > windowStart + window.capacity()) {
+         return null;
+      }
+      ByteBuffer ret = window.duplicate();
+      ret.position((int) (offset - windowStart));
+      ret.limit(ret.position() + length);
+      return ret.slice();
+   }
+
+   private ByteBuffer window(int index) throws IOException {
+      ByteBuffer window = windows_.get(index);
+      if (window == null) {
+         long start = index * windowStride_;
+         long length = Math.min(Math.min(2 * windowStride_, size_ - start),
+            Integer.MAX_VALUE);
+         window = fileChannel_.map(FileChannel.MapMode.READ_ONLY, start, length);
+         if (!windows_.compareAndSet(index, null, window)) {
+            window = windows_.get(index);
+         }
+      }
+      return window;
+   }
+
+   // Copy as much as possible, one window at a time
+   private int copy(ByteBuffer dst, long position) throws IOException {
+      Preconditions.checkArgument(position >= 0, "Negative position");
+      if (dst.isReadOnly()) {
+         throw new IllegalArgumentException("Read-only buffer");
+      }
+      if (position >= size_ && dst.hasRemaining()) {
+         return -1;
+      }
+      int total = 0;
+      while (dst.hasRemaining() && position + total < size_) {
+         int chunk = (int) Math.min(Math.min(dst.remaining(), windowStride_),
+            size_ - position - total);
+         dst.put(view(position + total, chunk));
+         total += chunk;
+      }
+      return total;
+   }
+
+   //
+   //
+   //
+
+   @Override
+   public <A> void read(ByteBuffer dst, long position, A attachment,
+                        CompletionHandler<Integer, ? super A> handler) {
+      Preconditions.checkNotNull(handler);
+      int result;
+      try {
+         result = copy(dst, position);
+      }
+      catch (IOException e) {
+         handler.failed(e, attachment);
+         return;
+      }
+      handler.completed(result, attachment);
+   }
+
+   @Override
+   public Future<Integer> read(ByteBuffer dst, long position) {
+      try {
+         return CompletableFuture.completedFuture(copy(dst, position));
+      }
+      catch (IOException e) {
+         return Async.<Integer>completedExceptionally(e).toCompletableFuture();
+      }
+   }
+
+   @Override
+   public <A> void write(ByteBuffer src, long position, A attachment,
+                         CompletionHandler<Integer, ? super A> handler) {
+      throw new NonWritableChannelException();
+   }
+
+   @Override
+   public Future<Integer> write(ByteBuffer src, long position) {
+      throw new NonWritableChannelException();
+   }
+
+   @Override
+   public long size() {
+      return size_;
+   }
+
+   @Override
+   public AsynchronousFileChannel truncate(long size) {
+      throw new NonWritableChannelException();
+   }
+
+   @Override
+   public void force(boolean metaData) {
+   }
+
+   @Override
+   public <A> void lock(long position, long size, boolean shared, A attachment,
+                        CompletionHandler<FileLock, ? super A> handler) {
+      FileLock lock;
+      try {
+         lock = fileChannel_.lock(position, size, shared);
+      }
+      catch (IOException e) {
+         handler.failed(e, attachment);
+         return;
+      }
+      handler.completed(lock, attachment);
+   }
+
+   @Override
+   public Future<FileLock> lock(long position, long size, boolean shared) {
+      try {
+         return CompletableFuture.completedFuture(
+            fileChannel_.lock(position, size, shared));
+      }
+      catch (IOException e) {
+         return Async.<FileLock>completedExceptionally(e).toCompletableFuture();
+      }
+   }
+
+   @Override
+   public FileLock tryLock(long position, long size, boolean shared)
+      throws IOException {
+      return fileChannel_.tryLock(position, size, shared);
+   }
+
+   @Override
+   public boolean isOpen() {
+      return fileChannel_.isOpen();
+   }
+
+   @Override
+   public void close() throws IOException {
+      fileChannel_.close();
+   }
+}
@@ -0,0 +1,220 @@
+package org.micromanager.data.internal.io;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * An {@link AsynchronousFileChannel} that performs blocking positional reads
+ * and writes on a {@link FileChannel}, each on a task of an executor.
+ *
+ * On Linux, the JDK's own {@code AsynchronousFileChannel} is likewise
+ * implemented with a thread pool, but hands each completion off to a second
+ * thread; here the completion handler runs on the thread that performed the
+ * I/O. By default, the tasks run on virtual threads if the JVM supports them
+ * (Java 21 or later), and otherwise on a shared, bounded pool of daemon
+ * threads.
+ *
+ * Because this is an {@code AsynchronousFileChannel}, it can be used
+ * anywhere the TIFF code accepts one; see {@link ChannelBackend}.
+ */
+public final class PositionalFileChannel extends AsynchronousFileChannel {
+   private static final int DEFAULT_POOL_SIZE =
+      Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+   private final FileChannel fileChannel_;
+   private final ExecutorService executor_;
+
+   private static final class DefaultExecutor {
+      private static final ExecutorService INSTANCE = create();
+
+      private static ExecutorService create() {
+         try {
+            Method m = Executors.class.
+               getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+         }
+         catch (ReflectiveOperationException unsupported) {
+            return Async.newThreadPool("PositionalFileChannel", DEFAULT_POOL_SIZE);
+         }
+      }
+   }
+
+   public static PositionalFileChannel open(Path file, OpenOption... options)
+      throws IOException {
+      return open(file, DefaultExecutor.INSTANCE, options);
+   }
+
+   /**
+    * Open a file, performing I/O on the given executor.
+    *
+    * @param file the file to open
+    * @param executor the executor; it is not shut down when the channel is
+    * closed
+    * @param options the open options
+    * @return the channel
+    * @throws IOException if the file could not be opened
+    */
+   public static PositionalFileChannel open(Path file, ExecutorService executor,
+                                            OpenOption... options)
+      throws IOException {
+      Preconditions.checkNotNull(executor);
+      FileChannel fc = FileChannel.open(file,
+         new HashSet<>(Arrays.asList(options)));
+      return new PositionalFileChannel(fc, executor);
+   }
+
+   private PositionalFileChannel(FileChannel fileChannel, ExecutorService executor) {
+      fileChannel_ = fileChannel;
+      executor_ = executor;
+   }
+
+   //
+   //
+   //
+
+   private interface IOTask<V> {
+      V run() throws IOException;
+   }
+
+   private <V, A> void submit(IOTask<V> task, A attachment,
+                              CompletionHandler<V, ? super A> handler) {
+      Preconditions.checkNotNull(handler);
+      executor_.execute(() -> {
+         V result;
+         try {
+            result = task.run();
+         }
+         catch (Throwable t) {
+            handler.failed(t, attachment);
+            return;
+         }
+         handler.completed(result, attachment);
+      });
+   }
+
+   private <V> Future<V> submit(IOTask<V> task) {
+      CompletableFuture<V> future = new CompletableFuture<>();
+      submit(task, future, new CompletionHandler<V, CompletableFuture<V>>() {
+         @Override
+         public void completed(V result, CompletableFuture<V> f) {
+            f.complete(result);
+         }
+
+         @Override
+         public void failed(Throwable t, CompletableFuture<V> f) {
+            f.completeExceptionally(t);
+         }
+      });
+      return future;
+   }
+
+   // Like AsynchronousFileChannel, return -1 only if at end of file before
+   // reading anything; but keep reading until dst is full or end of file
+   private int readFully(ByteBuffer dst, long position) throws IOException {
+      int total = 0;
+      while (dst.hasRemaining()) {
+         int n = fileChannel_.read(dst, position + total);
+         if (n < 0) {
+            return total == 0 ? -1 : total;
+         }
+         total += n;
+      }
+      return total;
+   }
+
+   private int writeFully(ByteBuffer src, long position) throws IOException {
+      int total = 0;
+      while (src.hasRemaining()) {
+         total += fileChannel_.write(src, position + total);
+      }
+      return total;
+   }
+
+   //
+   //
+   //
+
+   @Override
+   public <A> void read(ByteBuffer dst, long position, A attachment,
+                        CompletionHandler<Integer, ? super A> handler) {
+      Preconditions.checkArgument(position >= 0, "Negative position");
+      submit(() -> readFully(dst, position), attachment, handler);
+   }
+
+   @Override
+   public Future<Integer> read(ByteBuffer dst, long position) {
+      Preconditions.checkArgument(position >= 0, "Negative position");
+      return submit(() -> readFully(dst, position));
+   }
+
+   @Override
+   public <A> void write(ByteBuffer src, long position, A attachment,
+                         CompletionHandler<Integer, ? super A> handler) {
+      Preconditions.checkArgument(position >= 0, "Negative position");
+      submit(() -> writeFully(src, position), attachment, handler);
+   }
+
+   @Override
+   public Future<Integer> write(ByteBuffer src, long position) {
+      Preconditions.checkArgument(position >= 0, "Negative position");
+      return submit(() -> writeFully(src, position));
+   }
+
+   @Override
+   public long size() throws IOException {
+      return fileChannel_.size();
+   }
+
+   @Override
+   public AsynchronousFileChannel truncate(long size) throws IOException {
+      fileChannel_.truncate(size);
+      return this;
+   }
+
+   @Override
+   public void force(boolean metaData) throws IOException {
+      fileChannel_.force(metaData);
+   }
+
+   @Override
+   public <A> void lock(long position, long size, boolean shared, A attachment,
+                        CompletionHandler<FileLock, ? super A> handler) {
+      submit(() -> fileChannel_.lock(position, size, shared), attachment, handler);
+   }
+
+   @Override
+   public Future<FileLock> lock(long position, long size, boolean shared) {
+      return submit(() -> fileChannel_.lock(position, size, shared));
+   }
+
+   @Override
+   public FileLock tryLock(long position, long size, boolean shared)
+      throws IOException {
+      return fileChannel_.tryLock(position, size, shared);
+   }
+
+   @Override
+   public boolean isOpen() {
+      return fileChannel_.isOpen();
+   }
+
+   @Override
+   public void close() throws IOException {
+      fileChannel_.close();
+   }
+}
@@ -0,0 +1,180 @@
+package org.micromanager.data.internal.io;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Allocator of file space ahead of appending writes.
+ *
+ * Before writing a region, a writer calls {@link #ready} with the end of the
+ * region and issues the write when the returned stage completes. This keeps
+ * the allocated end of the file at least one chunk ahead of the data, so
+ * that the file is extended in large steps off the write path, and orders
+ * each data write after the preallocation writes that cover it (which
+ * therefore never overwrite data). Normally the stage has long completed.
+ *
+ * Java offers no way to reserve disk blocks without writing them (the
+ * equivalent of {@code fallocate}), so there are two modes:
+ * {@link Mode#EXTEND} only grows the file size, leaving a sparse tail, which
+ * saves a size update per write; {@link Mode#ZERO_FILL} writes zeros, which
+ * allocates the blocks as contiguously as the file system can, at the cost
+ * of writing everything twice.
+ *
+ * When done, {@link #trim} truncates the file to the end of the data.
+ */
+public final class Preallocator {
+   private static final int ZERO_WRITE_SIZE = 1 << 20;
+
+   public enum Mode {
+      EXTEND,
+      ZERO_FILL,
+   }
+
+   private final AsynchronousFileChannel chan_;
+   private final Mode mode_;
+   private final long chunkSize_;
+   private final int blockSize_;
+   private final ByteBuffer zeros_;
+
+   // Guarded by this
+   private long target_;
+   private CompletableFuture<Void> last_ = CompletableFuture.completedFuture(null);
+   private final List<Extension> extensions_ = new ArrayList<>();
+   private boolean trimmed_;
+
+   private static final class Extension {
+      final long end;
+      final CompletableFuture<Void> done;
+
+      Extension(long end, CompletableFuture<Void> done) {
+         this.end = end;
+         this.done = done;
+      }
+   }
+
+   /**
+    * Create a preallocator.
+    *
+    * @param chan the asynchronous file channel
+    * @param start the offset from which to allocate, at or after the current
+    * end of the file, and a multiple of the block size
+    * @param mode the preallocation mode
+    * @param chunkSize the size by which to extend the file, a multiple of
+    * the block size
+    * @param blockSize the size to which all preallocation writes are
+    * aligned, a power of 2; 1 unless the file is open for direct I/O
+    * @return the preallocator
+    */
+   public static Preallocator create(AsynchronousFileChannel chan, long start,
+                                     Mode mode, long chunkSize, int blockSize) {
+      Preconditions.checkNotNull(mode);
+      Preconditions.checkArgument(blockSize > 0 && Integer.bitCount(blockSize) == 1,
+         "Block size must be a power of 2");
+      Preconditions.checkArgument(start >= 0 && start % blockSize == 0,
+         "Start must be block-aligned");
+      Preconditions.checkArgument(chunkSize > 0 && chunkSize % blockSize == 0,
+         "Chunk size must be a positive multiple of block size");
+      return new Preallocator(chan, start, mode, chunkSize, blockSize);
+   }
+
+   private Preallocator(AsynchronousFileChannel chan, long start, Mode mode,
+                        long chunkSize, int blockSize) {
+      chan_ = chan;
+      mode_ = mode;
+      chunkSize_ = chunkSize;
+      blockSize_ = blockSize;
+      int zerosSize = mode == Mode.ZERO_FILL ?
+         (int) Math.min(ZERO_WRITE_SIZE, chunkSize) : blockSize;
+      zeros_ = DirectIO.allocateAligned(zerosSize, blockSize);
+      target_ = start;
+   }
+
+   /**
+    * Get the end of the space allocated or being allocated.
+    */
+   public synchronized long getAllocatedEnd() {
+      return target_;
+   }
+
+   /**
+    * Make sure space is allocated up to a file offset.
+    *
+    * @param end the end of the region about to be written
+    * @return a completion stage that completes when the region may be
+    * written
+    */
+   public synchronized CompletionStage<Void> ready(long end) {
+      Preconditions.checkState(!trimmed_, "Preallocator already trimmed");
+      while (target_ < end + chunkSize_) {
+         long from = target_;
+         target_ += chunkSize_;
+         // Complete in order, so that waiting for one extension implies
+         // waiting for all before it
+         CompletableFuture<Void> extension = extend(from, target_).toCompletableFuture();
+         last_ = last_.isDone() && !last_.isCompletedExceptionally() ? extension :
+            CompletableFuture.allOf(last_, extension);
+         extensions_.add(new Extension(target_, last_));
+      }
+      int done = 0;
+      while (done < extensions_.size() && extensions_.get(done).done.isDone() &&
+            !extensions_.get(done).done.isCompletedExceptionally()) {
+         ++done;
+      }
+      extensions_.subList(0, done).clear();
+      for (Extension e : extensions_) {
+         if (e.end >= end) {
+            return e.done;
+         }
+      }
+      return last_;
+   }
+
+   private CompletionStage<Void> extend(long from, long to) {
+      if (mode_ == Mode.EXTEND) {
+         return Async.write(chan_, zeros_.duplicate(), to - blockSize_,
+            IOKind.PREALLOCATE);
+      }
+      List<CompletableFuture<Void>> writes = new ArrayList<>();
+      for (long pos = from; pos < to; pos += zeros_.capacity()) {
+         ByteBuffer b = zeros_.duplicate();
+         b.limit((int) Math.min(b.capacity(), to - pos));
+         writes.add(Async.write(chan_, b, pos, IOKind.PREALLOCATE).
+            toCompletableFuture());
+      }
+      return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0]));
+   }
+
+   /**
+    * Truncate the file to the end of the data, once all preallocation
+    * writes have completed.
+    *
+    * @param end the end of the data
+    * @return a completion stage that completes when the file is truncated
+    */
+   public CompletionStage<Void> trim(long end) {
+      CompletableFuture<Void> last;
+      synchronized (this) {
+         Preconditions.checkState(!trimmed_, "Preallocator already trimmed");
+         trimmed_ = true;
+         last = last_;
+      }
+      // Truncate even if preallocation failed, so as not to leave the tail
+      return last.handle((v, e) -> e).thenCompose(e -> {
+         try {
+            chan_.truncate(end);
+         }
+         catch (IOException truncateError) {
+            return Async.completedExceptionally(truncateError);
+         }
+         return e == null ? CompletableFuture.completedFuture(null) :
+            Async.completedExceptionally(e);
+      });
+   }
+}
@@ -0,0 +1,238 @@
+package org.micromanager.data.internal.io;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Buffer pool that rounds requests up to power-of-2 size classes.
+ *
+ * Released buffers are kept in a shared free list per size class, up to a
+ * bound on the total bytes held. In addition, each thread caches at most one
+ * buffer per size class for small sizes, so that the common pattern of a
+ * short-lived metadata buffer being acquired and released on the same thread
+ * does not touch shared state. Requests larger than the largest size class
+ * are allocated directly and are not retained on release.
+ */
+public final class SizeClassedBufferPool implements BufferPool {
+   private final int minClassShift_;
+   private final int maxClassShift_;
+   private final int maxThreadLocalClassShift_;
+   private final long maxPooledBytes_;
+
+   private final Queue<ByteBuffer>[] freeLists_;
+   private final ThreadLocal<ByteBuffer[]> threadCaches_;
+
+   private final AtomicLong pooledBytes_ = new AtomicLong();
+   private final AtomicLong outstandingBytes_ = new AtomicLong();
+   private final LongAdder acquireCount_ = new LongAdder();
+   private final LongAdder hitCount_ = new LongAdder();
+
+   public static Builder builder() {
+      return new Builder();
+   }
+
+   public static class Builder {
+      private int minClassSize_ = 64;
+      private int maxClassSize_ = 16 << 20;
+      private int maxThreadLocalSize_ = 64 << 10;
+      private long maxPooledBytes_ = 64L << 20;
+
+      private Builder() {}
+
+      /**
+       * Smallest size class; smaller requests are rounded up to this size.
+       *
+       * @param bytes a power of 2 (default 64)
+       * @return this builder
+       */
+      public Builder minClassSize(int bytes) {
+         checkPowerOf2(bytes);
+         minClassSize_ = bytes;
+         return this;
+      }
+
+      /**
+       * Largest size class; larger requests are not pooled.
+       *
+       * @param bytes a power of 2 (default 16 MiB)
+       * @return this builder
+       */
+      public Builder maxClassSize(int bytes) {
+         checkPowerOf2(bytes);
+         maxClassSize_ = bytes;
+         return this;
+      }
+
+      /**
+       * Largest size class that is cached per thread.
+       *
+       * @param bytes a power of 2, or 0 to disable per-thread caching
+       * (default 64 KiB)
+       * @return this builder
+       */
+      public Builder maxThreadLocalSize(int bytes) {
+         Preconditions.checkArgument(bytes == 0 || Integer.bitCount(bytes) == 1,
+            "Thread-local size limit must be 0 or a power of 2");
+         maxThreadLocalSize_ = bytes;
+         return this;
+      }
+
+      /**
+       * Bound on the total bytes held in the shared free lists.
+       *
+       * @param bytes the bound (default 64 MiB)
+       * @return this builder
+       */
+      public Builder maxPooledBytes(long bytes) {
+         Preconditions.checkArgument(bytes >= 0,
+            "Pool size limit must not be negative");
+         maxPooledBytes_ = bytes;
+         return this;
+      }
+
+      public SizeClassedBufferPool build() {
+         Preconditions.checkArgument(minClassSize_ <= maxClassSize_,
+            "Minimum size class must not exceed maximum size class");
+         return new SizeClassedBufferPool(this);
+      }
+
+      private static void checkPowerOf2(int bytes) {
+         Preconditions.checkArgument(bytes > 0 && Integer.bitCount(bytes) == 1,
+            "Size class must be a power of 2");
+      }
+   }
+
+   private SizeClassedBufferPool(Builder b) {
+      minClassShift_ = Integer.numberOfTrailingZeros(b.minClassSize_);
+      maxClassShift_ = Integer.numberOfTrailingZeros(b.maxClassSize_);
+      maxThreadLocalClassShift_ = b.maxThreadLocalSize_ == 0 ? -1 :
+         Integer.numberOfTrailingZeros(b.maxThreadLocalSize_);
+      maxPooledBytes_ = b.maxPooledBytes_;
+
+      int classCount = maxClassShift_ - minClassShift_ + 1;
+      @SuppressWarnings({ "unchecked", "rawtypes" })
+      Queue<ByteBuffer>[] freeLists = new Queue[classCount];
+      freeLists_ = freeLists;
+      for (int i = 0; i < classCount; ++i) {
+         freeLists_[i] = new ConcurrentLinkedQueue<>();
+      }
+      threadCaches_ = ThreadLocal.withInitial(() -> new ByteBuffer[classCount]);
+   }
+
+   //
+   //
+   //
+
+   @Override
+   public ByteBuffer acquire(int size) {
+      Preconditions.checkArgument(size >= 0, "Buffer size must not be negative");
+      acquireCount_.increment();
+      int shift = classShift(size);
+      ByteBuffer ret = null;
+      if (shift <= maxClassShift_) {
+         int cls = shift - minClassShift_;
+         if (shift <= maxThreadLocalClassShift_) {
+            ByteBuffer[] cache = threadCaches_.get();
+            ret = cache[cls];
+            cache[cls] = null;
+         }
+         if (ret == null) {
+            ret = freeLists_[cls].poll();
+            if (ret != null) {
+               pooledBytes_.addAndGet(-ret.capacity());
+            }
+         }
+      }
+      if (ret != null) {
+         hitCount_.increment();
+         ret.clear();
+         ret.order(ByteOrder.BIG_ENDIAN);
+      }
+      else {
+         ret = ByteBuffer.allocateDirect(shift <= maxClassShift_ ? 1 << shift : size);
+      }
+      outstandingBytes_.addAndGet(ret.capacity());
+      ret.limit(size);
+      return ret;
+   }
+
+   @Override
+   public void release(ByteBuffer buffer) {
+      if (buffer.isReadOnly()) {
+         return; // Never from a pool
+      }
+      int capacity = buffer.capacity();
+      outstandingBytes_.addAndGet(-capacity);
+      if (!buffer.isDirect() || Integer.bitCount(capacity) != 1) {
+         return;
+      }
+      int shift = Integer.numberOfTrailingZeros(capacity);
+      if (shift < minClassShift_ || shift > maxClassShift_) {
+         return;
+      }
+      int cls = shift - minClassShift_;
+      if (shift <= maxThreadLocalClassShift_) {
+         ByteBuffer[] cache = threadCaches_.get();
+         if (cache[cls] == null) {
+            cache[cls] = buffer;
+            return;
+         }
+      }
+      if (pooledBytes_.addAndGet(capacity) > maxPooledBytes_) {
+         pooledBytes_.addAndGet(-capacity);
+         return;
+      }
+      freeLists_[cls].offer(buffer);
+   }
+
+   private int classShift(int size) {
+      if (size <= 1 << minClassShift_) {
+         return minClassShift_;
+      }
+      return 32 - Integer.numberOfLeadingZeros(size - 1);
+   }
+
+   //
+   //
+   //
+
+   public long getAcquireCount() {
+      return acquireCount_.sum();
+   }
+
+   /**
+    * Number of acquisitions that were satisfied with a reused buffer.
+    */
+   public long getHitCount() {
+      return hitCount_.sum();
+   }
+
+   public double getHitRate() {
+      long acquires = getAcquireCount();
+      return acquires == 0 ? 0.0 : (double) getHitCount() / acquires;
+   }
+
+   /**
+    * Total capacity of buffers acquired and not yet released.
+    *
+    * Buffers handed to callers that are never released (which is allowed)
+    * remain counted here.
+    */
+   public long getOutstandingBytes() {
+      return outstandingBytes_.get();
+   }
+
+   /**
+    * Total capacity of buffers held in the shared free lists (excluding
+    * per-thread caches).
+    */
+   public long getPooledBytes() {
+      return pooledBytes_.get();
+   }
+}
@@ -0,0 +1,481 @@
+package org.micromanager.data.internal.io;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stage in front of {@link Async#write} that lets the caller return as soon
+ * as its data has been copied.
+ *
+ * Each write is copied into a pooled buffer and issued immediately; the
+ * buffer is released when the write completes. The total size of writes
+ * not yet completed is bounded, beyond which {@link #write} blocks (and
+ * {@link #tryWrite} declines).
+ *
+ * The durability policy determines when data is forced to the storage
+ * device: {@link Durability#NONE} never (leaving it to the OS);
+ * {@link Durability#GROUP_COMMIT} periodically, with a single
+ * {@code force()} covering all writes completed since the last one (the
+ * completion stage of each write then completes only once forced); and
+ * {@link Durability#ON_CLOSE} once, on {@link #close}.
+ *
+ * Queue depth and write and force latencies are reported by
+ * {@link #getStats}, for sizing the queue.
+ */
+public final class WriteBehindQueue {
+   public enum Durability {
+      NONE,
+      GROUP_COMMIT,
+      ON_CLOSE,
+   }
+
+   private final AsynchronousFileChannel chan_;
+   private final int maxQueuedBytes_;
+   private final Durability durability_;
+   private final BufferPool pool_;
+   private final Semaphore budget_;
+   // Threads in write() waiting for budget; signaled only when there are
+   // any, so that releasing stays lock-free
+   private final ReentrantLock waitLock_ = new ReentrantLock();
+   private final Condition budgetReleased_ = waitLock_.newCondition();
+   private final AtomicInteger waiters_ = new AtomicInteger();
+   private final ScheduledExecutorService committer_; // null unless group commit
+
+   // Admitted writes whose completion has not yet been handled (results
+   // may still await a commit)
+   private final Set<CompletableFuture<Void>> writing_ =
+      ConcurrentHashMap.newKeySet();
+   // Written but not yet forced; guarded by itself
+   private final List<CompletableFuture<Void>> uncommitted_ = new ArrayList<>();
+   private final AtomicReference<Throwable> error_ = new AtomicReference<>();
+   private volatile boolean closed_;
+
+   // Statistics
+   private final AtomicInteger queuedWrites_ = new AtomicInteger();
+   private final AtomicInteger peakQueuedBytes_ = new AtomicInteger();
+   private final AtomicLong completedWrites_ = new AtomicLong();
+   private final AtomicLong totalWriteNanos_ = new AtomicLong();
+   private final AtomicLong maxWriteNanos_ = new AtomicLong();
+   private final AtomicLong forceCount_ = new AtomicLong();
+   private final AtomicLong totalForceNanos_ = new AtomicLong();
+   private final AtomicLong maxForceNanos_ = new AtomicLong();
+
+   /**
+    * A snapshot of queue statistics.
+    */
+   public static final class Stats {
+      private final int queuedBytes_;
+      private final int queuedWrites_;
+      private final int peakQueuedBytes_;
+      private final long completedWrites_;
+      private final long totalWriteNanos_;
+      private final long maxWriteNanos_;
+      private final long forceCount_;
+      private final long totalForceNanos_;
+      private final long maxForceNanos_;
+
+      private Stats(WriteBehindQueue q) {
+         queuedBytes_ = q.maxQueuedBytes_ - q.budget_.availablePermits();
+         queuedWrites_ = q.queuedWrites_.get();
+         peakQueuedBytes_ = q.peakQueuedBytes_.get();
+         completedWrites_ = q.completedWrites_.get();
+         totalWriteNanos_ = q.totalWriteNanos_.get();
+         maxWriteNanos_ = q.maxWriteNanos_.get();
+         forceCount_ = q.forceCount_.get();
+         totalForceNanos_ = q.totalForceNanos_.get();
+         maxForceNanos_ = q.maxForceNanos_.get();
+      }
+
+      public int getQueuedBytes() {
+         return queuedBytes_;
+      }
+
+      public int getQueuedWrites() {
+         return queuedWrites_;
+      }
+
+      public int getPeakQueuedBytes() {
+         return peakQueuedBytes_;
+      }
+
+      public long getCompletedWrites() {
+         return completedWrites_;
+      }
+
+      /**
+       * Get the mean time from enqueuing to completion of a write (including
+       * waiting for the force, under group commit).
+       */
+      public long getMeanWriteLatencyNanos() {
+         return completedWrites_ == 0 ? 0 : totalWriteNanos_ / completedWrites_;
+      }
+
+      public long getMaxWriteLatencyNanos() {
+         return maxWriteNanos_;
+      }
+
+      public long getForceCount() {
+         return forceCount_;
+      }
+
+      public long getMeanForceLatencyNanos() {
+         return forceCount_ == 0 ? 0 : totalForceNanos_ / forceCount_;
+      }
+
+      public long getMaxForceLatencyNanos() {
+         return maxForceNanos_;
+      }
+   }
+
+   public static Builder builder(AsynchronousFileChannel chan) {
+      return new Builder(chan);
+   }
+
+   public static class Builder {
+      private final AsynchronousFileChannel chan_;
+      private int maxQueuedBytes_ = 64 << 20;
+      private Durability durability_ = Durability.NONE;
+      private long groupCommitMillis_ = 100;
+      private BufferPool pool_ = BufferPool.getDefault();
+
+      private Builder(AsynchronousFileChannel chan) {
+         chan_ = Preconditions.checkNotNull(chan);
+      }
+
+      /**
+       * @param bytes the maximum total size of writes not yet completed
+       * (default 64 MiB)
+       * @return this builder
+       */
+      public Builder maxQueuedBytes(int bytes) {
+         Preconditions.checkArgument(bytes > 0,
+            "Queue size must be positive");
+         maxQueuedBytes_ = bytes;
+         return this;
+      }
+
+      /**
+       * @param durability the durability policy (default NONE)
+       * @return this builder
+       */
+      public Builder durability(Durability durability) {
+         durability_ = Preconditions.checkNotNull(durability);
+         return this;
+      }
+
+      /**
+       * @param millis the interval between forces under group commit
+       * (default 100 ms)
+       * @return this builder
+       */
+      public Builder groupCommitInterval(long millis) {
+         Preconditions.checkArgument(millis > 0,
+            "Group commit interval must be positive");
+         groupCommitMillis_ = millis;
+         return this;
+      }
+
+      /**
+       * @param pool the pool from which to take copy buffers (default the
+       * default pool)
+       * @return this builder
+       */
+      public Builder bufferPool(BufferPool pool) {
+         pool_ = Preconditions.checkNotNull(pool);
+         return this;
+      }
+
+      public WriteBehindQueue build() {
+         return new WriteBehindQueue(this);
+      }
+   }
+
+   private WriteBehindQueue(Builder b) {
+      chan_ = b.chan_;
+      maxQueuedBytes_ = b.maxQueuedBytes_;
+      durability_ = b.durability_;
+      pool_ = b.pool_;
+      budget_ = new Semaphore(maxQueuedBytes_);
+      if (durability_ == Durability.GROUP_COMMIT) {
+         committer_ = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "WriteBehindQueue-commit");
+            t.setDaemon(true);
+            return t;
+         });
+         committer_.scheduleWithFixedDelay(this::commit, b.groupCommitMillis_,
+            b.groupCommitMillis_, TimeUnit.MILLISECONDS);
+      }
+      else {
+         committer_ = null;
+      }
+   }
+
+   /**
+    * Get the current statistics.
+    */
+   public Stats getStats() {
+      return new Stats(this);
+   }
+
+   /**
+    * Queue a write, blocking while the queue is full.
+    *
+    * A write larger than the queue is admitted when the queue is empty.
+    *
+    * @param src the data, from its position to its limit; it has been
+    * copied (and its position advanced to its limit) when this method
+    * returns
+    * @param offset the file offset
+    * @return a completion stage that completes when the data has been
+    * written (and, under group commit, forced)
+    * @throws InterruptedException if interrupted while waiting
+    */
+   public CompletionStage<Void> write(ByteBuffer src, long offset)
+      throws InterruptedException {
+      int permits = Math.min(src.remaining(), maxQueuedBytes_);
+      if (!budget_.tryAcquire(permits) && !awaitBudget(permits)) {
+         return rejected();
+      }
+      return enqueue(src, offset, permits);
+   }
+
+   // Return false, without acquiring, if closed or failed while waiting
+   private boolean awaitBudget(int permits) throws InterruptedException {
+      // Register before checking, so that a release in between signals us
+      waiters_.incrementAndGet();
+      waitLock_.lock();
+      try {
+         for (;;) {
+            if (budget_.tryAcquire(permits)) {
+               return true;
+            }
+            if (closed_ || error_.get() != null) {
+               return false;
+            }
+            budgetReleased_.await();
+         }
+      }
+      finally {
+         waitLock_.unlock();
+         waiters_.decrementAndGet();
+      }
+   }
+
+   private void releaseBudget(int permits) {
+      budget_.release(permits);
+      signalWaiters();
+   }
+
+   private void signalWaiters() {
+      if (waiters_.get() > 0) {
+         waitLock_.lock();
+         try {
+            budgetReleased_.signalAll();
+         }
+         finally {
+            waitLock_.unlock();
+         }
+      }
+   }
+
+   /**
+    * Queue a write if the queue has room.
+    *
+    * @param src the data, from its position to its limit; it has been
+    * copied when this method returns (unless it returns null)
+    * @param offset the file offset
+    * @return a completion stage as for {@link #write}, or null if the queue
+    * is full
+    */
+   public CompletionStage<Void> tryWrite(ByteBuffer src, long offset) {
+      int permits = Math.min(src.remaining(), maxQueuedBytes_);
+      if (!budget_.tryAcquire(permits)) {
+         return null;
+      }
+      return enqueue(src, offset, permits);
+   }
+
+   private CompletionStage<Void> rejected() {
+      Throwable error = error_.get();
+      return Async.completedExceptionally(error != null ? error :
+         new IllegalStateException("Write-behind queue closed"));
+   }
+
+   // Called with permits acquired
+   private CompletionStage<Void> enqueue(ByteBuffer src, long offset,
+                                         int permits) {
+      // Register before checking for close, so that close() either rejects
+      // this write or waits for it
+      CompletableFuture<Void> written = new CompletableFuture<>();
+      writing_.add(written);
+      if (closed_ || error_.get() != null) {
+         writing_.remove(written);
+         releaseBudget(permits);
+         return rejected();
+      }
+      long start = System.nanoTime();
+      int size = src.remaining();
+      ByteBuffer copy = pool_.acquire(size);
+      copy.put(src);
+      copy.flip();
+      queuedWrites_.incrementAndGet();
+      peakQueuedBytes_.accumulateAndGet(maxQueuedBytes_ -
+         budget_.availablePermits(), Math::max);
+
+      CompletableFuture<Void> result = new CompletableFuture<>();
+      Async.write(chan_, copy, offset, IOKind.RECORD).whenComplete((v, e) -> {
+         try {
+            pool_.release(copy);
+            releaseBudget(permits);
+            queuedWrites_.decrementAndGet();
+            if (e != null) {
+               error_.compareAndSet(null, e);
+               complete(result, start, e);
+            }
+            else if (durability_ == Durability.GROUP_COMMIT) {
+               synchronized (uncommitted_) {
+                  uncommitted_.add(result);
+               }
+               // Record the start time for latency; completed by commit()
+               result.whenComplete((rv, re) -> recordWrite(start));
+            }
+            else {
+               complete(result, start, null);
+            }
+         }
+         finally {
+            writing_.remove(written);
+            written.complete(null);
+         }
+      });
+      return result;
+   }
+
+   private void complete(CompletableFuture<Void> result, long start,
+                         Throwable e) {
+      recordWrite(start);
+      if (e != null) {
+         result.completeExceptionally(e);
+      }
+      else {
+         result.complete(null);
+      }
+   }
+
+   private void recordWrite(long start) {
+      long nanos = System.nanoTime() - start;
+      completedWrites_.incrementAndGet();
+      totalWriteNanos_.addAndGet(nanos);
+      maxWriteNanos_.accumulateAndGet(nanos, Math::max);
+   }
+
+   // Force once for all writes completed so far; synchronized so that a
+   // flush waits for a concurrent periodic commit
+   private synchronized void commit() {
+      List<CompletableFuture<Void>> group;
+      synchronized (uncommitted_) {
+         if (uncommitted_.isEmpty()) {
+            return;
+         }
+         group = new ArrayList<>(uncommitted_);
+         uncommitted_.clear();
+      }
+      Throwable error = force();
+      for (CompletableFuture<Void> f : group) {
+         if (error != null) {
+            f.completeExceptionally(error);
+         }
+         else {
+            f.complete(null);
+         }
+      }
+   }
+
+   private Throwable force() {
+      long start = System.nanoTime();
+      try {
+         chan_.force(false);
+      }
+      catch (IOException e) {
+         error_.compareAndSet(null, e);
+         signalWaiters();
+         return e;
+      }
+      finally {
+         long nanos = System.nanoTime() - start;
+         forceCount_.incrementAndGet();
+         totalForceNanos_.addAndGet(nanos);
+         maxForceNanos_.accumulateAndGet(nanos, Math::max);
+      }
+      return null;
+   }
+
+   // Wait for the writes (not their commit) queued so far
+   private CompletionStage<Void> drain() {
+      CompletableFuture<?>[] writes = writing_.toArray(new CompletableFuture<?>[0]);
+      return CompletableFuture.allOf(writes).handle((v, e) -> null);
+   }
+
+   /**
+    * Wait for all writes queued so far to complete, then force them to the
+    * device unless the durability policy is {@code NONE}.
+    *
+    * @return a completion stage that completes when done, or exceptionally
+    * if any write has failed
+    */
+   public CompletionStage<Void> flush() {
+      return drain().thenCompose(v -> {
+         if (durability_ == Durability.GROUP_COMMIT) {
+            commit();
+         }
+         else if (durability_ == Durability.ON_CLOSE) {
+            force();
+         }
+         Throwable error = error_.get();
+         return error == null ? CompletableFuture.completedFuture(null) :
+            Async.completedExceptionally(error);
+      });
+   }
+
+   /**
+    * Stop accepting writes and flush.
+    *
+    * The channel is not closed.
+    *
+    * @return a completion stage that completes when all writes have
+    * completed and (unless the durability policy is {@code NONE}) have been
+    * forced to the device
+    */
+   public CompletionStage<Void> close() {
+      Preconditions.checkState(!closed_, "Write-behind queue already closed");
+      closed_ = true;
+      signalWaiters();
+      CompletionStage<Void> flushed = flush();
+      if (committer_ != null) {
+         flushed = flushed.whenComplete((v, e) -> {
+            committer_.shutdown();
+            // Nothing should remain, but never leave a write uncompleted
+            commit();
+         });
+      }
+      return flushed;
+   }
+}
@@ -20,6 +20,11 @@ public enum TiffFieldType {
    SRATIONAL(10, 8, TiffValue.SignedRationals::new),
    FLOAT(11, 4, TiffValue.Floats::new),
    DOUBLE(12, 8, TiffValue.Doubles::new),
+
+   // BigTIFF only
+   LONG8(16, 8, TiffValue.Long8s::new),
+   SLONG8(17, 8, TiffValue.SignedLong8s::new),
+   IFD8(18, 8, TiffValue.IFD8s::new),
    ;
 
    private static final Map<Short, TiffFieldType> VALUES = new HashMap<>();
@@ -53,7 +58,11 @@ public enum TiffFieldType {
    }
 
    public boolean fitsInIFDEntry(int count) {
-      return elementSize_ * count <= 4;
+      return fitsInIFDEntry(count, TiffFormat.CLASSIC);
+   }
+
+   public boolean fitsInIFDEntry(int count, TiffFormat format) {
+      return (long) elementSize_ * count <= format.getOffsetSize();
    }
 
    public TiffValue read(int count, ByteBuffer b) {
@@ -0,0 +1,127 @@
+package org.micromanager.data.internal.io.asynctiff;
+
+import com.google.common.base.Preconditions;
+import org.micromanager.data.internal.io.Unsigned;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The variant of TIFF, which determines the size of offsets and counts.
+ *
+ * Classic TIFF uses 32-bit offsets throughout. BigTIFF (magic 43) uses
+ * 64-bit offsets, 64-bit value counts and entry counts, and 20-byte IFD
+ * entries, so that files larger than 4 GiB can be addressed.
+ */
+public enum TiffFormat {
+   CLASSIC(42, 8, 4, 2, 12),
+   BIGTIFF(43, 16, 8, 8, 20),
+   ;
+
+   private final short magic_;
+   private final int headerSize_;
+   private final int offsetSize_;
+   private final int entryCountSize_;
+   private final int entrySize_;
+
+   TiffFormat(int magic, int headerSize, int offsetSize, int entryCountSize,
+              int entrySize) {
+      magic_ = (short) magic;
+      headerSize_ = headerSize;
+      offsetSize_ = offsetSize;
+      entryCountSize_ = entryCountSize;
+      entrySize_ = entrySize;
+   }
+
+   public static TiffFormat fromMagic(short magic) {
+      for (TiffFormat f : values()) {
+         if (f.magic_ == magic) {
+            return f;
+         }
+      }
+      return null;
+   }
+
+   public short getMagic() {
+      return magic_;
+   }
+
+   public int getHeaderSize() {
+      return headerSize_;
+   }
+
+   /**
+    * Size of file offsets, which is also the size of value counts and of the
+    * value field in an IFD entry.
+    */
+   public int getOffsetSize() {
+      return offsetSize_;
+   }
+
+   public int getEntryCountSize() {
+      return entryCountSize_;
+   }
+
+   public int getEntrySize() {
+      return entrySize_;
+   }
+
+   public int getIFDSize(int entryCount) {
+      return entryCountSize_ + entrySize_ * entryCount + offsetSize_;
+   }
+
+   //
+   //
+   //
+
+   long getOffset(ByteBuffer b) throws TiffFormatException {
+      if (this == CLASSIC) {
+         return Unsigned.from(b.getInt());
+      }
+      long ret = b.getLong();
+      if (ret < 0) {
+         throw new TiffFormatException(String.format(
+            "BigTIFF offset or count too large (0x%016X)", ret));
+      }
+      return ret;
+   }
+
+   void putOffset(ByteBuffer b, long value) {
+      if (this == CLASSIC) {
+         b.putInt(checkClassicOffset(value));
+      }
+      else {
+         b.putLong(value);
+      }
+   }
+
+   void putOffset(ByteBuffer b, int index, long value) {
+      if (this == CLASSIC) {
+         b.putInt(index, checkClassicOffset(value));
+      }
+      else {
+         b.putLong(index, value);
+      }
+   }
+
+   long getEntryCount(ByteBuffer b) throws TiffFormatException {
+      if (this == CLASSIC) {
+         return Unsigned.from(b.getShort());
+      }
+      return getOffset(b);
+   }
+
+   void putEntryCount(ByteBuffer b, int count) {
+      if (this == CLASSIC) {
+         b.putShort((short) count);
+      }
+      else {
+         b.putLong(count);
+      }
+   }
+
+   private static int checkClassicOffset(long value) {
+      Preconditions.checkArgument(value >= 0 && value <= 0xffffffffL,
+         "Offset or count does not fit in classic TIFF (use BigTIFF)");
+      return (int) value;
+   }
+}
@@ -1,65 +1,122 @@
 package org.micromanager.data.internal.io.asynctiff;
 
+import com.google.common.base.Preconditions;
 import org.micromanager.data.internal.io.Async;
+import org.micromanager.data.internal.io.BufferPool;
 import org.micromanager.data.internal.io.BufferedPositionGroup;
+import org.micromanager.data.internal.io.IOKind;
 import org.micromanager.data.internal.io.UnbufferedPosition;
-import org.micromanager.data.internal.io.Unsigned;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.AsynchronousFileChannel;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
 
 public class TiffHeader {
-   private static final int HEADER_SIZE = 8;
+   private static final int CLASSIC_HEADER_SIZE = 8;
    private static final short BIG_ENDIAN_MARK = 0x4D4D; // 'MM'
    private static final short LITTLE_ENDIAN_MARK = 0x4949; // 'II'
-   private static final short TIFF_MAGIC = 42;
+   private static final short BIGTIFF_OFFSET_SIZE = 8;
 
+   private TiffFormat format_;
    private ByteOrder byteOrder_;
    private short magic_;
    private TiffOffsetField firstIFDOffset_;
+   private TiffReadOptions readOptions_ = TiffReadOptions.defaults();
 
    //
    //
    //
 
    public static CompletionStage<TiffHeader> read(AsynchronousFileChannel chan) {
-      ByteBuffer buffer = ByteBuffer.allocateDirect(HEADER_SIZE);
-      return Async.read(chan, buffer, 0).thenComposeAsync(b -> {
-         b.rewind();
-         try {
-            ByteOrder byteOrder = readByteOrder(b);
-            b.order(byteOrder);
-            short magic = readMagic(b);
-            long firstIFDOffset = readIFDOffset(b);
-            return CompletableFuture.completedFuture(
-               new TiffHeader(byteOrder, magic, firstIFDOffset));
-         }
-         catch (IOException e) {
-            return Async.completedExceptionally(e);
-         }
-      });
+      return read(chan, TiffReadOptions.defaults());
+   }
+
+   /**
+    * Read the TIFF header.
+    *
+    * @param chan the asynchronous file channel
+    * @param options options used when reading IFDs via the returned header
+    * @return a completion stage bearing the header
+    */
+   public static CompletionStage<TiffHeader> read(AsynchronousFileChannel chan,
+                                                  TiffReadOptions options) {
+      // The first 8 bytes tell us the format; BigTIFF needs 8 more bytes
+      BufferPool pool = options.getBufferPool();
+      Executor executor = options.getExecutor();
+      ByteBuffer buffer = pool.acquire(CLASSIC_HEADER_SIZE);
+      return Async.read(chan, buffer, 0, IOKind.HEADER).
+         thenComposeAsync(b -> {
+            b.rewind();
+            try {
+               ByteOrder byteOrder = readByteOrder(b);
+               b.order(byteOrder);
+               TiffFormat format = readFormat(b);
+               if (format == TiffFormat.CLASSIC) {
+                  long firstIFDOffset = readIFDOffset(b, format);
+                  return CompletableFuture.completedFuture(
+                     new TiffHeader(format, byteOrder, firstIFDOffset, options));
+               }
+               readBigTiffOffsetSize(b);
+               ByteBuffer offsetBuffer = pool.acquire(format.getOffsetSize()).
+                  order(byteOrder);
+               return Async.read(chan, offsetBuffer, CLASSIC_HEADER_SIZE,
+                  IOKind.HEADER).
+                  thenComposeAsync(ob -> {
+                     ob.rewind();
+                     try {
+                        long firstIFDOffset = readIFDOffset(ob, format);
+                        return CompletableFuture.completedFuture(
+                           new TiffHeader(format, byteOrder, firstIFDOffset, options));
+                     }
+                     catch (IOException e) {
+                        return Async.completedExceptionally(e);
+                     }
+                  }, executor).
+                  whenComplete((h, e) -> pool.release(offsetBuffer));
+            }
+            catch (IOException e) {
+               return Async.completedExceptionally(e);
+            }
+         }, executor).
+         whenComplete((h, e) -> pool.release(buffer));
    }
 
    public static TiffHeader createForWrite(ByteOrder order, TiffOffsetField firstIFDOffsetField) {
-      return new TiffHeader(order, firstIFDOffsetField);
+      return createForWrite(TiffFormat.CLASSIC, order, firstIFDOffsetField);
+   }
+
+   public static TiffHeader createForWrite(TiffFormat format, ByteOrder order,
+                                           TiffOffsetField firstIFDOffsetField) {
+      Preconditions.checkArgument(firstIFDOffsetField.getFormat() == format,
+         "FirstIFDOffset field must match the TIFF format");
+      return new TiffHeader(format, order, firstIFDOffsetField);
    }
 
    // Read
-   private TiffHeader(ByteOrder order, short magic, long firstIFDOffset) {
+   private TiffHeader(TiffFormat format, ByteOrder order, long firstIFDOffset,
+                      TiffReadOptions options) {
+      readOptions_ = options;
+      format_ = format;
       byteOrder_ = order;
-      magic_ = magic;
-      firstIFDOffset_ = TiffOffsetField.forOffsetValue(UnbufferedPosition.at(firstIFDOffset),
+      magic_ = format.getMagic();
+      firstIFDOffset_ = TiffOffsetField.forOffsetValue(format,
+         UnbufferedPosition.at(firstIFDOffset),
          "Read-only FirstIFDOffset");
    }
 
    // Writing
-   private TiffHeader(ByteOrder order, TiffOffsetField firstIFDOffsetField) {
+   private TiffHeader(TiffFormat format, ByteOrder order,
+                      TiffOffsetField firstIFDOffsetField) {
+      format_ = format;
       byteOrder_ = order;
-      magic_ = TIFF_MAGIC;
+      magic_ = format.getMagic();
       firstIFDOffset_ = firstIFDOffsetField;
    }
 
@@ -80,17 +137,28 @@ public class TiffHeader {
       }
    }
 
-   private static short readMagic(ByteBuffer b) throws TiffFormatException {
+   private static TiffFormat readFormat(ByteBuffer b) throws TiffFormatException {
       short magic = b.getShort();
-      if (magic != TIFF_MAGIC) {
+      TiffFormat format = TiffFormat.fromMagic(magic);
+      if (format == null) {
          throw new TiffFormatException(String.format(
-            "Incorrect TIFF header magic (expected 0x002A, got 0x%04X)", magic));
+            "Incorrect TIFF header magic (expected 0x002A or 0x002B, got 0x%04X)", magic));
       }
-      return magic;
+      return format;
    }
 
-   private static long readIFDOffset(ByteBuffer b) throws IOException {
-      long ifdOffset = Unsigned.from(b.getInt());
+   private static void readBigTiffOffsetSize(ByteBuffer b) throws TiffFormatException {
+      short offsetSize = b.getShort();
+      short reserved = b.getShort();
+      if (offsetSize != BIGTIFF_OFFSET_SIZE || reserved != 0) {
+         throw new TiffFormatException(String.format(
+            "Unsupported BigTIFF offset size (%d) or reserved field (0x%04X)",
+            offsetSize, reserved));
+      }
+   }
+
+   private static long readIFDOffset(ByteBuffer b, TiffFormat format) throws IOException {
+      long ifdOffset = format.getOffset(b);
       if (ifdOffset % 2 != 0) { // TIFF spec saysIFD must begin on a word boundary
          throw new TiffFormatException(String.format(
             "Incorrect TIFF IFD offset (must be word-aligned; got 0x%08X)",
@@ -111,8 +179,77 @@ public class TiffHeader {
       return magic_;
    }
 
+   public TiffFormat getTiffFormat() {
+      return format_;
+   }
+
+   public TiffReadOptions getReadOptions() {
+      return readOptions_;
+   }
+
+   public long getFirstIFDOffset() {
+      return firstIFDOffset_.getOffsetValue().get();
+   }
+
    public CompletionStage<TiffIFD> readFirstIFD(AsynchronousFileChannel chan) {
-      return TiffIFD.read(chan, byteOrder_, firstIFDOffset_.getOffsetValue().get());
+      return TiffIFD.read(chan, format_, byteOrder_,
+         firstIFDOffset_.getOffsetValue().get(), readOptions_);
+   }
+
+   /**
+    * Read every IFD in the chain, in order.
+    *
+    * The visitor is called with the file offset of each IFD and the IFD; the
+    * next IFD is not read until the completion stage returned by the visitor
+    * has completed.
+    *
+    * @param chan the asynchronous file channel
+    * @param visitor function called for each IFD
+    * @return a completion stage that completes after the last IFD is visited
+    */
+   public CompletionStage<Void> forEachIFD(AsynchronousFileChannel chan,
+                                           BiFunction<Long, TiffIFD, CompletionStage<Void>> visitor) {
+      CompletableFuture<Void> done = new CompletableFuture<>();
+      visitIFDChain(chan, getFirstIFDOffset(), new HashSet<>(), visitor, done);
+      return done;
+   }
+
+   // Iterate while each IFD is available synchronously (e.g. from a mapped
+   // channel with a direct executor), so that the stack does not grow with
+   // the chain; continue from a callback only when a read is pending
+   private void visitIFDChain(AsynchronousFileChannel chan, long offset,
+                              Set<Long> visited,
+                              BiFunction<Long, TiffIFD, CompletionStage<Void>> visitor,
+                              CompletableFuture<Void> done) {
+      for (;;) {
+         if (offset == 0) {
+            done.complete(null);
+            return;
+         }
+         if (!visited.add(offset)) {
+            done.completeExceptionally(new TiffFormatException(String.format(
+               "TIFF IFD chain contains a loop (at offset 0x%X)", offset)));
+            return;
+         }
+         long ifdOffset = offset;
+         CompletableFuture<Long> next = TiffIFD.read(chan, format_, byteOrder_,
+            ifdOffset, readOptions_).
+            thenCompose(ifd -> visitor.apply(ifdOffset, ifd).
+               thenApply(v -> ifd.getNextIFDOffset())).
+            toCompletableFuture();
+         if (!next.isDone() || next.isCompletedExceptionally()) {
+            next.whenComplete((n, t) -> {
+               if (t != null) {
+                  done.completeExceptionally(t);
+               }
+               else {
+                  visitIFDChain(chan, n, visited, visitor, done);
+               }
+            });
+            return;
+         }
+         offset = next.join();
+      }
    }
 
    //
@@ -120,15 +257,20 @@ public class TiffHeader {
    //
 
    public CompletionStage<Void> write(AsynchronousFileChannel chan) {
-      ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(byteOrder_);
+      BufferPool pool = BufferPool.getDefault();
+      ByteBuffer buffer = pool.acquire(format_.getHeaderSize()).order(byteOrder_);
       write(buffer);
       buffer.rewind();
-      return Async.write(chan, buffer, 0);
+      return Async.write(chan, buffer, 0, IOKind.HEADER).
+         whenComplete((v, e) -> pool.release(buffer));
    }
 
    public void write(ByteBuffer dest) {
       dest.putShort(byteOrder_.equals(ByteOrder.BIG_ENDIAN) ? BIG_ENDIAN_MARK : LITTLE_ENDIAN_MARK).
-         putShort(TIFF_MAGIC);
+         putShort(magic_);
+      if (format_ == TiffFormat.BIGTIFF) {
+         dest.putShort(BIGTIFF_OFFSET_SIZE).putShort((short) 0);
+      }
       BufferedPositionGroup posGroup = BufferedPositionGroup.forBufferAt(0);
       firstIFDOffset_.write(dest, posGroup);
    }
@@ -1,10 +1,15 @@
 package org.micromanager.data.internal.io.asynctiff;
 
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import org.micromanager.data.internal.io.AppendCursor;
 import org.micromanager.data.internal.io.Async;
+import org.micromanager.data.internal.io.BufferPool;
 import org.micromanager.data.internal.io.BufferedPositionGroup;
+import org.micromanager.data.internal.io.FlightRecorderEvents;
+import org.micromanager.data.internal.io.IOKind;
+import org.micromanager.data.internal.io.MappedFileChannel;
 import org.micromanager.data.internal.io.UnbufferedPosition;
-import org.micromanager.data.internal.io.Unsigned;
 
 import java.io.EOFException;
 import java.io.IOException;
@@ -14,117 +19,275 @@ import java.nio.channels.AsynchronousFileChannel;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
-import java.util.function.Function;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
 
 public class TiffIFD {
-   private static final int ENTRY_COUNT_SIZE = 2;
-   private static final int ENTRY_SIZE = 12;
-   private static final int NEXT_IFD_OFFSET_SIZE = 4;
-
+   private final TiffFormat format_;
    private final ByteOrder byteOrder_;
    private final List<TiffIFDEntry> entries_;
    private final TiffOffsetField nextIFDOffset_;
+   private final TiffReadOptions readOptions_;
 
    //
    //
    //
 
    public static CompletionStage<TiffIFD> read(AsynchronousFileChannel chan, ByteOrder order, long offset) {
-      ByteBuffer countBuffer = ByteBuffer.allocate(ENTRY_COUNT_SIZE).order(order);
-      return Async.read(chan, countBuffer, offset).
+      return read(chan, TiffFormat.CLASSIC, order, offset);
+   }
+
+   public static CompletionStage<TiffIFD> read(AsynchronousFileChannel chan,
+                                               TiffFormat format,
+                                               ByteOrder order, long offset) {
+      return read(chan, format, order, offset, TiffReadOptions.defaults());
+   }
+
+   public static CompletionStage<TiffIFD> read(AsynchronousFileChannel chan,
+                                               TiffFormat format,
+                                               ByteOrder order, long offset,
+                                               TiffReadOptions options) {
+      FlightRecorderEvents.Event event = FlightRecorderEvents.OPERATION.begin();
+      CompletionStage<TiffIFD> ifd = readUntraced(chan, format, order, offset,
+         options);
+      if (event != null) {
+         FlightRecorderEvents.commitOperation(event, ifd, "TiffIFD.read",
+            offset, i -> format.getIFDSize(i.getEntries().size()));
+      }
+      return ifd;
+   }
+
+   private static CompletionStage<TiffIFD> readUntraced(AsynchronousFileChannel chan,
+                                                        TiffFormat format,
+                                                        ByteOrder order, long offset,
+                                                        TiffReadOptions options) {
+      if (options.getReadAheadSize() > 0) {
+         return readSpeculatively(chan, format, order, offset, options);
+      }
+      BufferPool pool = options.getBufferPool();
+      Executor executor = options.getExecutor();
+      ByteBuffer countBuffer = pool.acquire(format.getEntryCountSize()).order(order);
+      return Async.read(chan, countBuffer, offset, IOKind.IFD).
          thenComposeAsync(cb -> {
             cb.rewind();
-            int entryCount = Unsigned.from(cb.getShort());
-            int remainingSize = entryCount * ENTRY_SIZE + NEXT_IFD_OFFSET_SIZE;
-            ByteBuffer bodyBuffer = ByteBuffer.allocateDirect(remainingSize).order(order);
-            return Async.read(chan, bodyBuffer, offset + ENTRY_COUNT_SIZE).
+            int entryCount;
+            try {
+               entryCount = checkEntryCount(format.getEntryCount(cb));
+            }
+            catch (IOException e) {
+               return Async.completedExceptionally(e);
+            }
+            int remainingSize = format.getIFDSize(entryCount) -
+               format.getEntryCountSize();
+            ByteBuffer bodyBuffer = pool.acquire(remainingSize).order(order);
+            return Async.read(chan, bodyBuffer,
+               offset + format.getEntryCountSize(), IOKind.IFD).
                thenComposeAsync(bb -> {
                   bb.rewind();
                   try {
                      return CompletableFuture.completedFuture(
-                        readEntriesAndNextOffset(bb, entryCount));
+                        readEntriesAndNextOffset(bb, format, entryCount, options));
                   }
                   catch (IOException e) {
                      return Async.completedExceptionally(e);
                   }
-               });
-         });
+               }, executor).
+               whenComplete((ifd, e) -> pool.release(bodyBuffer));
+         }, executor).
+         whenComplete((ifd, e) -> pool.release(countBuffer));
    }
 
    public static TiffIFD read(ByteBuffer b) throws IOException {
-      int entryCount = Unsigned.from(b.getShort());
-      if (entryCount * ENTRY_SIZE + NEXT_IFD_OFFSET_SIZE > b.remaining()) {
+      return read(b, TiffFormat.CLASSIC);
+   }
+
+   public static TiffIFD read(ByteBuffer b, TiffFormat format) throws IOException {
+      return read(b, format, TiffReadOptions.defaults());
+   }
+
+   private static TiffIFD read(ByteBuffer b, TiffFormat format,
+                               TiffReadOptions options) throws IOException {
+      int entryCount = checkEntryCount(format.getEntryCount(b));
+      if (format.getIFDSize(entryCount) - format.getEntryCountSize() > b.remaining()) {
          throw new EOFException();
       }
-      return readEntriesAndNextOffset(b, entryCount);
+      return readEntriesAndNextOffset(b, format, entryCount, options);
+   }
+
+   // Read a fixed-size block at the IFD offset, in the hope that it contains
+   // the whole IFD (and possibly some of its values), so that usually only a
+   // single read is needed.
+   private static CompletionStage<TiffIFD> readSpeculatively(AsynchronousFileChannel chan,
+                                                             TiffFormat format,
+                                                             ByteOrder order, long offset,
+                                                             TiffReadOptions options) {
+      BufferPool pool = options.getBufferPool();
+      Executor executor = options.getExecutor();
+      ByteBuffer block = pool.acquire(options.getReadAheadSize()).order(order);
+      return Async.readAtMost(chan, block, offset, IOKind.IFD).
+         thenComposeAsync(b -> {
+            b.flip();
+            try {
+               if (b.remaining() < format.getEntryCountSize()) {
+                  throw new EOFException();
+               }
+               int entryCount = checkEntryCount(format.getEntryCount(b));
+               int ifdSize = format.getIFDSize(entryCount);
+               b.rewind();
+               if (ifdSize <= b.limit()) {
+                  return CompletableFuture.completedFuture(
+                     readAndPrefetchValues(b, offset, format, options));
+               }
+
+               // The IFD is larger than the block; read the remainder
+               ByteBuffer whole = pool.acquire(ifdSize).order(order);
+               whole.put(b);
+               return Async.read(chan, whole, offset + b.limit(), IOKind.IFD).
+                  thenComposeAsync(w -> {
+                     w.rewind();
+                     try {
+                        return CompletableFuture.completedFuture(
+                           readAndPrefetchValues(w, offset, format, options));
+                     }
+                     catch (IOException e) {
+                        return Async.completedExceptionally(e);
+                     }
+                  }, executor).
+                  whenComplete((ifd, e) -> pool.release(whole));
+            }
+            catch (IOException e) {
+               return Async.completedExceptionally(e);
+            }
+         }, executor).
+         whenComplete((ifd, e) -> pool.release(block));
+   }
+
+   private static TiffIFD readAndPrefetchValues(ByteBuffer b, long offset,
+                                                TiffFormat format,
+                                                TiffReadOptions options) throws IOException {
+      ByteBuffer block = b.duplicate().order(b.order());
+      TiffIFD ifd = read(b, format, options);
+      for (TiffIFDEntry entry : ifd.entries_) {
+         entry.prefetchValue(block, offset);
+      }
+      return ifd;
    }
 
-   private static TiffIFD readEntriesAndNextOffset(ByteBuffer b, int entryCount) throws IOException {
+   private static int checkEntryCount(long entryCount) throws TiffFormatException {
+      if (entryCount > 0xffff) {
+         throw new TiffFormatException(String.format(
+            "Unsupported TIFF IFD entry count (%d)", entryCount));
+      }
+      return (int) entryCount;
+   }
+
+   private static TiffIFD readEntriesAndNextOffset(ByteBuffer b, TiffFormat format,
+                                                   int entryCount,
+                                                   TiffReadOptions options) throws IOException {
       List<TiffIFDEntry> entries = new ArrayList<>();
       for (int i = 0; i < entryCount; ++i) {
-         entries.add(TiffIFDEntry.read(b));
+         entries.add(TiffIFDEntry.read(b, format, options));
       }
-      long nextIFDOffset = Unsigned.from(b.getInt());
-      return new TiffIFD(b.order(), entries, nextIFDOffset);
+      long nextIFDOffset = format.getOffset(b);
+      return new TiffIFD(format, b.order(), entries, nextIFDOffset, options);
    }
 
    public static TiffIFD createForWrite(ByteOrder order, Collection<TiffIFDEntry> entries,
                                         TiffOffsetField nextIFDOffsetField) {
-      return new TiffIFD(order, entries, nextIFDOffsetField);
+      return createForWrite(TiffFormat.CLASSIC, order, entries, nextIFDOffsetField);
+   }
+
+   public static TiffIFD createForWrite(TiffFormat format, ByteOrder order,
+                                        Collection<TiffIFDEntry> entries,
+                                        TiffOffsetField nextIFDOffsetField) {
+      return new TiffIFD(format, order, entries, nextIFDOffsetField);
    }
 
    public static Builder builder(ByteOrder order, TiffOffsetField nextIFDOffsetField, TiffOffsetFieldGroup ifdFieldGroup) {
-      return new Builder(order, nextIFDOffsetField, ifdFieldGroup);
+      return builder(TiffFormat.CLASSIC, order, nextIFDOffsetField, ifdFieldGroup);
+   }
+
+   public static Builder builder(TiffFormat format, ByteOrder order,
+                                 TiffOffsetField nextIFDOffsetField,
+                                 TiffOffsetFieldGroup ifdFieldGroup) {
+      return new Builder(format, order, nextIFDOffsetField, ifdFieldGroup);
    }
 
    public static class Builder {
+      private final TiffFormat format_;
       private final ByteOrder order_;
       private final TiffOffsetField nextIFDOffset_;
       private final TiffOffsetFieldGroup ifdFieldGroup_;
       private List<TiffIFDEntry> entries_ = new ArrayList<>();
 
-      private Builder(ByteOrder order, TiffOffsetField nextIFDOffsetField, TiffOffsetFieldGroup ifdFieldGroup) {
+      private Builder(TiffFormat format, ByteOrder order,
+                      TiffOffsetField nextIFDOffsetField,
+                      TiffOffsetFieldGroup ifdFieldGroup) {
+         format_ = format;
          order_ = order;
          nextIFDOffset_ = nextIFDOffsetField;
          ifdFieldGroup_ = ifdFieldGroup;
       }
 
       public Builder entry(TiffTag tag, TiffValue value) {
-         entries_.add(TiffIFDEntry.createForWrite(order_, tag, value, ifdFieldGroup_));
+         entries_.add(TiffIFDEntry.createForWrite(format_, order_, tag, value, ifdFieldGroup_));
          return this;
       }
 
       public TiffIFD build() {
-         return createForWrite(order_, entries_, nextIFDOffset_);
+         return createForWrite(format_, order_, entries_, nextIFDOffset_);
       }
    }
 
    // Read
-   private TiffIFD(ByteOrder order, List<TiffIFDEntry> entries, long nextIFDOffset) {
+   private TiffIFD(TiffFormat format, ByteOrder order, List<TiffIFDEntry> entries,
+                   long nextIFDOffset, TiffReadOptions options) {
+      format_ = format;
       byteOrder_ = order;
       entries_ = ImmutableList.copyOf(entries);
-      nextIFDOffset_ = TiffOffsetField.forOffsetValue(
+      nextIFDOffset_ = TiffOffsetField.forOffsetValue(format,
          UnbufferedPosition.at(nextIFDOffset),
          "Read-only NextIFDOffset");
+      readOptions_ = options;
    }
 
    // Writing
-   private TiffIFD(ByteOrder order, Collection<TiffIFDEntry> entries, TiffOffsetField nextIFDOffsetField) {
+   private TiffIFD(TiffFormat format, ByteOrder order,
+                   Collection<TiffIFDEntry> entries,
+                   TiffOffsetField nextIFDOffsetField) {
+      Preconditions.checkArgument(nextIFDOffsetField.getFormat() == format,
+         "NextIFDOffset field must match the TIFF format");
+      format_ = format;
       byteOrder_ = order;
       List<TiffIFDEntry> sortEntries = new ArrayList<>(entries);
       sortEntries.sort(Comparator.comparingInt(e -> e.getTag().getTiffConstant()));
       entries_ = ImmutableList.copyOf(sortEntries);
       nextIFDOffset_ = nextIFDOffsetField;
+      readOptions_ = TiffReadOptions.defaults();
    }
 
    //
    //
    //
 
+   public TiffFormat getTiffFormat() {
+      return format_;
+   }
+
+   public ByteOrder getTiffByteOrder() {
+      return byteOrder_;
+   }
+
+   public TiffReadOptions getReadOptions() {
+      return readOptions_;
+   }
+
    public List<TiffIFDEntry> getEntries() {
       return entries_;
    }
@@ -164,16 +327,103 @@ public class TiffIFD {
          collect(Collectors.toList());
    }
 
+   /**
+    * Read the values of all entries.
+    *
+    * @param chan the asynchronous file channel
+    * @return a completion stage bearing the values, keyed by entry
+    * @see #readValues(AsynchronousFileChannel, Collection)
+    */
+   public CompletionStage<Map<TiffIFDEntry, TiffValue>> readValues(AsynchronousFileChannel chan) {
+      return readValues(chan, entries_);
+   }
+
+   /**
+    * Read the values of the given entries, batching the I/O.
+    *
+    * Out-of-line values lying within {@link TiffReadOptions#getMaxValueReadGap}
+    * bytes of each other are fetched with a single read, and the reads for
+    * separate groups are issued concurrently. The values are retained by the
+    * entries, so that later calls to {@link TiffIFDEntry#readValue} complete
+    * without I/O.
+    *
+    * @param chan the asynchronous file channel
+    * @param entries entries of this IFD
+    * @return a completion stage bearing the values, keyed by entry
+    */
+   public CompletionStage<Map<TiffIFDEntry, TiffValue>> readValues(AsynchronousFileChannel chan,
+                                                                  Collection<TiffIFDEntry> entries) {
+      if (chan instanceof MappedFileChannel) {
+         // Mapped values are read without I/O, so there is nothing to batch
+         return collectValues(chan, entries);
+      }
+
+      List<TiffIFDEntry.Pointer> pointers = entries.stream().
+         filter(e -> e instanceof TiffIFDEntry.Pointer).
+         map(e -> (TiffIFDEntry.Pointer) e).
+         filter(p -> !p.hasValue()).
+         sorted(Comparator.comparingLong(TiffIFDEntry.Pointer::getValueOffset)).
+         collect(Collectors.toList());
+
+      List<CompletableFuture<?>> reads = new ArrayList<>();
+      int maxGap = readOptions_.getMaxValueReadGap();
+      BufferPool pool = readOptions_.getBufferPool();
+      int i = 0;
+      while (i < pointers.size()) {
+         long start = pointers.get(i).getValueOffset();
+         long end = start + pointers.get(i).getValueByteCount();
+         int j = i + 1;
+         while (j < pointers.size() && pointers.get(j).getValueOffset() <= end + maxGap &&
+               Math.max(end, pointers.get(j).getValueOffset() +
+                  pointers.get(j).getValueByteCount()) - start <= Integer.MAX_VALUE) {
+            end = Math.max(end, pointers.get(j).getValueOffset() +
+               pointers.get(j).getValueByteCount());
+            ++j;
+         }
+         List<TiffIFDEntry.Pointer> group = pointers.subList(i, j);
+         ByteBuffer buffer = pool.acquire((int) (end - start)).order(byteOrder_);
+         reads.add(Async.read(chan, buffer, start, IOKind.VALUE).thenAccept(b -> {
+            for (TiffIFDEntry.Pointer p : group) {
+               p.prefetchValue(b, start);
+            }
+         }).whenComplete((v, e) -> pool.release(buffer)).toCompletableFuture());
+         i = j;
+      }
+
+      return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0])).
+         thenCompose(v -> collectValues(chan, entries));
+   }
+
+   // Completes immediately if all values are available without I/O
+   private static CompletionStage<Map<TiffIFDEntry, TiffValue>> collectValues(
+      AsynchronousFileChannel chan, Collection<TiffIFDEntry> entries) {
+      Map<TiffIFDEntry, TiffValue> ret = new LinkedHashMap<>();
+      CompletionStage<Void> stage = CompletableFuture.completedFuture(null);
+      for (TiffIFDEntry e : entries) {
+         stage = stage.thenCombine(e.readValue(chan),
+            (v, value) -> {
+               ret.put(e, value);
+               return null;
+            });
+      }
+      return stage.thenApply(v -> ret);
+   }
+
    public boolean hasNextIFD() {
       return nextIFDOffset_.getOffsetValue().get() != 0;
    }
 
+   public long getNextIFDOffset() {
+      return nextIFDOffset_.getOffsetValue().get();
+   }
+
    public CompletionStage<TiffIFD> readNextIFD(AsynchronousFileChannel chan) throws IOException {
       // TODO Or should we re-read the NextIFDOffset?
       if (!hasNextIFD()) {
          throw new EOFException();
       }
-      return TiffIFD.read(chan, byteOrder_, nextIFDOffset_.getOffsetValue().get());
+      return TiffIFD.read(chan, format_, byteOrder_,
+         nextIFDOffset_.getOffsetValue().get(), readOptions_);
    }
 
 
@@ -181,46 +431,100 @@ public class TiffIFD {
    //
    //
 
-   private CompletionStage<Boolean> isSingleStrip(AsynchronousFileChannel chan) {
-      try {
-         CompletionStage<TiffValue> getImageLength = getRequiredEntryWithTag(
-            TiffTag.Known.ImageLength.get()).readValue(chan);
-         CompletionStage<TiffValue> getRowsPerStrip = getRequiredEntryWithTag(
-            TiffTag.Known.RowsPerStrip.get()).readValue(chan);
-         return getImageLength.thenCombine(getRowsPerStrip,
-               (length, rows) -> length.longValue(0) == rows.longValue(0));
-      }
-      catch (IOException e) {
-         return Async.completedExceptionally(e);
+   /**
+    * Read the pixel data.
+    *
+    * Images stored in strips or tiles are supported, as long as they are
+    * uncompressed. The strip or tile reads are issued concurrently, with
+    * blocks that are contiguous in the file merged into a single read.
+    *
+    * The returned buffer is acquired from the buffer pool of the read
+    * options (see {@link TiffReadOptions#getBufferPool}). The caller may
+    * release it to that pool when done with it.
+    *
+    * If {@code chan} is a {@link MappedFileChannel} and the pixels are
+    * stored contiguously, the returned buffer is instead a read-only view of
+    * the mapping, in this IFD's byte order, and no data is copied.
+    *
+    * @param chan the asynchronous file channel
+    * @return a completion stage bearing a new buffer holding the pixels,
+    * positioned at zero
+    */
+   public CompletionStage<ByteBuffer> readPixels(AsynchronousFileChannel chan) {
+      FlightRecorderEvents.Event event = FlightRecorderEvents.OPERATION.begin();
+      CompletionStage<ByteBuffer> pixels = readPixelsUntraced(chan);
+      if (event != null) {
+         FlightRecorderEvents.commitOperation(event, pixels,
+            "TiffIFD.readPixels", -1, ByteBuffer::remaining);
       }
+      return pixels;
    }
 
-   public CompletionStage<ByteBuffer> readPixels(AsynchronousFileChannel chan) {
-      return isSingleStrip(chan).thenComposeAsync(ok ->
-         ok ? readPixelsSingleStrip(chan) :
-            Async.completedExceptionally(new TiffFormatException(
-               "Only images stored in a single strip are currently supported")));
-   }
-
-   private CompletionStage<ByteBuffer> readPixelsSingleStrip(AsynchronousFileChannel chan) {
-      try {
-         CompletionStage<TiffValue> getStripOffsets = getRequiredEntryWithTag(
-            TiffTag.Known.StripOffsets.get()).readValue(chan);
-         CompletionStage<TiffValue> getStripByteCounts = getRequiredEntryWithTag(
-            TiffTag.Known.StripByteCounts.get()).readValue(chan);
-         return getStripOffsets.thenCombine(getStripByteCounts,
-            (offsets, sizes) -> readBlock(chan, offsets.longValue(0), sizes.longValue(0))).
-            thenCompose(Function.identity());
-      }
-      catch (IOException e) {
-         return Async.completedExceptionally(e);
+   private CompletionStage<ByteBuffer> readPixelsUntraced(AsynchronousFileChannel chan) {
+      BufferPool pool = readOptions_.getBufferPool();
+      Executor executor = readOptions_.getExecutor();
+      return TiffPixelLayout.read(this, chan).thenComposeAsync(layout -> {
+         if (chan instanceof MappedFileChannel && layout.getContiguousOffset() >= 0) {
+            try {
+               ByteBuffer view = ((MappedFileChannel) chan).view(
+                  layout.getContiguousOffset(), (int) layout.getPixelByteCount());
+               if (view != null) {
+                  return CompletableFuture.completedFuture(view.order(byteOrder_));
+               }
+            }
+            catch (IOException e) {
+               return Async.completedExceptionally(e);
+            }
+         }
+         ByteBuffer buffer = pool.acquire((int) layout.getPixelByteCount());
+         return layout.read(chan, buffer).handle((b, e) -> {
+            if (e != null) {
+               pool.release(buffer);
+               throw new CompletionException(e);
+            }
+            b.rewind();
+            return b;
+         });
+      }, executor);
+   }
+
+   /**
+    * Read the pixel data into a caller-supplied buffer.
+    *
+    * The pixels are stored starting at the position of {@code dest}, which
+    * may be a heap or direct buffer, or a slice of a larger buffer. This
+    * allows callers to reuse buffers rather than allocating one per image.
+    *
+    * @param chan the asynchronous file channel
+    * @param dest the destination buffer, which must have at least
+    * {@link #readPixelByteCount} bytes remaining
+    * @return a completion stage bearing {@code dest}, with its position
+    * advanced past the pixels
+    */
+   public CompletionStage<ByteBuffer> readPixels(AsynchronousFileChannel chan,
+                                                 ByteBuffer dest) {
+      FlightRecorderEvents.Event event = FlightRecorderEvents.OPERATION.begin();
+      int start = dest.position();
+      CompletionStage<ByteBuffer> pixels = TiffPixelLayout.read(this, chan).
+         thenComposeAsync(layout -> layout.read(chan, dest),
+            readOptions_.getExecutor());
+      if (event != null) {
+         FlightRecorderEvents.commitOperation(event, pixels,
+            "TiffIFD.readPixels", -1, b -> b.position() - start);
       }
+      return pixels;
    }
 
-   private CompletionStage<ByteBuffer> readBlock(AsynchronousFileChannel chan,
-                                                 long offset, long size) {
-      ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
-      return Async.read(chan, buffer, offset);
+   /**
+    * Determine the size of the pixel data, as returned by
+    * {@link #readPixels}.
+    *
+    * @param chan the asynchronous file channel
+    * @return a completion stage bearing the size in bytes
+    */
+   public CompletionStage<Integer> readPixelByteCount(AsynchronousFileChannel chan) {
+      return TiffPixelLayout.read(this, chan).
+         thenApply(layout -> (int) layout.getPixelByteCount());
    }
 
    //
@@ -228,29 +532,39 @@ public class TiffIFD {
    //
 
    public CompletionStage<Long> write(AsynchronousFileChannel chan) {
-      ByteBuffer buffer = ByteBuffer.allocate(
-         ENTRY_COUNT_SIZE + ENTRY_SIZE * entries_.size() + NEXT_IFD_OFFSET_SIZE).
-         order(byteOrder_);
+      return AppendCursor.forChannel(chan).
+         thenCompose(cursor -> write(chan, cursor));
+   }
+
+   /**
+    * Write this IFD to a region reserved from the cursor.
+    *
+    * The values of the entries are not written; see
+    * {@link TiffIFDEntry#writeValue(AsynchronousFileChannel, AppendCursor)}.
+    *
+    * @param chan the asynchronous file channel
+    * @param cursor the append cursor for the file
+    * @return a completion stage bearing the file offset of the IFD
+    */
+   public CompletionStage<Long> write(AsynchronousFileChannel chan,
+                                      AppendCursor cursor) {
+      BufferPool pool = BufferPool.getDefault();
+      int size = format_.getIFDSize(entries_.size());
+      ByteBuffer buffer = pool.acquire(size).order(byteOrder_);
       BufferedPositionGroup posGroup = BufferedPositionGroup.create();
       write(buffer, posGroup);
+      buffer.rewind();
 
-      return Async.pad(chan, 4).
-         thenCompose(v -> {
-            try {
-               long offset = chan.size();
-               posGroup.setBufferFileOffset(offset);
-               return Async.write(chan, buffer, offset).
-                  thenApply(v2 -> offset);
-            }
-            catch (IOException e) {
-               return Async.completedExceptionally(e);
-            }
-         });
+      long offset = cursor.reserve(size, 4);
+      posGroup.setBufferFileOffset(offset);
+      return Async.write(chan, buffer, offset, IOKind.IFD).
+         thenApply(v -> offset).
+         whenComplete((o, e) -> pool.release(buffer));
    }
 
    public int write(ByteBuffer dest, BufferedPositionGroup posGroup) {
       int pos = dest.position();
-      dest.putShort((short) entries_.size());
+      format_.putEntryCount(dest, entries_.size());
       for (TiffIFDEntry entry : entries_) {
          entry.write(dest, posGroup);
       }
@@ -1,8 +1,13 @@
 package org.micromanager.data.internal.io.asynctiff;
 
 import org.micromanager.data.internal.io.Alignment;
+import org.micromanager.data.internal.io.AppendCursor;
 import org.micromanager.data.internal.io.Async;
+import org.micromanager.data.internal.io.BufferPool;
 import org.micromanager.data.internal.io.BufferedPositionGroup;
+import org.micromanager.data.internal.io.FlightRecorderEvents;
+import org.micromanager.data.internal.io.IOKind;
+import org.micromanager.data.internal.io.MappedFileChannel;
 import org.micromanager.data.internal.io.UnbufferedPosition;
 import org.micromanager.data.internal.io.Unsigned;
 
@@ -15,6 +20,7 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 
 public abstract class TiffIFDEntry {
+   protected final TiffFormat format_;
    protected final ByteOrder byteOrder_;
    private final TiffTag tag_;
    private final TiffFieldType type_;
@@ -25,40 +31,69 @@ public abstract class TiffIFDEntry {
    //
 
    public static TiffIFDEntry read(ByteBuffer b) throws TiffFormatException, EOFException {
+      return read(b, TiffFormat.CLASSIC);
+   }
+
+   public static TiffIFDEntry read(ByteBuffer b, TiffFormat format)
+      throws TiffFormatException, EOFException {
+      return read(b, format, TiffReadOptions.defaults());
+   }
+
+   // Out-of-line values are later read using the buffer pool and executor
+   // given by the options
+   static TiffIFDEntry read(ByteBuffer b, TiffFormat format,
+                            TiffReadOptions options)
+      throws TiffFormatException, EOFException {
       TiffTag tag = TiffTag.fromTiffConstant(Unsigned.from(b.getShort()));
-      TiffFieldType type = TiffFieldType.fromTiffConstant(Unsigned.from(b.getShort()));
+      int typeConstant = Unsigned.from(b.getShort());
+      TiffFieldType type = TiffFieldType.fromTiffConstant(typeConstant);
+      if (type == null) {
+         throw new TiffFormatException(String.format(
+            "Unknown TIFF field type (%d) for tag %s", typeConstant, tag.name()));
+      }
       tag.checkType(type);
 
-      long longCount = Unsigned.from(b.getInt());
+      long longCount = format.getOffset(b);
       if (longCount > Integer.MAX_VALUE) {
          throw new TiffFormatException(
             "IFD entry count greater than INT_MAX not supported");
       }
       int count = (int) longCount;
 
-      if (type.fitsInIFDEntry(count)) {
+      if (type.fitsInIFDEntry(count, format)) {
          ByteBuffer bb = b.slice().order(b.order());
-         b.getInt();
+         b.position(b.position() + format.getOffsetSize());
          TiffValue value = TiffValue.read(type, count, bb);
-         return new Immediate(b.order(), tag, type, count, value);
+         return new Immediate(format, b.order(), tag, type, count, value);
       }
-      long offset = Unsigned.from(b.getInt());
-      return new Pointer(b.order(), tag, type, count, offset);
+      long offset = format.getOffset(b);
+      return new Pointer(format, b.order(), tag, type, count, offset, options);
    }
 
    public static TiffIFDEntry createForWrite(ByteOrder order,
                                              TiffTag tag,
                                              TiffValue value,
                                              TiffOffsetFieldGroup fieldGroup) {
-      if (value.fitsInIFDEntry()) {
-         return new Immediate(order, tag, value);
+      return createForWrite(TiffFormat.CLASSIC, order, tag, value, fieldGroup);
+   }
+
+   public static TiffIFDEntry createForWrite(TiffFormat format,
+                                             ByteOrder order,
+                                             TiffTag tag,
+                                             TiffValue value,
+                                             TiffOffsetFieldGroup fieldGroup) {
+      if (value.fitsInIFDEntry(format)) {
+         return new Immediate(format, order, tag, value);
       }
-      TiffOffsetField offsetField = TiffOffsetField.create("Value of " + tag);
+      TiffOffsetField offsetField = TiffOffsetField.create(format,
+         "Value of " + tag);
       fieldGroup.add(offsetField);
-      return new Pointer(order, tag, value, offsetField);
+      return new Pointer(format, order, tag, value, offsetField);
    }
 
-   protected TiffIFDEntry(ByteOrder order, TiffTag tag, TiffFieldType type, int count) {
+   protected TiffIFDEntry(TiffFormat format, ByteOrder order, TiffTag tag,
+                          TiffFieldType type, int count) {
+      format_ = format;
       byteOrder_ = order;
       tag_ = tag;
       type_ = type;
@@ -83,7 +118,43 @@ public abstract class TiffIFDEntry {
 
    public abstract CompletionStage<TiffValue> readValue(AsynchronousFileChannel chan);
 
-   public abstract CompletionStage<Void> writeValue(AsynchronousFileChannel chan);
+   /**
+    * Decode the value from already-read file data, if the data covers it.
+    *
+    * After a successful prefetch, {@link #readValue} completes without I/O.
+    *
+    * @param data buffer holding file data, starting at its index 0
+    * @param dataOffset the file offset of the start of {@code data}
+    * @return whether the value is now available without I/O
+    */
+   abstract boolean prefetchValue(ByteBuffer data, long dataOffset);
+
+   // The value if held in memory (always for entries created for writing)
+   abstract TiffValue getValueIfAvailable();
+
+   /**
+    * Write the value, if out-of-line, at the end of the file.
+    *
+    * @param chan the asynchronous file channel
+    * @return a completion stage for the pending write
+    */
+   public CompletionStage<Void> writeValue(AsynchronousFileChannel chan) {
+      return AppendCursor.forChannel(chan).
+         thenCompose(cursor -> writeValue(chan, cursor));
+   }
+
+   /**
+    * Write the value, if out-of-line, to a region reserved from the cursor.
+    *
+    * The value offset is set before this method returns, so the IFD can be
+    * written without waiting for the value write to complete.
+    *
+    * @param chan the asynchronous file channel
+    * @param cursor the append cursor for the file
+    * @return a completion stage for the pending write
+    */
+   public abstract CompletionStage<Void> writeValue(AsynchronousFileChannel chan,
+                                                    AppendCursor cursor);
 
    public abstract void writeValue(ByteBuffer dest, BufferedPositionGroup posGroup);
 
@@ -97,14 +168,16 @@ public abstract class TiffIFDEntry {
       TiffValue value_;
 
       // Read
-      private Immediate(ByteOrder order, TiffTag tag, TiffFieldType type, int count, TiffValue value) {
-         super(order, tag, type, count);
+      private Immediate(TiffFormat format, ByteOrder order, TiffTag tag,
+                        TiffFieldType type, int count, TiffValue value) {
+         super(format, order, tag, type, count);
          value_ = value;
       }
 
       // Writing
-      private Immediate(ByteOrder order, TiffTag tag, TiffValue value) {
-         super(order, tag, value.getTiffType(), value.getCount());
+      private Immediate(TiffFormat format, ByteOrder order, TiffTag tag,
+                        TiffValue value) {
+         super(format, order, tag, value.getTiffType(), value.getCount());
          value_ = value;
       }
 
@@ -114,7 +187,18 @@ public abstract class TiffIFDEntry {
       }
 
       @Override
-      public CompletionStage<Void> writeValue(AsynchronousFileChannel chan) {
+      boolean prefetchValue(ByteBuffer data, long dataOffset) {
+         return true;
+      }
+
+      @Override
+      TiffValue getValueIfAvailable() {
+         return value_;
+      }
+
+      @Override
+      public CompletionStage<Void> writeValue(AsynchronousFileChannel chan,
+                                              AppendCursor cursor) {
          return CompletableFuture.completedFuture(null);
       }
 
@@ -126,40 +210,88 @@ public abstract class TiffIFDEntry {
       @Override
       public void write(ByteBuffer dest, BufferedPositionGroup posGroup) {
          dest.putShort((short) getTag().getTiffConstant()).
-            putShort((short) getType().getTiffConstant()).
-            putInt(getCount());
-         value_.writeAndPad(dest, posGroup, 4);
+            putShort((short) getType().getTiffConstant());
+         format_.putOffset(dest, getCount());
+         value_.writeAndPad(dest, posGroup, format_.getOffsetSize());
       }
    }
 
    public static class Pointer extends TiffIFDEntry {
-      private TiffValue value_;
+      // When reading, set only once the value has been prefetched
+      private volatile TiffValue value_;
       private final TiffOffsetField valueOffset_;
+      private final TiffReadOptions options_;
 
       // Read
-      private Pointer(ByteOrder order, TiffTag tag, TiffFieldType type, int count, long offset) {
-         super(order, tag, type, count);
+      private Pointer(TiffFormat format, ByteOrder order, TiffTag tag,
+                      TiffFieldType type, int count, long offset,
+                      TiffReadOptions options) {
+         super(format, order, tag, type, count);
+         options_ = options;
 
-         valueOffset_ = TiffOffsetField.forOffsetValue(
+         valueOffset_ = TiffOffsetField.forOffsetValue(format,
             UnbufferedPosition.at(offset),
             "Read-only TiffIFDEntry.Pointer value");
       }
 
       // Writing
-      private Pointer(ByteOrder order, TiffTag tag, TiffValue value, TiffOffsetField valueOffset) {
-         super(order, tag, value.getTiffType(), value.getCount());
+      private Pointer(TiffFormat format, ByteOrder order, TiffTag tag,
+                      TiffValue value, TiffOffsetField valueOffset) {
+         super(format, order, tag, value.getTiffType(), value.getCount());
          value_ = value;
          valueOffset_ = valueOffset;
+         options_ = TiffReadOptions.defaults();
       }
 
       private int dataSize() {
          return getType().getElementSize() * getCount();
       }
 
+      long getValueOffset() {
+         return valueOffset_.getOffsetValue().get();
+      }
+
+      TiffOffsetField getValueOffsetField() {
+         return valueOffset_;
+      }
+
+      int getValueByteCount() {
+         return dataSize();
+      }
+
+      boolean hasValue() {
+         return value_ != null;
+      }
+
+      @Override
+      TiffValue getValueIfAvailable() {
+         return value_;
+      }
+
       @Override
       public CompletionStage<TiffValue> readValue(AsynchronousFileChannel chan) {
-         ByteBuffer buffer = ByteBuffer.allocateDirect(dataSize()).order(byteOrder_);
-         return Async.read(chan, buffer, valueOffset_.getOffsetValue().get()).
+         TiffValue value = value_;
+         if (value != null) {
+            return CompletableFuture.completedFuture(value);
+         }
+         FlightRecorderEvents.Event event = FlightRecorderEvents.OPERATION.begin();
+         CompletionStage<TiffValue> read = readValueUntraced(chan);
+         if (event != null) {
+            FlightRecorderEvents.commitOperation(event, read,
+               "TiffIFDEntry.readValue", valueOffset_.getOffsetValue().get(),
+               v -> dataSize());
+         }
+         return read;
+      }
+
+      private CompletionStage<TiffValue> readValueUntraced(AsynchronousFileChannel chan) {
+         if (chan instanceof MappedFileChannel) {
+            return readMappedValue((MappedFileChannel) chan);
+         }
+         BufferPool pool = options_.getBufferPool();
+         ByteBuffer buffer = pool.acquire(dataSize()).order(byteOrder_);
+         return Async.read(chan, buffer, valueOffset_.getOffsetValue().get(),
+            IOKind.VALUE).
             thenComposeAsync(b -> {
                b.rewind();
                try {
@@ -169,29 +301,62 @@ public abstract class TiffIFDEntry {
                catch (IOException e) {
                   return Async.completedExceptionally(e);
                }
-            });
+            }, options_.getExecutor()).
+            whenComplete((v, e) -> pool.release(buffer));
+      }
+
+      // Decode directly from the mapping; the value is not retained, as
+      // reading it again is cheap
+      private CompletionStage<TiffValue> readMappedValue(MappedFileChannel chan) {
+         try {
+            ByteBuffer view = chan.view(valueOffset_.getOffsetValue().get(),
+               dataSize());
+            if (view == null) {
+               return Async.completedExceptionally(new TiffFormatException(
+                  "IFD entry value too large"));
+            }
+            return CompletableFuture.completedFuture(
+               TiffValue.read(getType(), getCount(), view.order(byteOrder_)));
+         }
+         catch (IOException e) {
+            return Async.completedExceptionally(e);
+         }
+      }
+
+      @Override
+      boolean prefetchValue(ByteBuffer data, long dataOffset) {
+         if (value_ != null) {
+            return true;
+         }
+         long start = valueOffset_.getOffsetValue().get() - dataOffset;
+         if (start < 0 || start + dataSize() > data.limit()) {
+            return false;
+         }
+         ByteBuffer b = data.duplicate().order(byteOrder_);
+         b.position((int) start);
+         try {
+            value_ = TiffValue.read(getType(), getCount(), b);
+         }
+         catch (EOFException cannotOccur) {
+            return false;
+         }
+         return true;
       }
 
       @Override
-      public CompletionStage<Void> writeValue(AsynchronousFileChannel chan) {
-         ByteBuffer buffer = ByteBuffer.allocateDirect(dataSize()).
-            order(byteOrder_);
+      public CompletionStage<Void> writeValue(AsynchronousFileChannel chan,
+                                              AppendCursor cursor) {
+         BufferPool pool = options_.getBufferPool();
+         ByteBuffer buffer = pool.acquire(dataSize()).order(byteOrder_);
          BufferedPositionGroup posGroup = BufferedPositionGroup.create();
          value_.write(buffer, posGroup);
          buffer.rewind();
 
-         return Async.pad(chan, 4).
-            thenCompose(v -> {
-               try {
-                  long offset = chan.size();
-                  posGroup.setBufferFileOffset(offset);
-                  valueOffset_.setOffsetValue(UnbufferedPosition.at(offset));
-                  return Async.write(chan, buffer, offset);
-               }
-               catch (IOException e) {
-                  return Async.completedExceptionally(e);
-               }
-            });
+         long offset = cursor.reserve(dataSize(), 4);
+         posGroup.setBufferFileOffset(offset);
+         valueOffset_.setOffsetValue(UnbufferedPosition.at(offset));
+         return Async.write(chan, buffer, offset, IOKind.VALUE).
+            whenComplete((v, e) -> pool.release(buffer));
       }
 
       @Override
@@ -205,8 +370,8 @@ public abstract class TiffIFDEntry {
       @Override
       public void write(ByteBuffer dest, BufferedPositionGroup posGroup) {
          dest.putShort((short) getTag().getTiffConstant()).
-            putShort((short) getType().getTiffConstant()).
-            putInt(getCount());
+            putShort((short) getType().getTiffConstant());
+         format_.putOffset(dest, getCount());
          valueOffset_.write(dest, posGroup);
       }
    }
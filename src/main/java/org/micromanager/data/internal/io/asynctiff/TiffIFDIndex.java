@@ -0,0 +1,329 @@
+package org.micromanager.data.internal.io.asynctiff;
+
+import com.google.common.base.Preconditions;
+import org.micromanager.data.internal.io.Async;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.zip.CRC32;
+
+/**
+ * Offsets of every IFD in a TIFF file, together with the strip offsets and
+ * byte counts of each IFD.
+ *
+ * The index is built by walking the IFD chain, and can be saved to a sidecar
+ * file so that reopening a large file does not require walking the chain
+ * again. The sidecar is keyed by the TIFF file's size, modification time, and
+ * a checksum of its first bytes (see {@link FileKey}); a sidecar whose key
+ * does not match (for example because the file has grown) is ignored.
+ * Sidecars are memory-mapped when loaded.
+ */
+public class TiffIFDIndex {
+   private static final String SIDECAR_SUFFIX = ".ifdindex";
+   private static final int SIDECAR_MAGIC = 0x58444949; // 'IIDX'
+   private static final int SIDECAR_VERSION = 1;
+   private static final int SIDECAR_HEADER_SIZE = 48;
+   private static final ByteOrder SIDECAR_BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+   private final LongBuffer ifdOffsets_;
+   private final IntBuffer stripStarts_; // ifdCount + 1 elements
+   private final LongBuffer stripOffsets_;
+   private final LongBuffer stripByteCounts_;
+
+   /**
+    * Identity of a TIFF file's content, used to validate sidecars.
+    */
+   public static final class FileKey {
+      private static final int CHECKSUM_SIZE = 4096;
+
+      private final long size_;
+      private final long lastModifiedMillis_;
+      private final long headerChecksum_;
+
+      private FileKey(long size, long lastModified, long checksum) {
+         size_ = size;
+         lastModifiedMillis_ = lastModified;
+         headerChecksum_ = checksum;
+      }
+
+      public static CompletionStage<FileKey> compute(Path file,
+                                                     AsynchronousFileChannel chan) {
+         long lastModified;
+         try {
+            lastModified = Files.getLastModifiedTime(file).toMillis();
+         }
+         catch (IOException e) {
+            return Async.completedExceptionally(e);
+         }
+         return Async.size(chan).thenCompose(size -> {
+            ByteBuffer b = ByteBuffer.allocate((int) Math.min(size, CHECKSUM_SIZE));
+            return Async.read(chan, b, 0).thenApply(v -> {
+               CRC32 crc = new CRC32();
+               crc.update(b.array(), 0, b.capacity());
+               return new FileKey(size, lastModified, crc.getValue());
+            });
+         });
+      }
+
+      private void write(ByteBuffer b) {
+         b.putLong(size_).putLong(lastModifiedMillis_).putLong(headerChecksum_);
+      }
+
+      private boolean matches(ByteBuffer b) {
+         return b.getLong() == size_ && b.getLong() == lastModifiedMillis_ &&
+            b.getLong() == headerChecksum_;
+      }
+   }
+
+   //
+   //
+   //
+
+   /**
+    * Build the index by walking the IFD chain.
+    *
+    * @param chan the asynchronous file channel
+    * @param header the TIFF header of the file
+    * @return a completion stage bearing the index
+    */
+   public static CompletionStage<TiffIFDIndex> build(AsynchronousFileChannel chan,
+                                                     TiffHeader header) {
+      LongStream.Builder ifdOffsets = LongStream.builder();
+      IntStream.Builder stripStarts = IntStream.builder();
+      LongStream.Builder stripOffsets = LongStream.builder();
+      LongStream.Builder stripByteCounts = LongStream.builder();
+      int[] stripCount = new int[] { 0 };
+      stripStarts.add(0);
+
+      return header.forEachIFD(chan, (offset, ifd) -> {
+         ifdOffsets.add(offset);
+         TiffIFDEntry offsetsEntry = ifd.getEntryWithTag(TiffTag.Known.StripOffsets.get());
+         TiffIFDEntry countsEntry = ifd.getEntryWithTag(TiffTag.Known.StripByteCounts.get());
+         if (offsetsEntry == null || countsEntry == null) {
+            stripStarts.add(stripCount[0]);
+            return CompletableFuture.completedFuture(null);
+         }
+         return offsetsEntry.readValue(chan).thenCombine(countsEntry.readValue(chan),
+            (offsets, counts) -> {
+               if (offsets.getCount() != counts.getCount()) {
+                  throw new CompletionException(new TiffFormatException(
+                     "Strip offsets and byte counts differ in number"));
+               }
+               int n = offsets.getCount();
+               for (int i = 0; i < n; ++i) {
+                  stripOffsets.add(offsets.longValue(i));
+                  stripByteCounts.add(counts.longValue(i));
+               }
+               stripCount[0] += n;
+               stripStarts.add(stripCount[0]);
+               return null;
+            });
+      }).thenApply(v -> new TiffIFDIndex(
+         LongBuffer.wrap(ifdOffsets.build().toArray()),
+         IntBuffer.wrap(stripStarts.build().toArray()),
+         LongBuffer.wrap(stripOffsets.build().toArray()),
+         LongBuffer.wrap(stripByteCounts.build().toArray())));
+   }
+
+   /**
+    * Load the index from the default sidecar if it is up to date; otherwise
+    * build it and save it to the sidecar.
+    *
+    * Failure to save the sidecar (e.g. due to a read-only directory) is not
+    * an error.
+    *
+    * @param file the TIFF file
+    * @param chan an asynchronous file channel open on {@code file}
+    * @return a completion stage bearing the index
+    */
+   public static CompletionStage<TiffIFDIndex> openOrBuild(Path file,
+                                                           AsynchronousFileChannel chan) {
+      return openOrBuild(file, chan, getDefaultSidecarPath(file));
+   }
+
+   public static CompletionStage<TiffIFDIndex> openOrBuild(Path file,
+                                                           AsynchronousFileChannel chan,
+                                                           Path sidecar) {
+      return FileKey.compute(file, chan).thenCompose(key -> {
+         try {
+            TiffIFDIndex cached = readSidecar(sidecar, key);
+            if (cached != null) {
+               return CompletableFuture.completedFuture(cached);
+            }
+         }
+         catch (IOException corruptSidecar) {
+            // Rebuild and overwrite
+         }
+         return TiffHeader.read(chan).
+            thenCompose(header -> build(chan, header)).
+            thenApply(index -> {
+               try {
+                  index.writeSidecar(sidecar, key);
+               }
+               catch (IOException ignore) {
+               }
+               return index;
+            });
+      });
+   }
+
+   public static Path getDefaultSidecarPath(Path file) {
+      return file.resolveSibling(file.getFileName() + SIDECAR_SUFFIX);
+   }
+
+   /**
+    * Load the index from a sidecar file by memory-mapping it.
+    *
+    * @param sidecar the sidecar file
+    * @param key the key of the TIFF file
+    * @return the index, or null if the sidecar does not exist or is stale
+    * @throws IOException if the sidecar could not be read or is corrupt
+    */
+   public static TiffIFDIndex readSidecar(Path sidecar, FileKey key) throws IOException {
+      MappedByteBuffer mapped;
+      try (FileChannel fc = FileChannel.open(sidecar, StandardOpenOption.READ)) {
+         mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+      }
+      catch (NoSuchFileException e) {
+         return null;
+      }
+      ByteBuffer b = mapped.order(SIDECAR_BYTE_ORDER);
+      if (b.remaining() < SIDECAR_HEADER_SIZE) {
+         throw new IOException("Truncated TIFF IFD index sidecar");
+      }
+      if (b.getInt() != SIDECAR_MAGIC || b.getInt() != SIDECAR_VERSION) {
+         throw new IOException("Not a TIFF IFD index sidecar (or wrong version)");
+      }
+      if (!key.matches(b)) {
+         return null;
+      }
+      int ifdCount = b.getInt();
+      int stripCount = b.getInt();
+      long expectedSize = SIDECAR_HEADER_SIZE + 8L * ifdCount +
+         16L * stripCount + 4L * (ifdCount + 1);
+      if (ifdCount < 0 || stripCount < 0 || b.capacity() != expectedSize) {
+         throw new IOException("Corrupt TIFF IFD index sidecar");
+      }
+      b.position(SIDECAR_HEADER_SIZE);
+      LongBuffer ifdOffsets = slice(b, 8 * ifdCount).asLongBuffer();
+      LongBuffer stripOffsets = slice(b, 8 * stripCount).asLongBuffer();
+      LongBuffer stripByteCounts = slice(b, 8 * stripCount).asLongBuffer();
+      IntBuffer stripStarts = slice(b, 4 * (ifdCount + 1)).asIntBuffer();
+      // Strip starts must partition the strip arrays, so that a corrupt
+      // sidecar causes a rebuild rather than out-of-range reads
+      int prev = 0;
+      for (int i = 0; i <= ifdCount; ++i) {
+         int start = stripStarts.get(i);
+         if (start < prev || (i == 0 && start != 0) ||
+               (i == ifdCount && start != stripCount)) {
+            throw new IOException("Corrupt TIFF IFD index sidecar");
+         }
+         prev = start;
+      }
+      return new TiffIFDIndex(ifdOffsets, stripStarts, stripOffsets, stripByteCounts);
+   }
+
+   private static ByteBuffer slice(ByteBuffer b, int size) {
+      ByteBuffer ret = b.slice().order(b.order());
+      ret.limit(size);
+      b.position(b.position() + size);
+      return ret;
+   }
+
+   /**
+    * Save the index to a sidecar file.
+    *
+    * The sidecar is written to a temporary file and moved into place, so
+    * that readers never see a partially written sidecar.
+    *
+    * @param sidecar the sidecar file
+    * @param key the key of the TIFF file
+    * @throws IOException if writing failed
+    */
+   public void writeSidecar(Path sidecar, FileKey key) throws IOException {
+      int ifdCount = getIFDCount();
+      int stripCount = stripOffsets_.limit();
+      ByteBuffer b = ByteBuffer.allocate(SIDECAR_HEADER_SIZE + 8 * ifdCount +
+         16 * stripCount + 4 * (ifdCount + 1)).order(SIDECAR_BYTE_ORDER);
+      b.putInt(SIDECAR_MAGIC).putInt(SIDECAR_VERSION);
+      key.write(b);
+      b.putInt(ifdCount).putInt(stripCount);
+      b.position(SIDECAR_HEADER_SIZE);
+      for (int i = 0; i < ifdCount; ++i) {
+         b.putLong(ifdOffsets_.get(i));
+      }
+      for (int i = 0; i < stripCount; ++i) {
+         b.putLong(stripOffsets_.get(i));
+      }
+      for (int i = 0; i < stripCount; ++i) {
+         b.putLong(stripByteCounts_.get(i));
+      }
+      for (int i = 0; i <= ifdCount; ++i) {
+         b.putInt(stripStarts_.get(i));
+      }
+      b.flip();
+
+      Path tmp = sidecar.resolveSibling(sidecar.getFileName() + ".tmp");
+      try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.WRITE,
+         StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+         while (b.hasRemaining()) {
+            fc.write(b);
+         }
+      }
+      Files.move(tmp, sidecar, StandardCopyOption.REPLACE_EXISTING,
+         StandardCopyOption.ATOMIC_MOVE);
+   }
+
+   private TiffIFDIndex(LongBuffer ifdOffsets, IntBuffer stripStarts,
+                        LongBuffer stripOffsets, LongBuffer stripByteCounts) {
+      ifdOffsets_ = ifdOffsets;
+      stripStarts_ = stripStarts;
+      stripOffsets_ = stripOffsets;
+      stripByteCounts_ = stripByteCounts;
+   }
+
+   //
+   //
+   //
+
+   public int getIFDCount() {
+      return ifdOffsets_.limit();
+   }
+
+   public long getIFDOffset(int ifdIndex) {
+      return ifdOffsets_.get(ifdIndex);
+   }
+
+   public int getStripCount(int ifdIndex) {
+      return stripStarts_.get(ifdIndex + 1) - stripStarts_.get(ifdIndex);
+   }
+
+   public long getStripOffset(int ifdIndex, int strip) {
+      return stripOffsets_.get(stripIndex(ifdIndex, strip));
+   }
+
+   public long getStripByteCount(int ifdIndex, int strip) {
+      return stripByteCounts_.get(stripIndex(ifdIndex, strip));
+   }
+
+   private int stripIndex(int ifdIndex, int strip) {
+      Preconditions.checkElementIndex(strip, getStripCount(ifdIndex));
+      return stripStarts_.get(ifdIndex) + strip;
+   }
+}
@@ -0,0 +1,360 @@
+package org.micromanager.data.internal.io.asynctiff;
+
+import com.google.common.base.Preconditions;
+import org.micromanager.data.internal.io.Alignment;
+import org.micromanager.data.internal.io.AppendCursor;
+import org.micromanager.data.internal.io.Async;
+import org.micromanager.data.internal.io.BufferPool;
+import org.micromanager.data.internal.io.BufferedPositionGroup;
+import org.micromanager.data.internal.io.IOKind;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A pre-serialized IFD for a sequence of images that differ only in their
+ * pixel data and in one ASCII entry (such as an ImageDescription holding
+ * per-frame metadata).
+ *
+ * The IFD and its invariant out-of-line values are serialized once, when the
+ * template is built. Each frame is then serialized, by
+ * {@link #serialize}, as a copy of those bytes in which only the offsets,
+ * the variable entry and the NextIFDOffset are patched; this allocates
+ * nothing.
+ *
+ * A frame record has the same layout as a {@link TiffImageRecord}: the IFD,
+ * the out-of-line values (the variable value last), then the strips.
+ */
+public final class TiffIFDTemplate {
+   private final TiffFormat format_;
+   private final ByteOrder order_;
+   private final byte[] template_;
+   private final int[] valueOffsetPositions_;
+   private final long[] valueOffsets_;
+   private final int[] stripOffsetPositions_;
+   private final long[] stripStarts_;
+   private final int pixelByteCount_;
+   private final int nextIFDOffsetPosition_;
+   private final int variableEntryPosition_; // -1 if none
+
+   public static Builder builder(ByteOrder order) {
+      return builder(TiffFormat.CLASSIC, order);
+   }
+
+   public static Builder builder(TiffFormat format, ByteOrder order) {
+      return new Builder(format, order);
+   }
+
+   public static class Builder {
+      private final TiffFormat format_;
+      private final ByteOrder order_;
+      private final TiffOffsetFieldGroup fieldGroup_ = TiffOffsetFieldGroup.create();
+      private final List<TiffIFDEntry> entries_ = new ArrayList<>();
+      private int[] stripByteCounts_;
+      private TiffTag variableTag_;
+
+      private Builder(TiffFormat format, ByteOrder order) {
+         format_ = format;
+         order_ = order;
+      }
+
+      /**
+       * Add an entry whose value is the same for every frame.
+       */
+      public Builder entry(TiffTag tag, TiffValue value) {
+         Preconditions.checkArgument(!(value instanceof TiffValue.Offsets),
+            "Offset values cannot be part of a template");
+         entries_.add(TiffIFDEntry.createForWrite(format_, order_, tag, value,
+            fieldGroup_));
+         return this;
+      }
+
+      /**
+       * Set the strip byte counts; the StripOffsets and StripByteCounts
+       * entries are added by the template.
+       */
+      public Builder stripByteCounts(int... stripByteCounts) {
+         Preconditions.checkArgument(stripByteCounts.length > 0, "No strips");
+         stripByteCounts_ = stripByteCounts.clone();
+         return this;
+      }
+
+      /**
+       * Add an ASCII entry whose value is given per frame.
+       */
+      public Builder variableAsciiEntry(TiffTag tag) {
+         Preconditions.checkState(variableTag_ == null,
+            "Only one variable entry is supported");
+         variableTag_ = tag;
+         return this;
+      }
+
+      public TiffIFDTemplate build() {
+         Preconditions.checkState(stripByteCounts_ != null,
+            "Strip byte counts not set");
+         return new TiffIFDTemplate(this);
+      }
+   }
+
+   private TiffIFDTemplate(Builder b) {
+      format_ = b.format_;
+      order_ = b.order_;
+
+      List<TiffIFDEntry> entries = new ArrayList<>(b.entries_);
+      TiffValue.Offsets stripOffsets = TiffValue.Offsets.create(format_,
+         b.stripByteCounts_.length, "StripOffsets", b.fieldGroup_);
+      entries.add(TiffIFDEntry.createForWrite(format_, order_,
+         TiffTag.Known.StripOffsets.get(), stripOffsets, b.fieldGroup_));
+      TiffValue stripByteCounts;
+      if (format_ == TiffFormat.BIGTIFF) {
+         stripByteCounts = TiffValue.Long8s.create(
+            Arrays.stream(b.stripByteCounts_).asLongStream().toArray());
+      }
+      else {
+         stripByteCounts = TiffValue.Longs.create(b.stripByteCounts_);
+      }
+      entries.add(TiffIFDEntry.createForWrite(format_, order_,
+         TiffTag.Known.StripByteCounts.get(), stripByteCounts, b.fieldGroup_));
+      TiffIFDEntry variableEntry = null;
+      if (b.variableTag_ != null) {
+         // Placeholder value, long enough to be out-of-line; the count and
+         // value (or offset) fields are patched per frame
+         byte[] placeholder = new byte[format_.getOffsetSize() + 1];
+         variableEntry = TiffIFDEntry.createForWrite(format_, order_,
+            b.variableTag_, TiffValue.Ascii.createUtf8(new String(placeholder)),
+            b.fieldGroup_);
+         entries.add(variableEntry);
+      }
+
+      TiffOffsetField nextIFDOffset = TiffOffsetField.create(format_,
+         "NextIFDOffset");
+      TiffIFD ifd = TiffIFD.createForWrite(format_, order_, entries,
+         nextIFDOffset);
+
+      // Serialize with the record start as position 0; offsets thus written
+      // are relative to the record and have the file offset added per frame
+      int size = format_.getIFDSize(entries.size());
+      List<TiffIFDEntry.Pointer> fixedPointers = new ArrayList<>();
+      for (TiffIFDEntry entry : ifd.getEntries()) {
+         if (entry instanceof TiffIFDEntry.Pointer && entry != variableEntry) {
+            fixedPointers.add((TiffIFDEntry.Pointer) entry);
+            size = Alignment.align(size, 4) +
+               ((TiffIFDEntry.Pointer) entry).getValueByteCount();
+         }
+      }
+      size = Alignment.align(size, 4);
+      ByteBuffer buffer = ByteBuffer.allocate(size).order(order_);
+      BufferedPositionGroup posGroup = BufferedPositionGroup.forBufferAt(0);
+      buffer.position(format_.getIFDSize(entries.size()));
+      for (TiffIFDEntry.Pointer entry : fixedPointers) {
+         buffer.position(Alignment.align(buffer.position(), 4));
+         entry.writeValue(buffer, posGroup);
+      }
+      buffer.position(0);
+      ifd.write(buffer, posGroup);
+      template_ = buffer.array();
+
+      valueOffsetPositions_ = new int[fixedPointers.size()];
+      valueOffsets_ = new long[fixedPointers.size()];
+      for (int i = 0; i < fixedPointers.size(); ++i) {
+         TiffOffsetField field = fixedPointers.get(i).getValueOffsetField();
+         valueOffsetPositions_[i] = (int) field.getFieldPosition().get();
+         valueOffsets_[i] = field.getOffsetValue().get();
+      }
+
+      stripOffsetPositions_ = new int[b.stripByteCounts_.length];
+      stripStarts_ = new long[b.stripByteCounts_.length];
+      long pixelByteCount = 0;
+      for (int i = 0; i < stripOffsetPositions_.length; ++i) {
+         stripOffsetPositions_[i] =
+            (int) stripOffsets.offsetValue(i).getFieldPosition().get();
+         stripStarts_[i] = pixelByteCount;
+         pixelByteCount += b.stripByteCounts_[i];
+      }
+      Preconditions.checkArgument(pixelByteCount <= Integer.MAX_VALUE,
+         "Image too large");
+      pixelByteCount_ = (int) pixelByteCount;
+      nextIFDOffsetPosition_ = (int) nextIFDOffset.getFieldPosition().get();
+      variableEntryPosition_ = variableEntry == null ? -1 :
+         format_.getEntryCountSize() +
+            format_.getEntrySize() * ifd.getEntries().indexOf(variableEntry);
+   }
+
+   //
+   //
+   //
+
+   public TiffFormat getTiffFormat() {
+      return format_;
+   }
+
+   public ByteOrder getTiffByteOrder() {
+      return order_;
+   }
+
+   public int getPixelByteCount() {
+      return pixelByteCount_;
+   }
+
+   private boolean isVariableValueInline(int variableByteCount) {
+      return variableByteCount + 1 <= format_.getOffsetSize();
+   }
+
+   /**
+    * Get the offset of the pixel data relative to the start of a record.
+    *
+    * @param variableByteCount the length of the variable entry's value, not
+    * including the null terminator (0 if there is no variable entry)
+    */
+   public int getPixelsOffset(int variableByteCount) {
+      if (variableEntryPosition_ < 0 || isVariableValueInline(variableByteCount)) {
+         return template_.length;
+      }
+      return Alignment.align(template_.length + variableByteCount + 1, 4);
+   }
+
+   /**
+    * Get the exact size of a record.
+    *
+    * @param variableByteCount the length of the variable entry's value, not
+    * including the null terminator (0 if there is no variable entry)
+    */
+   public int getRecordSize(int variableByteCount) {
+      return getPixelsOffset(variableByteCount) + pixelByteCount_;
+   }
+
+   /**
+    * Get the position of the NextIFDOffset field relative to the start of a
+    * record, so that it can be patched once the next IFD is placed.
+    */
+   public int getNextIFDOffsetPosition() {
+      return nextIFDOffsetPosition_;
+   }
+
+   /**
+    * Serialize a record, except for the pixel data.
+    *
+    * This allocates no objects. The positions of {@code variableValue} and
+    * {@code dest} are restored and advanced, respectively, by the same
+    * amount as {@link #serialize(ByteBuffer, long, ByteBuffer, ByteBuffer,
+    * long)}.
+    *
+    * @param dest the buffer, in the template's byte order, with at least
+    * {@link #getPixelsOffset} bytes remaining; its position is advanced to
+    * where the pixel data belongs
+    * @param fileOffset the file offset at which the record will be written
+    * @param variableValue the UTF-8 bytes of the variable entry's value,
+    * without a null terminator; its position is not changed
+    * @param nextIFDOffset the offset of the next IFD, or 0
+    */
+   public void serializeMetadata(ByteBuffer dest, long fileOffset,
+                                 ByteBuffer variableValue,
+                                 long nextIFDOffset) {
+      int variableByteCount = variableValue == null ? 0 : variableValue.remaining();
+      Preconditions.checkArgument(variableValue != null ||
+         variableEntryPosition_ < 0, "Missing variable value");
+      Preconditions.checkArgument(dest.order() == order_,
+         "Buffer byte order does not match template");
+      Preconditions.checkArgument(dest.remaining() >= getPixelsOffset(variableByteCount),
+         "Buffer too small for record");
+      int start = dest.position();
+      dest.put(template_, 0, template_.length);
+
+      for (int i = 0; i < valueOffsetPositions_.length; ++i) {
+         format_.putOffset(dest, start + valueOffsetPositions_[i],
+            fileOffset + valueOffsets_[i]);
+      }
+      long pixelsStart = fileOffset + getPixelsOffset(variableByteCount);
+      for (int i = 0; i < stripOffsetPositions_.length; ++i) {
+         format_.putOffset(dest, start + stripOffsetPositions_[i],
+            pixelsStart + stripStarts_[i]);
+      }
+      format_.putOffset(dest, start + nextIFDOffsetPosition_, nextIFDOffset);
+
+      if (variableEntryPosition_ >= 0) {
+         int countPosition = start + variableEntryPosition_ + 4;
+         int valuePosition = countPosition + format_.getOffsetSize();
+         format_.putOffset(dest, countPosition, variableByteCount + 1);
+         int valueStart = variableValue.position();
+         if (isVariableValueInline(variableByteCount)) {
+            dest.position(valuePosition);
+            dest.put(variableValue);
+            zeroFill(dest, valuePosition + format_.getOffsetSize());
+         }
+         else {
+            format_.putOffset(dest, valuePosition, fileOffset + template_.length);
+            dest.position(start + template_.length);
+            dest.put(variableValue);
+            zeroFill(dest, start + getPixelsOffset(variableByteCount));
+         }
+         variableValue.position(valueStart);
+      }
+      dest.position(start + getPixelsOffset(variableByteCount));
+   }
+
+   /**
+    * Serialize a whole record.
+    *
+    * @param dest the buffer, in the template's byte order, with at least
+    * {@link #getRecordSize} bytes remaining; its position is advanced by
+    * that amount
+    * @param fileOffset the file offset at which the record will be written
+    * @param variableValue the UTF-8 bytes of the variable entry's value,
+    * without a null terminator; its position is not changed
+    * @param pixels the pixel data; its position is not changed
+    * @param nextIFDOffset the offset of the next IFD, or 0
+    */
+   public void serialize(ByteBuffer dest, long fileOffset,
+                         ByteBuffer variableValue, ByteBuffer pixels,
+                         long nextIFDOffset) {
+      Preconditions.checkArgument(pixels.remaining() == pixelByteCount_,
+         "Pixel buffer size does not match template");
+      serializeMetadata(dest, fileOffset, variableValue, nextIFDOffset);
+      int pixelsStart = pixels.position();
+      dest.put(pixels);
+      pixels.position(pixelsStart);
+   }
+
+   private static void zeroFill(ByteBuffer b, int end) {
+      while (b.position() < end) {
+         b.put((byte) 0);
+      }
+   }
+
+   /**
+    * Write a record to a region reserved from the cursor, with a single
+    * write from a pooled buffer.
+    *
+    * @param chan the asynchronous file channel
+    * @param cursor the append cursor for the file
+    * @param variableValue the UTF-8 bytes of the variable entry's value
+    * @param pixels the pixel data
+    * @param nextIFDOffset the offset of the next IFD, or 0
+    * @return a completion stage bearing the file offset of the record
+    */
+   public CompletionStage<Long> write(AsynchronousFileChannel chan,
+                                      AppendCursor cursor,
+                                      ByteBuffer variableValue,
+                                      ByteBuffer pixels, long nextIFDOffset) {
+      int size = getRecordSize(variableValue == null ? 0 : variableValue.remaining());
+      BufferPool pool = BufferPool.getDefault();
+      ByteBuffer buffer = pool.acquire(size).order(order_);
+      long offset = cursor.reserve(size, 4);
+      try {
+         serialize(buffer, offset, variableValue, pixels, nextIFDOffset);
+         buffer.rewind();
+      }
+      catch (RuntimeException e) {
+         pool.release(buffer);
+         return Async.completedExceptionally(e);
+      }
+      return Async.write(chan, buffer, offset, IOKind.RECORD).
+         thenApply(v -> offset).
+         whenComplete((o, e) -> pool.release(buffer));
+   }
+}
@@ -0,0 +1,215 @@
+package org.micromanager.data.internal.io.asynctiff;
+
+import com.google.common.base.Preconditions;
+import org.micromanager.data.internal.io.Alignment;
+import org.micromanager.data.internal.io.AppendCursor;
+import org.micromanager.data.internal.io.Async;
+import org.micromanager.data.internal.io.BufferPool;
+import org.micromanager.data.internal.io.BufferedPositionGroup;
+import org.micromanager.data.internal.io.IOKind;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * An IFD together with its out-of-line entry values and its pixel data,
+ * serialized as one contiguous region with all internal offsets resolved.
+ *
+ * The record is laid out as the IFD, followed by the values that do not fit
+ * in their entries (each aligned to 4 bytes), followed by the strips in
+ * order. Its exact size is known on construction, so that the region can be
+ * reserved before anything is serialized. The StripOffsets are set by this
+ * class; the StripByteCounts must describe the pixel buffer. The offset
+ * fields of the IFD must be in the group given on construction, except for
+ * the NextIFDOffset, which is left to the caller (it is written if already
+ * complete, and can otherwise be updated after the record is written).
+ *
+ * A record can be serialized only once.
+ */
+public final class TiffImageRecord {
+   // Pixels larger than this are written from the caller's buffer rather
+   // than copied into the record buffer
+   private static final int MAX_COPIED_PIXEL_BYTES = 64 << 10;
+
+   private final TiffIFD ifd_;
+   private final TiffOffsetFieldGroup fieldGroup_;
+   private final TiffValue.Offsets stripOffsets_;
+   private final long[] stripByteCounts_;
+   private final ByteBuffer pixels_;
+   private final int pixelsOffset_;
+
+   /**
+    * Create a record.
+    *
+    * @param ifd the IFD, created for writing
+    * @param fieldGroup the offset field group used to build the IFD
+    * @param pixels the pixel data, from its position to its limit; it is not
+    * read until the record is serialized, and its position is not changed
+    * @return the record
+    */
+   public static TiffImageRecord create(TiffIFD ifd,
+                                        TiffOffsetFieldGroup fieldGroup,
+                                        ByteBuffer pixels) {
+      return new TiffImageRecord(ifd, fieldGroup, pixels);
+   }
+
+   private TiffImageRecord(TiffIFD ifd, TiffOffsetFieldGroup fieldGroup,
+                           ByteBuffer pixels) {
+      TiffIFDEntry offsetsEntry = ifd.getEntryWithTag(TiffTag.Known.StripOffsets.get());
+      TiffIFDEntry countsEntry = ifd.getEntryWithTag(TiffTag.Known.StripByteCounts.get());
+      Preconditions.checkArgument(offsetsEntry != null && countsEntry != null,
+         "IFD must have StripOffsets and StripByteCounts");
+      TiffValue offsets = offsetsEntry.getValueIfAvailable();
+      TiffValue counts = countsEntry.getValueIfAvailable();
+      Preconditions.checkArgument(offsets instanceof TiffValue.Offsets &&
+            counts != null,
+         "IFD must be created for writing");
+      Preconditions.checkArgument(offsets.getCount() == counts.getCount(),
+         "StripOffsets and StripByteCounts differ in count");
+
+      stripByteCounts_ = new long[counts.getCount()];
+      long pixelByteCount = 0;
+      for (int i = 0; i < stripByteCounts_.length; ++i) {
+         stripByteCounts_[i] = counts.longValue(i);
+         pixelByteCount += stripByteCounts_[i];
+      }
+      Preconditions.checkArgument(pixelByteCount == pixels.remaining(),
+         "StripByteCounts total does not match pixel buffer size");
+
+      int size = ifd.getTiffFormat().getIFDSize(ifd.getEntries().size());
+      for (TiffIFDEntry entry : ifd.getEntries()) {
+         if (entry instanceof TiffIFDEntry.Pointer) {
+            size = Alignment.align(size, 4) +
+               ((TiffIFDEntry.Pointer) entry).getValueByteCount();
+         }
+      }
+      size = Alignment.align(size, 4);
+      Preconditions.checkArgument(size + pixelByteCount <= Integer.MAX_VALUE,
+         "Record too large");
+
+      ifd_ = ifd;
+      fieldGroup_ = fieldGroup;
+      stripOffsets_ = (TiffValue.Offsets) offsets;
+      pixels_ = pixels.duplicate();
+      pixelsOffset_ = size;
+   }
+
+   //
+   //
+   //
+
+   /**
+    * Get the exact size of the serialized record.
+    */
+   public int getSize() {
+      return pixelsOffset_ + pixels_.remaining();
+   }
+
+   /**
+    * Get the offset of the pixel data relative to the start of the record.
+    */
+   public int getPixelsOffset() {
+      return pixelsOffset_;
+   }
+
+   /**
+    * Serialize the whole record into a buffer.
+    *
+    * @param dest the buffer, with at least {@link #getSize} bytes remaining;
+    * its position is advanced by that amount
+    * @param fileOffset the file offset at which the record will be written;
+    * the offset of the IFD equals this
+    */
+   public void serialize(ByteBuffer dest, long fileOffset) {
+      Preconditions.checkArgument(dest.remaining() >= getSize(),
+         "Buffer too small for record");
+      int start = dest.position();
+      serializeMetadata(dest, fileOffset);
+      dest.put(pixels_.duplicate());
+      dest.position(start + getSize());
+   }
+
+   // Serialize everything but the pixels, padding to getPixelsOffset()
+   private void serializeMetadata(ByteBuffer dest, long fileOffset) {
+      ByteBuffer b = dest.slice().order(ifd_.getTiffByteOrder());
+      BufferedPositionGroup posGroup = BufferedPositionGroup.forBufferAt(fileOffset);
+      ifd_.write(b, posGroup);
+      for (TiffIFDEntry entry : ifd_.getEntries()) {
+         if (entry instanceof TiffIFDEntry.Pointer) {
+            zeroPad(b, Alignment.align(b.position(), 4));
+            entry.writeValue(b, posGroup);
+         }
+      }
+      zeroPad(b, pixelsOffset_);
+
+      long stripOffset = fileOffset + pixelsOffset_;
+      for (int i = 0; i < stripByteCounts_.length; ++i) {
+         stripOffsets_.offsetValue(i).setOffsetValue(
+            posGroup.positionInBuffer((int) (stripOffset - fileOffset)));
+         stripOffset += stripByteCounts_[i];
+      }
+      fieldGroup_.updateAll(b);
+      dest.position(dest.position() + pixelsOffset_);
+   }
+
+   // Pooled buffers are not cleared, so padding must be written explicitly
+   private static void zeroPad(ByteBuffer b, int position) {
+      while (b.position() < position) {
+         b.put((byte) 0);
+      }
+   }
+
+   //
+   //
+   //
+
+   /**
+    * Write the record to a region reserved from the cursor.
+    *
+    * Small records are written with a single write. When the pixel data is
+    * large, it is written directly from the caller's buffer, concurrently
+    * with the rest of the record, rather than being copied.
+    *
+    * @param chan the asynchronous file channel
+    * @param cursor the append cursor for the file
+    * @return a completion stage bearing the file offset of the record (and
+    * its IFD)
+    */
+   public CompletionStage<Long> write(AsynchronousFileChannel chan,
+                                      AppendCursor cursor) {
+      BufferPool pool = BufferPool.getDefault();
+      boolean copyPixels = pixels_.remaining() <= MAX_COPIED_PIXEL_BYTES;
+      ByteBuffer buffer = pool.acquire(copyPixels ? getSize() : pixelsOffset_);
+      long offset = cursor.reserve(getSize(), 4);
+      CompletionStage<Void> written;
+      try {
+         if (copyPixels) {
+            serialize(buffer, offset);
+         }
+         else {
+            serializeMetadata(buffer, offset);
+         }
+         buffer.rewind();
+      }
+      catch (RuntimeException e) {
+         pool.release(buffer);
+         return Async.completedExceptionally(e);
+      }
+
+      if (copyPixels) {
+         written = Async.write(chan, buffer, offset, IOKind.RECORD);
+      }
+      else {
+         written = CompletableFuture.allOf(
+            Async.write(chan, buffer, offset, IOKind.RECORD).toCompletableFuture(),
+            Async.write(chan, pixels_.duplicate(), offset + pixelsOffset_,
+               IOKind.PIXELS).
+               toCompletableFuture());
+      }
+      return written.
+         thenApply(v -> offset).
+         whenComplete((o, e) -> pool.release(buffer));
+   }
+}
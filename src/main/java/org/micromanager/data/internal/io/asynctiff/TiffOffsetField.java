@@ -14,56 +14,79 @@ import java.util.concurrent.CompletionStage;
 public class TiffOffsetField {
    private static final int PLACEHOLDER_VALUE = 0;
 
+   private final TiffFormat format_;
    private FilePosition fieldPosition_;
    private FilePosition offsetValue_;
 
    private final String debugAnnotation_;
 
-   private TiffOffsetField(FilePosition position, FilePosition value, String annotation) {
+   private TiffOffsetField(TiffFormat format, FilePosition position,
+                           FilePosition value, String annotation) {
+      format_ = format;
       fieldPosition_ = position;
       offsetValue_ = value;
       debugAnnotation_ = annotation;
    }
 
    public static TiffOffsetField create(String annotation) {
-      return new TiffOffsetField(null, null, annotation);
+      return create(TiffFormat.CLASSIC, annotation);
+   }
+
+   public static TiffOffsetField create(TiffFormat format, String annotation) {
+      return new TiffOffsetField(format, null, null, annotation);
    }
 
    public static TiffOffsetField atPosition(FilePosition position,
                                             String annotation) {
+      return atPosition(TiffFormat.CLASSIC, position, annotation);
+   }
+
+   public static TiffOffsetField atPosition(TiffFormat format,
+                                            FilePosition position,
+                                            String annotation) {
       Preconditions.checkNotNull(position);
-      return new TiffOffsetField(position, null, annotation);
+      return new TiffOffsetField(format, position, null, annotation);
    }
 
    public static TiffOffsetField forOffsetValue(FilePosition offset,
                                                 String annotation) {
+      return forOffsetValue(TiffFormat.CLASSIC, offset, annotation);
+   }
+
+   public static TiffOffsetField forOffsetValue(TiffFormat format,
+                                                FilePosition offset,
+                                                String annotation) {
       Preconditions.checkNotNull(offset);
-      return new TiffOffsetField(null, offset, annotation);
+      return new TiffOffsetField(format, null, offset, annotation);
+   }
+
+   public TiffFormat getFormat() {
+      return format_;
    }
 
    public void setFieldPosition(FilePosition position) {
       Preconditions.checkNotNull(position);
       Preconditions.checkState(fieldPosition_ == null,
-         "Attempt to overwrite field position in " + this);
+         "Attempt to overwrite field position in %s", this);
       fieldPosition_ = position;
    }
 
    public void setOffsetValue(FilePosition offset) {
       Preconditions.checkNotNull(offset);
       Preconditions.checkState(offsetValue_ == null,
-         "Attempt to overwrite offset value in " + this);
+         "Attempt to overwrite offset value in %s", this);
       offsetValue_ = offset;
    }
 
    public FilePosition getFieldPosition() {
       Preconditions.checkState(fieldPosition_ != null,
-         "Missing field position in " + this);
+         "Missing field position in %s", this);
       return fieldPosition_;
    }
 
    public FilePosition getOffsetValue() {
       Preconditions.checkState(offsetValue_ != null,
-         "Missing offset value in " + this);
+         "Missing offset value in %s", this);
       return offsetValue_;
    }
 
@@ -74,27 +97,29 @@ public class TiffOffsetField {
    private void checkCompleteFieldPosition() {
       Preconditions.checkState(fieldPosition_ != null &&
             fieldPosition_.isComplete(),
-         "Missing or incomplete field position in " + this);
+         "Missing or incomplete field position in %s", this);
    }
 
    private void checkBufferRelativeFieldPosition() {
       Preconditions.checkState(fieldPosition_ != null &&
             fieldPosition_.hasPositionInBuffer(),
-         "Field position does not have a buffer-relative offset in " + this);
+         "Field position does not have a buffer-relative offset in %s", this);
    }
 
    private void checkCompleteOffsetValue() {
       Preconditions.checkState(isOffsetValueComplete(),
-         "Missing or incomplete offset value in " + this);
+         "Missing or incomplete offset value in %s", this);
    }
 
    private boolean isOffsetValueComplete() {
       return offsetValue_ != null && offsetValue_.isComplete();
    }
 
-   private static ByteBuffer makeWriteBuffer(int value, ByteOrder order) {
-      ByteBuffer buffer = ByteBuffer.allocate(4).order(order);
-      buffer.putInt(value).rewind();
+   private ByteBuffer makeWriteBuffer(long value, ByteOrder order) {
+      ByteBuffer buffer = ByteBuffer.allocate(format_.getOffsetSize()).
+         order(order);
+      format_.putOffset(buffer, value);
+      buffer.rewind();
       return buffer;
    }
 
@@ -108,15 +133,20 @@ public class TiffOffsetField {
       setFieldPosition(UnbufferedPosition.at(offset));
       return Async.write(chan,
          makeWriteBuffer(
-            isOffsetValueComplete() ? (int) offsetValue_.get() : PLACEHOLDER_VALUE,
+            isOffsetValueComplete() ? offsetValue_.get() : PLACEHOLDER_VALUE,
             order),
          fieldPosition_.get());
    }
 
+   void checkUpdatable() {
+      checkCompleteFieldPosition();
+      checkCompleteOffsetValue();
+   }
+
    CompletionStage<Void> update(AsynchronousFileChannel chan, ByteOrder order) {
       checkCompleteFieldPosition();
       checkCompleteOffsetValue();
-      return Async.write(chan, makeWriteBuffer((int) offsetValue_.get(), order),
+      return Async.write(chan, makeWriteBuffer(offsetValue_.get(), order),
          fieldPosition_.get());
    }
 
@@ -126,20 +156,31 @@ public class TiffOffsetField {
          write(buffer);
       }
       else {
-         buffer.putInt(PLACEHOLDER_VALUE);
+         format_.putOffset(buffer, PLACEHOLDER_VALUE);
       }
    }
 
    public void write(ByteBuffer buffer) {
       checkCompleteOffsetValue();
-      buffer.putInt((int) offsetValue_.get());
+      format_.putOffset(buffer, offsetValue_.get());
+   }
+
+   int getFieldSize() {
+      return format_.getOffsetSize();
+   }
+
+   // Write the offset value at the given index of a buffer holding the file
+   // data around the field
+   void update(ByteBuffer buffer, int index) {
+      checkCompleteOffsetValue();
+      format_.putOffset(buffer, index, offsetValue_.get());
    }
 
    public void update(ByteBuffer buffer) {
       checkCompleteOffsetValue();
       checkBufferRelativeFieldPosition();
-      buffer.putInt(fieldPosition_.getPositionInBuffer(),
-         (int) offsetValue_.get());
+      format_.putOffset(buffer, fieldPosition_.getPositionInBuffer(),
+         offsetValue_.get());
    }
 
    @Override
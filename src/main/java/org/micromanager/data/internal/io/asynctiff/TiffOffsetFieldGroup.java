@@ -1,5 +1,9 @@
 package org.micromanager.data.internal.io.asynctiff;
 
+import com.google.common.base.Preconditions;
+import org.micromanager.data.internal.io.Async;
+import org.micromanager.data.internal.io.BufferPool;
+
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.AsynchronousFileChannel;
@@ -10,6 +14,8 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 
 public class TiffOffsetFieldGroup {
+   private static final int MAX_RUN_SIZE = 1 << 20;
+
    private final List<TiffOffsetField> fields_ = new ArrayList<>();
 
    private TiffOffsetFieldGroup() {}
@@ -24,13 +30,79 @@ public class TiffOffsetFieldGroup {
 
    public CompletionStage<Void> updateAll(AsynchronousFileChannel chan,
                                           ByteOrder order) {
+      return updateAll(chan, order, 0);
+   }
+
+   /**
+    * Write the offset values of all fields to the file.
+    *
+    * Fields at consecutive file positions (such as the elements of a
+    * StripOffsets array) are written with a single write. If
+    * {@code maxGap} is nonzero, runs separated by at most that many bytes
+    * are also merged, by reading the file data in between and writing it
+    * back; this is only correct if that data has already been written and
+    * is not being written concurrently. Separate runs are written
+    * concurrently.
+    *
+    * @param chan the asynchronous file channel
+    * @param order the byte order of the file
+    * @param maxGap the maximum gap to merge by read-modify-write
+    * @return a completion stage that completes when all writes are done
+    */
+   public CompletionStage<Void> updateAll(AsynchronousFileChannel chan,
+                                          ByteOrder order, int maxGap) {
+      Preconditions.checkArgument(maxGap >= 0, "Negative gap");
+      try {
+         for (TiffOffsetField field : fields_) {
+            field.checkUpdatable();
+         }
+      }
+      catch (IllegalStateException e) {
+         return Async.completedExceptionally(e);
+      }
       fields_.sort(Comparator.comparingLong(f -> f.getFieldPosition().get()));
 
-      CompletionStage<Void> stage = CompletableFuture.completedFuture(null);
-      for (TiffOffsetField field : fields_) {
-         stage = stage.thenCompose(v -> field.update(chan, order));
+      List<CompletableFuture<?>> writes = new ArrayList<>();
+      int i = 0;
+      while (i < fields_.size()) {
+         long start = fields_.get(i).getFieldPosition().get();
+         long end = start + fields_.get(i).getFieldSize();
+         boolean hasGaps = false;
+         int j = i + 1;
+         while (j < fields_.size()) {
+            long pos = fields_.get(j).getFieldPosition().get();
+            long newEnd = pos + fields_.get(j).getFieldSize();
+            if (pos < end || pos > end + maxGap || newEnd - start > MAX_RUN_SIZE) {
+               break;
+            }
+            hasGaps |= pos > end;
+            end = newEnd;
+            ++j;
+         }
+         writes.add(updateRun(chan, order, new ArrayList<>(fields_.subList(i, j)), start,
+            (int) (end - start), hasGaps).toCompletableFuture());
+         i = j;
       }
-      return stage;
+      return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0]));
+   }
+
+   private static CompletionStage<Void> updateRun(AsynchronousFileChannel chan,
+                                                  ByteOrder order,
+                                                  List<TiffOffsetField> run,
+                                                  long start, int size,
+                                                  boolean hasGaps) {
+      BufferPool pool = BufferPool.getDefault();
+      ByteBuffer buffer = pool.acquire(size).order(order);
+      CompletionStage<ByteBuffer> filled = hasGaps ?
+         Async.read(chan, buffer, start) :
+         CompletableFuture.completedFuture(buffer);
+      return filled.thenCompose(b -> {
+         for (TiffOffsetField field : run) {
+            field.update(b, (int) (field.getFieldPosition().get() - start));
+         }
+         b.rewind();
+         return Async.write(chan, b, start);
+      }).whenComplete((v, e) -> pool.release(buffer));
    }
 
    public void updateAll(ByteBuffer buffer) {
@@ -0,0 +1,274 @@
+package org.micromanager.data.internal.io.asynctiff;
+
+import org.micromanager.data.internal.io.Async;
+import org.micromanager.data.internal.io.BufferPool;
+import org.micromanager.data.internal.io.IOKind;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Collectors;
+
+/**
+ * Location of the (uncompressed) pixel data of an IFD, stored either in
+ * strips or in tiles.
+ *
+ * Strips are read directly into the destination buffer. Tiles are read into
+ * a staging buffer (from the IFD's buffer pool) and their rows copied into
+ * place, so that the result is always a row-major image (one image per
+ * sample if PlanarConfiguration is 2). In both cases, blocks that are
+ * contiguous in the file are read with a single read, and all reads are
+ * issued concurrently.
+ */
+final class TiffPixelLayout {
+   private static final List<TiffTag.Known> LAYOUT_TAGS = Arrays.asList(
+      TiffTag.Known.ImageWidth,
+      TiffTag.Known.ImageLength,
+      TiffTag.Known.BitsPerSample,
+      TiffTag.Known.SamplesPerPixel,
+      TiffTag.Known.Compression,
+      TiffTag.Known.PlanarConfiguration,
+      TiffTag.Known.StripOffsets,
+      TiffTag.Known.StripByteCounts,
+      TiffTag.Known.TileWidth,
+      TiffTag.Known.TileLength,
+      TiffTag.Known.TileOffsets,
+      TiffTag.Known.TileByteCounts);
+
+   private final boolean tiled_;
+   private final long imageWidth_;
+   private final long imageLength_;
+   private final long tileWidth_;
+   private final long tileLength_;
+   private final long bytesPerTilePixel_;
+   private final int planeCount_;
+   private final long[] blockOffsets_;
+   private final long[] blockByteCounts_;
+   private final BufferPool bufferPool_;
+
+   static CompletionStage<TiffPixelLayout> read(TiffIFD ifd,
+                                                AsynchronousFileChannel chan) {
+      List<TiffIFDEntry> entries = LAYOUT_TAGS.stream().
+         map(t -> ifd.getEntryWithTag(t.get())).
+         filter(Objects::nonNull).
+         collect(Collectors.toList());
+      return ifd.readValues(chan, entries).thenCompose(values -> {
+         try {
+            return CompletableFuture.completedFuture(
+               new TiffPixelLayout(ifd, values));
+         }
+         catch (TiffFormatException e) {
+            return Async.completedExceptionally(e);
+         }
+      });
+   }
+
+   private TiffPixelLayout(TiffIFD ifd, Map<TiffIFDEntry, TiffValue> values)
+      throws TiffFormatException {
+      bufferPool_ = ifd.getReadOptions().getBufferPool();
+      long compression = optionalValue(ifd, values, TiffTag.Known.Compression, 1);
+      if (compression > 1) {
+         throw new TiffFormatException(String.format(
+            "Compressed TIFF images are not supported (Compression = %d)",
+            compression));
+      }
+
+      imageWidth_ = requiredValue(ifd, values, TiffTag.Known.ImageWidth);
+      imageLength_ = requiredValue(ifd, values, TiffTag.Known.ImageLength);
+      long samplesPerPixel = optionalValue(ifd, values,
+         TiffTag.Known.SamplesPerPixel, 1);
+      boolean planar = optionalValue(ifd, values,
+         TiffTag.Known.PlanarConfiguration, 1) == 2;
+      planeCount_ = planar ? (int) samplesPerPixel : 1;
+
+      tiled_ = ifd.getEntryWithTag(TiffTag.Known.TileOffsets.get()) != null;
+      TiffValue offsets = requiredTiffValue(ifd, values, tiled_ ?
+         TiffTag.Known.TileOffsets : TiffTag.Known.StripOffsets);
+      TiffValue counts = requiredTiffValue(ifd, values, tiled_ ?
+         TiffTag.Known.TileByteCounts : TiffTag.Known.StripByteCounts);
+      if (offsets.getCount() != counts.getCount()) {
+         throw new TiffFormatException(
+            "Strip or tile offsets and byte counts differ in number");
+      }
+      blockOffsets_ = new long[offsets.getCount()];
+      blockByteCounts_ = new long[offsets.getCount()];
+      for (int i = 0; i < blockOffsets_.length; ++i) {
+         blockOffsets_[i] = offsets.longValue(i);
+         blockByteCounts_[i] = counts.longValue(i);
+      }
+
+      if (tiled_) {
+         tileWidth_ = requiredValue(ifd, values, TiffTag.Known.TileWidth);
+         tileLength_ = requiredValue(ifd, values, TiffTag.Known.TileLength);
+         long bitsPerSample = requiredValue(ifd, values,
+            TiffTag.Known.BitsPerSample);
+         if (bitsPerSample % 8 != 0) {
+            throw new TiffFormatException(String.format(
+               "Tiled images with %d bits per sample are not supported",
+               bitsPerSample));
+         }
+         bytesPerTilePixel_ = bitsPerSample / 8 * (planar ? 1 : samplesPerPixel);
+         if (tileWidth_ == 0 || tileLength_ == 0 ||
+               blockOffsets_.length < planeCount_ * getTilesAcross() * getTilesDown()) {
+            throw new TiffFormatException("Inconsistent TIFF tile layout");
+         }
+         for (long count : blockByteCounts_) {
+            if (count < tileWidth_ * tileLength_ * bytesPerTilePixel_) {
+               throw new TiffFormatException("TIFF tile byte count too small");
+            }
+         }
+      }
+      else {
+         tileWidth_ = tileLength_ = bytesPerTilePixel_ = 0;
+      }
+
+      if (getPixelByteCount() > Integer.MAX_VALUE) {
+         throw new TiffFormatException("TIFF image too large to read into a buffer");
+      }
+   }
+
+   private static long requiredValue(TiffIFD ifd,
+                                     Map<TiffIFDEntry, TiffValue> values,
+                                     TiffTag.Known tag) throws TiffFormatException {
+      return requiredTiffValue(ifd, values, tag).longValue(0);
+   }
+
+   private static TiffValue requiredTiffValue(TiffIFD ifd,
+                                              Map<TiffIFDEntry, TiffValue> values,
+                                              TiffTag.Known tag)
+      throws TiffFormatException {
+      return values.get(ifd.getRequiredEntryWithTag(tag.get()));
+   }
+
+   private static long optionalValue(TiffIFD ifd,
+                                     Map<TiffIFDEntry, TiffValue> values,
+                                     TiffTag.Known tag, long defaultValue) {
+      TiffIFDEntry entry = ifd.getEntryWithTag(tag.get());
+      return entry == null ? defaultValue : values.get(entry).longValue(0);
+   }
+
+   private long getTilesAcross() {
+      return (imageWidth_ + tileWidth_ - 1) / tileWidth_;
+   }
+
+   private long getTilesDown() {
+      return (imageLength_ + tileLength_ - 1) / tileLength_;
+   }
+
+   //
+   //
+   //
+
+   long getPixelByteCount() {
+      if (tiled_) {
+         return planeCount_ * imageWidth_ * imageLength_ * bytesPerTilePixel_;
+      }
+      return Arrays.stream(blockByteCounts_).sum();
+   }
+
+   /**
+    * Get the file offset of the pixels if they are stored contiguously and
+    * in order (so that the file range can be used as the image as is).
+    *
+    * @return the offset, or -1 if the pixels are tiled or not contiguous
+    */
+   long getContiguousOffset() {
+      if (tiled_ || blockOffsets_.length == 0) {
+         return -1;
+      }
+      for (int i = 1; i < blockOffsets_.length; ++i) {
+         if (blockOffsets_[i] != blockOffsets_[i - 1] + blockByteCounts_[i - 1]) {
+            return -1;
+         }
+      }
+      return blockOffsets_[0];
+   }
+
+   /**
+    * Read the pixels into the remaining space of the destination buffer.
+    *
+    * @return a completion stage bearing {@code dest}, with its position
+    * advanced past the pixel data
+    */
+   CompletionStage<ByteBuffer> read(AsynchronousFileChannel chan, ByteBuffer dest) {
+      int size = (int) getPixelByteCount();
+      if (dest.remaining() < size) {
+         return Async.completedExceptionally(new IllegalArgumentException(
+            String.format("Destination buffer too small for pixels (%d < %d)",
+               dest.remaining(), size)));
+      }
+      int destStart = dest.position();
+      List<CompletableFuture<?>> reads = new ArrayList<>();
+      int blockCount = tiled_ ? (int) (planeCount_ * getTilesAcross() * getTilesDown()) :
+         blockOffsets_.length;
+      long destPos = destStart; // for strips only
+      int i = 0;
+      while (i < blockCount) {
+         // Find a run of blocks that are contiguous in the file
+         long runOffset = blockOffsets_[i];
+         long runSize = blockByteCounts_[i];
+         int j = i + 1;
+         while (j < blockCount && blockOffsets_[j] == runOffset + runSize &&
+               runSize + blockByteCounts_[j] <= Integer.MAX_VALUE) {
+            runSize += blockByteCounts_[j];
+            ++j;
+         }
+
+         if (tiled_) {
+            int firstTile = i;
+            int endTile = j;
+            ByteBuffer staging = bufferPool_.acquire((int) runSize);
+            reads.add(Async.read(chan, staging, runOffset, IOKind.PIXELS).thenAccept(b -> {
+               long tileStart = 0;
+               for (int t = firstTile; t < endTile; ++t) {
+                  copyTile(t, b, (int) tileStart, dest, destStart);
+                  tileStart += blockByteCounts_[t];
+               }
+            }).whenComplete((v, e) -> bufferPool_.release(staging)).
+               toCompletableFuture());
+         }
+         else {
+            ByteBuffer slice = dest.duplicate();
+            slice.limit((int) (destPos + runSize)).position((int) destPos);
+            reads.add(Async.read(chan, slice, runOffset, IOKind.PIXELS).
+               toCompletableFuture());
+            destPos += runSize;
+         }
+         i = j;
+      }
+
+      return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0])).
+         thenApply(v -> {
+            dest.position(destStart + size);
+            return dest;
+         });
+   }
+
+   private void copyTile(int tile, ByteBuffer src, int srcStart,
+                         ByteBuffer dest, int destStart) {
+      long tilesPerPlane = getTilesAcross() * getTilesDown();
+      long plane = tile / tilesPerPlane;
+      long tileY = (tile % tilesPerPlane) / getTilesAcross();
+      long tileX = (tile % tilesPerPlane) % getTilesAcross();
+      long x0 = tileX * tileWidth_;
+      long y0 = tileY * tileLength_;
+      long rows = Math.min(tileLength_, imageLength_ - y0);
+      int rowBytes = (int) (Math.min(tileWidth_, imageWidth_ - x0) * bytesPerTilePixel_);
+      long planeStart = destStart + plane * imageWidth_ * imageLength_ * bytesPerTilePixel_;
+
+      ByteBuffer s = src.duplicate();
+      ByteBuffer d = dest.duplicate();
+      for (long r = 0; r < rows; ++r) {
+         int srcPos = (int) (srcStart + r * tileWidth_ * bytesPerTilePixel_);
+         s.limit(srcPos + rowBytes).position(srcPos);
+         d.position((int) (planeStart + ((y0 + r) * imageWidth_ + x0) * bytesPerTilePixel_));
+         d.put(s);
+      }
+   }
+}
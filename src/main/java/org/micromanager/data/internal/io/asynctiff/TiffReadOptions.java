@@ -0,0 +1,142 @@
+package org.micromanager.data.internal.io.asynctiff;
+
+import com.google.common.base.Preconditions;
+import org.micromanager.data.internal.io.BufferPool;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Options controlling how TIFF structures are read.
+ *
+ * Options given to {@link TiffHeader#read(java.nio.channels.AsynchronousFileChannel, TiffReadOptions)}
+ * are inherited by the IFDs read through the header.
+ */
+public final class TiffReadOptions {
+   // Same as the default for CompletableFuture's async methods
+   private static final Executor DEFAULT_EXECUTOR =
+      ForkJoinPool.getCommonPoolParallelism() > 1 ? ForkJoinPool.commonPool() :
+         r -> new Thread(r).start();
+
+   private static final TiffReadOptions DEFAULTS = builder().build();
+
+   private final int readAheadSize_;
+   private final int maxValueReadGap_;
+   private final BufferPool bufferPool_; // null for the default pool
+   private final Executor executor_;
+
+   public static TiffReadOptions defaults() {
+      return DEFAULTS;
+   }
+
+   public static Builder builder() {
+      return new Builder();
+   }
+
+   public static class Builder {
+      private int readAheadSize_ = 0;
+      private int maxValueReadGap_ = 512;
+      private BufferPool bufferPool_ = null;
+      private Executor executor_ = DEFAULT_EXECUTOR;
+
+      private Builder() {}
+
+      /**
+       * Read IFDs speculatively, in blocks of the given size.
+       *
+       * When nonzero, each IFD is read with a single read of this many
+       * bytes (or more if the IFD is larger), rather than reading the entry
+       * count and then the entries. Out-of-line entry values that happen to
+       * fall in the block are decoded from it without further I/O.
+       *
+       * @param bytes the block size, or 0 to disable (the default)
+       * @return this builder
+       */
+      public Builder readAheadSize(int bytes) {
+         Preconditions.checkArgument(bytes >= 0,
+            "Read-ahead size must not be negative");
+         readAheadSize_ = bytes;
+         return this;
+      }
+
+      /**
+       * Maximum gap between out-of-line values that are read together.
+       *
+       * When the values of several IFD entries are read at once (see
+       * {@link TiffIFD#readValues}), values separated by no more than this
+       * many bytes are fetched with a single read.
+       *
+       * @param bytes the maximum gap (default 512)
+       * @return this builder
+       */
+      public Builder maxValueReadGap(int bytes) {
+         Preconditions.checkArgument(bytes >= 0,
+            "Maximum value read gap must not be negative");
+         maxValueReadGap_ = bytes;
+         return this;
+      }
+
+      /**
+       * Pool from which I/O buffers are acquired.
+       *
+       * This includes the buffers returned by
+       * {@link TiffIFD#readPixels(java.nio.channels.AsynchronousFileChannel)},
+       * which callers may release to the pool when done with them.
+       *
+       * @param pool the pool, or null to use {@link BufferPool#getDefault}
+       * (the default)
+       * @return this builder
+       */
+      public Builder bufferPool(BufferPool pool) {
+         bufferPool_ = pool;
+         return this;
+      }
+
+      /**
+       * Executor on which parsing continues after each read completes.
+       *
+       * By default this is the common fork-join pool (the same as for
+       * {@link CompletableFuture#thenComposeAsync(java.util.function.Function)}).
+       * A dedicated executor keeps file parsing from competing with other
+       * users of the common pool. See also {@link
+       * org.micromanager.data.internal.io.Async#open} for isolating the
+       * threads that complete the channel's I/O.
+       *
+       * @param executor the executor
+       * @return this builder
+       */
+      public Builder executor(Executor executor) {
+         Preconditions.checkNotNull(executor);
+         executor_ = executor;
+         return this;
+      }
+
+      public TiffReadOptions build() {
+         return new TiffReadOptions(this);
+      }
+   }
+
+   private TiffReadOptions(Builder b) {
+      readAheadSize_ = b.readAheadSize_;
+      maxValueReadGap_ = b.maxValueReadGap_;
+      bufferPool_ = b.bufferPool_;
+      executor_ = b.executor_;
+   }
+
+   public int getReadAheadSize() {
+      return readAheadSize_;
+   }
+
+   public int getMaxValueReadGap() {
+      return maxValueReadGap_;
+   }
+
+   public BufferPool getBufferPool() {
+      return bufferPool_ != null ? bufferPool_ : BufferPool.getDefault();
+   }
+
+   public Executor getExecutor() {
+      return executor_;
+   }
+}
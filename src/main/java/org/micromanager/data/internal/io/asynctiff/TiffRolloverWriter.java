@@ -0,0 +1,336 @@
+package org.micromanager.data.internal.io.asynctiff;
+
+import com.google.common.base.Preconditions;
+import org.micromanager.data.internal.io.Alignment;
+import org.micromanager.data.internal.io.Async;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.function.IntFunction;
+
+/**
+ * Writer of an image sequence split into multiple TIFF files of bounded
+ * size, in the manner of Micro-Manager datasets.
+ *
+ * Each file is written by a {@link TiffStackWriter}. Because every record
+ * has the size given by the {@link TiffIFDTemplate}, the end of the current
+ * file is known before a frame is submitted, and a frame that would cross
+ * the size limit is instead written as the first frame of the next file.
+ *
+ * Opening a file and writing its header (and starting preallocation, if
+ * requested) takes long enough to delay a frame. So when the current file
+ * comes within the preopen margin of the limit, the next file is opened on a
+ * background executor, and the switch (which happens under the writer's
+ * lock, between two frames) normally finds it ready. The previous file is
+ * finished asynchronously.
+ *
+ * Submission is serialized, so that frames are assigned to files in the
+ * order submitted. If the next file is not yet open when the switch is due
+ * (because the preopen margin was too small for the frame rate, or the
+ * executor is busy), {@code submit} blocks until it is, holding up other
+ * submitting threads. The default executor is therefore a dedicated daemon
+ * thread rather than a shared pool that may be saturated with other work.
+ */
+public final class TiffRolloverWriter {
+   private final IntFunction<Path> fileNames_;
+   private final TiffIFDTemplate template_;
+   private final TiffWriteOptions options_;
+   private final long maxFileSize_;
+   private final long preopenMargin_;
+   private final Executor executor_;
+   private final long firstRecordOffset_;
+
+   // Guarded by this
+   private TiffStackWriter current_;
+   private int currentIndex_;
+   private long currentEnd_; // Projected end of the frames submitted so far
+   private long currentFrameCount_;
+   private CompletableFuture<TiffStackWriter> next_; // null if not started
+   private final List<CompletionStage<Void>> finishing_ = new ArrayList<>();
+   private boolean finished_;
+
+   private static final class DefaultExecutor {
+      private static final ExecutorService INSTANCE =
+         Async.newThreadPool("TiffRolloverWriter", 1);
+   }
+
+   /**
+    * The location of a frame written by a {@link TiffRolloverWriter}.
+    */
+   public static final class Location {
+      private final int fileIndex_;
+      private final Path file_;
+      private final long offset_;
+
+      private Location(int fileIndex, Path file, long offset) {
+         fileIndex_ = fileIndex;
+         file_ = file;
+         offset_ = offset;
+      }
+
+      public int getFileIndex() {
+         return fileIndex_;
+      }
+
+      public Path getFile() {
+         return file_;
+      }
+
+      /**
+       * Get the offset of the frame's IFD in its file.
+       */
+      public long getOffset() {
+         return offset_;
+      }
+   }
+
+   public static Builder builder(IntFunction<Path> fileNames,
+                                 TiffIFDTemplate template) {
+      return new Builder(fileNames, template);
+   }
+
+   public static class Builder {
+      private final IntFunction<Path> fileNames_;
+      private final TiffIFDTemplate template_;
+      private TiffWriteOptions options_ = TiffWriteOptions.defaults();
+      private long maxFileSize_ = 4_000_000_000L;
+      private long preopenMargin_ = 256L << 20;
+      private Executor executor_ = DefaultExecutor.INSTANCE;
+
+      private Builder(IntFunction<Path> fileNames, TiffIFDTemplate template) {
+         fileNames_ = Preconditions.checkNotNull(fileNames);
+         template_ = Preconditions.checkNotNull(template);
+      }
+
+      /**
+       * @param options the options for writing each file
+       * @return this builder
+       */
+      public Builder writeOptions(TiffWriteOptions options) {
+         options_ = Preconditions.checkNotNull(options);
+         return this;
+      }
+
+      /**
+       * @param bytes the maximum size of each file (default 4,000,000,000);
+       * at most 4 GiB minus 4 bytes for classic TIFF, so that the 4-byte
+       * aligned end of the last record is a valid offset
+       * @return this builder
+       */
+      public Builder maxFileSize(long bytes) {
+         maxFileSize_ = bytes;
+         return this;
+      }
+
+      /**
+       * @param bytes the remaining space in the current file below which the
+       * next file is opened (default 256 MiB)
+       * @return this builder
+       */
+      public Builder preopenMargin(long bytes) {
+         Preconditions.checkArgument(bytes >= 0,
+            "Preopen margin must not be negative");
+         preopenMargin_ = bytes;
+         return this;
+      }
+
+      /**
+       * @param executor the executor on which to open files ahead of time;
+       * opening performs blocking I/O, so this should not be a pool shared
+       * with CPU-bound tasks (default a dedicated daemon thread shared by
+       * all writers)
+       * @return this builder
+       */
+      public Builder executor(Executor executor) {
+         executor_ = Preconditions.checkNotNull(executor);
+         return this;
+      }
+
+      /**
+       * Open the first file and create the writer.
+       *
+       * @return the writer
+       * @throws IOException if the first file could not be opened
+       */
+      public TiffRolloverWriter open() throws IOException {
+         return new TiffRolloverWriter(this);
+      }
+   }
+
+   private TiffRolloverWriter(Builder b) throws IOException {
+      fileNames_ = b.fileNames_;
+      template_ = b.template_;
+      options_ = b.options_;
+      maxFileSize_ = b.maxFileSize_;
+      preopenMargin_ = b.preopenMargin_;
+      executor_ = b.executor_;
+      firstRecordOffset_ = Alignment.align(
+         (long) template_.getTiffFormat().getHeaderSize() +
+            options_.getHeaderReserve(), 4);
+      // The NextIFD placeholder of the last record holds its aligned end
+      Preconditions.checkArgument(template_.getTiffFormat() != TiffFormat.CLASSIC ||
+         maxFileSize_ <= (1L << 32) - 4,
+         "Classic TIFF files cannot exceed 4 GiB minus 4 bytes");
+      Preconditions.checkArgument(maxFileSize_ >= firstRecordOffset_ +
+         template_.getRecordSize(0), "Maximum file size too small for a frame");
+
+      current_ = TiffStackWriter.open(fileNames_.apply(0), template_, options_);
+      currentEnd_ = firstRecordOffset_;
+   }
+
+   /**
+    * Get the index of the file currently being written.
+    */
+   public synchronized int getFileIndex() {
+      return currentIndex_;
+   }
+
+   /**
+    * Submit a frame, blocking if the current file's writer is over budget or
+    * if the next file is not yet open.
+    *
+    * @param description the value of the variable ASCII entry, from its
+    * position to its limit, or null if the template has none
+    * @param pixels the pixel data, from its position to its limit
+    * @return a completion stage bearing the location of the frame once it
+    * has been written
+    * @throws InterruptedException if interrupted while waiting for budget or
+    * for the next file to open
+    */
+   public synchronized CompletionStage<Location> submit(ByteBuffer description,
+                                                        ByteBuffer pixels)
+      throws InterruptedException {
+      if (finished_) {
+         return Async.completedExceptionally(
+            new IllegalStateException("Writer already finished"));
+      }
+      if (pixels.remaining() != template_.getPixelByteCount()) {
+         // Reject here so as not to count the frame toward the file size
+         return Async.completedExceptionally(new IllegalArgumentException(
+            "Pixel data size does not match template"));
+      }
+      long size = template_.getRecordSize(
+         description == null ? 0 : description.remaining());
+      if (firstRecordOffset_ + size > maxFileSize_) {
+         return Async.completedExceptionally(new IllegalArgumentException(
+            "Frame exceeds maximum file size"));
+      }
+      long offset = Alignment.align(currentEnd_, 4);
+      if (offset + size > maxFileSize_ && currentFrameCount_ > 0) {
+         try {
+            rollOver();
+         }
+         catch (IOException | RuntimeException e) {
+            return Async.completedExceptionally(e);
+         }
+         offset = firstRecordOffset_;
+      }
+      int index = currentIndex_;
+      Path file = fileNames_.apply(index);
+      CompletionStage<Location> location = current_.submit(description, pixels).
+         thenApply(o -> new Location(index, file, o));
+
+      // Only now that the frame has been accepted (submit may have been
+      // interrupted while waiting for budget)
+      currentEnd_ = offset + size;
+      ++currentFrameCount_;
+      if (next_ == null && maxFileSize_ - currentEnd_ < preopenMargin_) {
+         preopen();
+      }
+      return location;
+   }
+
+   private void preopen() {
+      Path file = fileNames_.apply(currentIndex_ + 1);
+      next_ = CompletableFuture.supplyAsync(() -> {
+         try {
+            return TiffStackWriter.open(file, template_, options_);
+         }
+         catch (IOException e) {
+            throw new UncheckedIOException(e);
+         }
+      }, executor_);
+   }
+
+   private void rollOver() throws IOException, InterruptedException {
+      if (next_ == null) {
+         preopen();
+      }
+      TiffStackWriter next;
+      try {
+         next = next_.get();
+      }
+      catch (ExecutionException e) {
+         // Retry on the next switch
+         next_ = null;
+         Throwable cause = e.getCause() instanceof UncheckedIOException ?
+            e.getCause().getCause() : e.getCause();
+         if (cause instanceof IOException) {
+            throw (IOException) cause;
+         }
+         throw new IOException(cause);
+      }
+      finishing_.add(current_.finish());
+      current_ = next;
+      next_ = null;
+      ++currentIndex_;
+      currentEnd_ = firstRecordOffset_;
+      currentFrameCount_ = 0;
+   }
+
+   /**
+    * Finish all files.
+    *
+    * A next file that was opened ahead of time but never used is deleted;
+    * if opening it failed, the failure is ignored.
+    *
+    * @return a completion stage that completes when all files are complete,
+    * or exceptionally if any write failed
+    */
+   public synchronized CompletionStage<Void> finish() {
+      Preconditions.checkState(!finished_, "Writer already finished");
+      finished_ = true;
+      List<CompletableFuture<Void>> all = new ArrayList<>();
+      for (CompletionStage<Void> f : finishing_) {
+         all.add(f.toCompletableFuture());
+      }
+      finishing_.clear();
+      all.add(current_.finish().toCompletableFuture());
+      if (next_ != null) {
+         Path unused = fileNames_.apply(currentIndex_ + 1);
+         all.add(next_.handle((w, e) -> w).thenCompose(w -> {
+            if (w == null) {
+               // Opening failed, but the file was never needed; remove
+               // whatever it left behind, if possible
+               try {
+                  Files.deleteIfExists(unused);
+               }
+               catch (IOException e) {
+                  // Ignore
+               }
+               return CompletableFuture.completedFuture(null);
+            }
+            return w.finish().thenRun(() -> {
+               try {
+                  Files.deleteIfExists(unused);
+               }
+               catch (IOException e) {
+                  throw new UncheckedIOException(e);
+               }
+            });
+         }));
+         next_ = null;
+      }
+      return CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[0]));
+   }
+}
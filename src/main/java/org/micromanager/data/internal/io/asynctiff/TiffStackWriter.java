@@ -0,0 +1,696 @@
+package org.micromanager.data.internal.io.asynctiff;
+
+import com.google.common.base.Preconditions;
+import org.micromanager.data.internal.io.AlignedAppender;
+import org.micromanager.data.internal.io.Alignment;
+import org.micromanager.data.internal.io.AppendCursor;
+import org.micromanager.data.internal.io.Async;
+import org.micromanager.data.internal.io.BufferPool;
+import org.micromanager.data.internal.io.DirectIO;
+import org.micromanager.data.internal.io.FlightRecorderEvents;
+import org.micromanager.data.internal.io.IOKind;
+import org.micromanager.data.internal.io.Preallocator;
+import org.micromanager.data.internal.io.UnbufferedPosition;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writer of a multi-page TIFF file whose pages share a
+ * {@link TiffIFDTemplate}.
+ *
+ * Each submitted frame is copied, on the submitting thread, into a pooled
+ * buffer, and the caller's buffers can be reused as soon as the submit method
+ * returns. Frames are then placed in the file in order of their sequence
+ * numbers: each is assigned the region following the previous frame, its IFD
+ * is serialized in front of the pixel data, and the record is written with a
+ * single write. The I/O of earlier frames thus overlaps the copying of later
+ * ones, up to a budget of in-flight bytes, beyond which {@link #submit}
+ * blocks (and {@link #trySubmit} declines).
+ *
+ * Submission is lock-free and may be done from any number of threads.
+ * Frames are handed over through a concurrent queue and placed by whichever
+ * submitting thread finds the queue undrained; the placing thread holds back
+ * frames that arrive ahead of their predecessors. The chain order is
+ * therefore determined by the sequence numbers alone: either those given
+ * explicitly to {@link #submit(long, ByteBuffer, ByteBuffer)}, which must
+ * start at 0 with no gaps or duplicates, or those assigned in order of
+ * admission by the other submit methods. The two styles must not be mixed.
+ *
+ * With direct I/O (see {@link #open}), a frame is staged into an aligned
+ * chunk rather than written by itself, and its completion stage completes
+ * only when the chunk holding the end of its record has been written. The
+ * last chunk is written by {@link #finish}, so the stages of the most
+ * recent frames may not complete until then. A frame's budget is released
+ * once it has been staged; if no chunk is free, the placing thread returns
+ * and a chunk write completion resumes placement.
+ *
+ * Because records are laid out back to back, the NextIFDOffset of each
+ * frame is written as the offset at which the following frame will start,
+ * so that no field needs to be patched per frame. {@link #finish} terminates
+ * the chain by zeroing the NextIFDOffset of the last frame. Until then, the
+ * file ends with a dangling NextIFDOffset.
+ */
+public final class TiffStackWriter {
+   private static final int DIRECT_CHUNK_SIZE = 4 << 20;
+   private static final int DIRECT_CHUNK_COUNT = 4;
+
+   private final AsynchronousFileChannel chan_;
+   private final Path file_; // Non-null if the writer owns the channel
+   private final AlignedAppender appender_; // Non-null for direct I/O
+   private final Preallocator preallocator_; // Non-null if preallocating
+   private final TiffIFDTemplate template_;
+   private final AppendCursor cursor_;
+   private final int maxInFlightBytes_;
+   private final Semaphore budget_;
+   // Threads in submit(long, ...) waiting for budget or for their turn;
+   // signaled only when there are any, so that releasing stays lock-free
+   private final ReentrantLock waitLock_ = new ReentrantLock();
+   private final Condition budgetOrTurn_ = waitLock_.newCondition();
+   private final AtomicInteger waiters_ = new AtomicInteger();
+   private final BufferPool pool_ = BufferPool.getDefault();
+
+   private final AtomicLong nextTicket_ = new AtomicLong();
+   private final Queue<Frame> submitted_ = new ConcurrentLinkedQueue<>();
+   private final AtomicInteger drainRequests_ = new AtomicInteger();
+   // Accessed only by the draining thread
+   private final Map<Long, Frame> heldBack_ = new HashMap<>();
+   private Frame staging_; // Partly staged into the appender
+   private long stagingOffset_;
+   private volatile long nextSequence_;
+
+   private volatile long lastRecordOffset_ = -1;
+   private final AtomicLong frameCount_ = new AtomicLong();
+   // Pending writes, plus one until finish() is called
+   private final AtomicInteger pending_ = new AtomicInteger(1);
+   private final AtomicReference<Throwable> error_ = new AtomicReference<>();
+   private final CompletableFuture<Void> drained_ = new CompletableFuture<>();
+   private volatile boolean finished_;
+
+   private static final class Frame {
+      final long sequence;
+      final ByteBuffer buffer;
+      final ByteBuffer description;
+      final int size;
+      final int permits;
+      final CompletableFuture<Long> result = new CompletableFuture<>();
+
+      // Flight recorder event and its timings; event is null if not recording
+      final FlightRecorderEvents.Event event;
+      final long budgetWaitNanos;
+      final long stagedNanos;
+      long writeStartNanos;
+
+      Frame(long sequence, ByteBuffer buffer, ByteBuffer description,
+            int size, int permits, FlightRecorderEvents.Event event,
+            long budgetWaitNanos) {
+         this.sequence = sequence;
+         this.buffer = buffer;
+         this.description = description;
+         this.size = size;
+         this.permits = permits;
+         this.event = event;
+         this.budgetWaitNanos = budgetWaitNanos;
+         this.stagedNanos = event == null ? 0 : System.nanoTime();
+         this.writeStartNanos = stagedNanos;
+      }
+   }
+
+   public static TiffStackWriter create(AsynchronousFileChannel chan,
+                                        TiffIFDTemplate template) {
+      return create(chan, template, TiffWriteOptions.defaults());
+   }
+
+   /**
+    * Start writing a file, beginning with its header at offset 0.
+    *
+    * @param chan the asynchronous file channel, which should be empty; it is
+    * not closed by the writer
+    * @param template the template for every page
+    * @param options the write options, which must not request direct I/O
+    * @return the writer
+    */
+   public static TiffStackWriter create(AsynchronousFileChannel chan,
+                                        TiffIFDTemplate template,
+                                        TiffWriteOptions options) {
+      Preconditions.checkArgument(!options.isDirectIO(),
+         "Direct I/O requires the writer to open the file");
+      return new TiffStackWriter(chan, null, 1, template, options);
+   }
+
+   /**
+    * Create (or overwrite) a file and start writing it.
+    *
+    * With {@link TiffWriteOptions.Builder#directIO}, the file is opened for
+    * direct I/O if the JVM supports it. Direct I/O bypasses the page cache,
+    * so that writing a long acquisition does not fill memory with dirty
+    * pages whose writeback would stall the writer. Records are then staged
+    * into 16 MiB of block-aligned chunks by an {@link AlignedAppender}; when
+    * finishing, the file is truncated to its true length, and the
+    * NextIFDOffset of the last frame is patched, through a separately
+    * opened, buffered channel.
+    *
+    * @param file the file; the writer closes it when finished
+    * @param template the template for every page
+    * @param options the write options
+    * @return the writer
+    * @throws IOException if the file could not be opened (including if the
+    * file system does not support direct I/O)
+    */
+   public static TiffStackWriter open(Path file, TiffIFDTemplate template,
+                                      TiffWriteOptions options)
+      throws IOException {
+      Set<OpenOption> openOptions = new HashSet<>(Arrays.asList(
+         StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+         StandardOpenOption.TRUNCATE_EXISTING));
+      if (!options.isDirectIO() || !DirectIO.isSupported()) {
+         return new TiffStackWriter(
+            AsynchronousFileChannel.open(file, openOptions, null), file, 1,
+            template, options);
+      }
+      openOptions.add(DirectIO.directOption());
+      int blockSize = DirectIO.blockSize(file.toAbsolutePath().getParent());
+      return new TiffStackWriter(
+         AsynchronousFileChannel.open(file, openOptions, null), file, blockSize,
+         template, options);
+   }
+
+   // blockSize is 1 unless using direct I/O
+   private TiffStackWriter(AsynchronousFileChannel chan, Path file,
+                           int blockSize, TiffIFDTemplate template,
+                           TiffWriteOptions options) {
+      chan_ = chan;
+      file_ = file;
+      template_ = template;
+      maxInFlightBytes_ = options.getMaxInFlightBytes();
+      budget_ = new Semaphore(maxInFlightBytes_);
+      int headerSize = template.getTiffFormat().getHeaderSize();
+      long headerEnd = headerSize + (long) options.getHeaderReserve();
+      cursor_ = AppendCursor.at(headerEnd);
+
+      // Preallocate from after the header and reserve (or their block), so
+      // as not to race with writing them
+      if (options.getPreallocationMode() != null) {
+         preallocator_ = Preallocator.create(chan,
+            Alignment.align(headerEnd, blockSize),
+            options.getPreallocationMode(),
+            Alignment.align(options.getPreallocationChunkSize(), blockSize),
+            blockSize);
+      }
+      else {
+         preallocator_ = null;
+      }
+      appender_ = blockSize == 1 ? null : AlignedAppender.create(chan, 0,
+         blockSize, Alignment.align(DIRECT_CHUNK_SIZE, blockSize),
+         DIRECT_CHUNK_COUNT, preallocator_);
+
+      // The first record will be reserved right after the header and reserve
+      TiffHeader header = createHeader(Alignment.align(headerEnd, 4));
+      if (appender_ == null) {
+         track(header.write(chan));
+      }
+      else {
+         ByteBuffer b = ByteBuffer.allocate(headerSize).
+            order(template.getTiffByteOrder());
+         header.write(b);
+         b.rewind();
+         // Completes only once its chunk is written; failures are reported
+         // by the appender's finish()
+         appender_.append(b, 0);
+      }
+   }
+
+   //
+   //
+   //
+
+   public long getFrameCount() {
+      return frameCount_.get();
+   }
+
+   public int getInFlightBytes() {
+      return maxInFlightBytes_ - budget_.availablePermits();
+   }
+
+   /**
+    * Get the end of the data placed so far, which is the file size once all
+    * writes have completed.
+    */
+   public long getEnd() {
+      return cursor_.getEnd();
+   }
+
+   /**
+    * Submit the next frame, blocking while the in-flight byte budget is
+    * exhausted.
+    *
+    * @param description the UTF-8 bytes of the template's variable entry
+    * value, or null if there is none; its position is not changed
+    * @param pixels the pixel data; its position is not changed
+    * @return a completion stage bearing the file offset of the frame's IFD,
+    * which completes when the frame has been written (with direct I/O, when
+    * its staging chunk has been written, which may be at {@link #finish})
+    * @throws InterruptedException if interrupted while waiting for budget
+    */
+   public CompletionStage<Long> submit(ByteBuffer description, ByteBuffer pixels)
+      throws InterruptedException {
+      checkPixels(pixels);
+      int permits = permitsFor(description);
+      FlightRecorderEvents.Event event = FlightRecorderEvents.FRAME_WRITE.begin();
+      long waitStart = event == null ? 0 : System.nanoTime();
+      budget_.acquire(permits);
+      return stage(nextTicket_.getAndIncrement(), description, pixels, permits,
+         event, event == null ? 0 : System.nanoTime() - waitStart);
+   }
+
+   /**
+    * Submit the next frame if the in-flight byte budget allows it.
+    *
+    * @param description the UTF-8 bytes of the template's variable entry
+    * value, or null if there is none; its position is not changed
+    * @param pixels the pixel data; its position is not changed
+    * @return a completion stage as for {@link #submit}, or null if the frame
+    * was not submitted
+    */
+   public CompletionStage<Long> trySubmit(ByteBuffer description, ByteBuffer pixels) {
+      checkPixels(pixels);
+      int permits = permitsFor(description);
+      if (!budget_.tryAcquire(permits)) {
+         return null;
+      }
+      return stage(nextTicket_.getAndIncrement(), description, pixels, permits,
+         FlightRecorderEvents.FRAME_WRITE.begin(), 0);
+   }
+
+   /**
+    * Submit a frame with an explicit sequence number, blocking while the
+    * in-flight byte budget is exhausted.
+    *
+    * Frames are chained in order of sequence number, whatever the order of
+    * submission. So that a frame cannot be starved of budget by its
+    * successors, the frame that is next in sequence is admitted over budget.
+    *
+    * @param sequence the sequence number, counting from 0
+    * @param description the UTF-8 bytes of the template's variable entry
+    * value, or null if there is none; its position is not changed
+    * @param pixels the pixel data; its position is not changed
+    * @return a completion stage as for {@link #submit(ByteBuffer, ByteBuffer)}
+    * @throws InterruptedException if interrupted while waiting for budget
+    */
+   public CompletionStage<Long> submit(long sequence, ByteBuffer description,
+                                       ByteBuffer pixels)
+      throws InterruptedException {
+      Preconditions.checkArgument(sequence >= 0, "Negative sequence number");
+      checkPixels(pixels);
+      int permits = permitsFor(description);
+      FlightRecorderEvents.Event event = FlightRecorderEvents.FRAME_WRITE.begin();
+      long waitStart = event == null ? 0 : System.nanoTime();
+      if (!budget_.tryAcquire(permits)) {
+         permits = awaitBudgetOrTurn(sequence, permits);
+      }
+      return stage(sequence, description, pixels, permits, event,
+         event == null ? 0 : System.nanoTime() - waitStart);
+   }
+
+   // Return the permits acquired, or 0 if admitted as next in sequence
+   private int awaitBudgetOrTurn(long sequence, int permits)
+      throws InterruptedException {
+      // Register before checking, so that a release or advance in between
+      // signals us
+      waiters_.incrementAndGet();
+      waitLock_.lock();
+      try {
+         for (;;) {
+            if (budget_.tryAcquire(permits)) {
+               return permits;
+            }
+            if (sequence == nextSequence_) {
+               return 0;
+            }
+            budgetOrTurn_.await();
+         }
+      }
+      finally {
+         waitLock_.unlock();
+         waiters_.decrementAndGet();
+      }
+   }
+
+   private void releaseBudget(int permits) {
+      budget_.release(permits);
+      signalWaiters();
+   }
+
+   private void signalWaiters() {
+      if (waiters_.get() > 0) {
+         waitLock_.lock();
+         try {
+            budgetOrTurn_.signalAll();
+         }
+         finally {
+            waitLock_.unlock();
+         }
+      }
+   }
+
+   private void checkPixels(ByteBuffer pixels) {
+      Preconditions.checkArgument(pixels.remaining() == template_.getPixelByteCount(),
+         "Pixel buffer size does not match template");
+   }
+
+   // A record larger than the budget is admitted alone
+   private int permitsFor(ByteBuffer description) {
+      return Math.min(recordSize(description), maxInFlightBytes_);
+   }
+
+   private int recordSize(ByteBuffer description) {
+      return template_.getRecordSize(description == null ? 0 : description.remaining());
+   }
+
+   //
+   //
+   //
+
+   // Copy the frame and hand it to the draining thread
+   private CompletionStage<Long> stage(long sequence, ByteBuffer description,
+                                       ByteBuffer pixels, int permits,
+                                       FlightRecorderEvents.Event event,
+                                       long budgetWaitNanos) {
+      pending_.incrementAndGet();
+      Throwable error = error_.get();
+      if (finished_ || error != null) {
+         releaseBudget(permits);
+         completePending();
+         return Async.completedExceptionally(error != null ? error :
+            new IllegalStateException("Writer already finished"));
+      }
+
+      int descriptionSize = description == null ? 0 : description.remaining();
+      int size = template_.getRecordSize(descriptionSize);
+      ByteBuffer buffer = pool_.acquire(size).
+         order(template_.getTiffByteOrder());
+      buffer.position(template_.getPixelsOffset(descriptionSize));
+      int pixelsStart = pixels.position();
+      buffer.put(pixels);
+      pixels.position(pixelsStart);
+      ByteBuffer descriptionCopy = null;
+      if (description != null) {
+         descriptionCopy = ByteBuffer.allocate(descriptionSize);
+         descriptionCopy.put(description.duplicate());
+         descriptionCopy.flip();
+      }
+
+      Frame frame = new Frame(sequence, buffer, descriptionCopy, size, permits,
+         event, budgetWaitNanos);
+      submitted_.offer(frame);
+      drain();
+      return frame.result;
+   }
+
+   // Place submitted frames in sequence order; only one thread at a time
+   // gets past the first line
+   private void drain() {
+      if (drainRequests_.getAndIncrement() != 0) {
+         return;
+      }
+      int requests = 1;
+      for (;;) {
+         Frame frame;
+         while ((frame = submitted_.poll()) != null) {
+            if (frame.sequence < nextSequence_ ||
+                  heldBack_.putIfAbsent(frame.sequence, frame) != null) {
+               fail(frame, new IllegalArgumentException(
+                  "Duplicate sequence number " + frame.sequence));
+            }
+         }
+         while (resumeStaging() &&
+               (frame = heldBack_.remove(nextSequence_)) != null) {
+            nextSequence_ = nextSequence_ + 1;
+            signalWaiters();
+            place(frame);
+         }
+         if (finished_ && staging_ == null && !heldBack_.isEmpty()) {
+            IllegalStateException e = new IllegalStateException(
+               "Writer finished while missing sequence number " + nextSequence_);
+            for (Frame f : heldBack_.values()) {
+               fail(f, e);
+            }
+            heldBack_.clear();
+         }
+         requests = drainRequests_.addAndGet(-requests);
+         if (requests == 0) {
+            return;
+         }
+      }
+   }
+
+   private void place(Frame frame) {
+      long offset = cursor_.reserve(frame.size, 4);
+      try {
+         frame.buffer.position(0);
+         template_.serializeMetadata(frame.buffer, offset, frame.description,
+            Alignment.align(offset + frame.size, 4));
+         frame.buffer.rewind();
+      }
+      catch (RuntimeException e) {
+         // The reserved region cannot be given back; fail the writer
+         error_.compareAndSet(null, e);
+         fail(frame, e);
+         return;
+      }
+      lastRecordOffset_ = offset;
+      frameCount_.incrementAndGet();
+
+      if (appender_ != null) {
+         // Staged by resumeStaging(), which the drain loop calls next
+         markWriteStart(frame);
+         staging_ = frame;
+         stagingOffset_ = offset;
+         return;
+      }
+
+      CompletionStage<Void> ready = preallocator_ == null ?
+         CompletableFuture.completedFuture(null) :
+         preallocator_.ready(offset + frame.size);
+      ready.
+         thenCompose(v -> {
+            markWriteStart(frame);
+            return Async.write(chan_, frame.buffer, offset, IOKind.RECORD);
+         }).
+         whenComplete((v, e) -> {
+            commitEvent(frame, offset, e != null);
+            pool_.release(frame.buffer);
+            releaseBudget(frame.permits);
+            if (e != null) {
+               error_.compareAndSet(null, e);
+               frame.result.completeExceptionally(e);
+            }
+            else {
+               frame.result.complete(offset);
+            }
+            completePending();
+         });
+   }
+
+   // Copy as much of the frame being staged as the appender's free chunks
+   // allow; return false, having arranged to drain again when a chunk is
+   // freed, if the frame could not be staged in full. Blocking for a chunk
+   // here would hold up the submitting thread that happens to be draining.
+   private boolean resumeStaging() {
+      Frame frame = staging_;
+      if (frame == null) {
+         return true;
+      }
+      long offset = stagingOffset_;
+      CompletionStage<Void> written = appender_.tryAppend(frame.buffer,
+         offset + frame.buffer.position());
+      if (written == null) {
+         appender_.whenChunkFree().thenRun(this::drain);
+         return false;
+      }
+      staging_ = null;
+
+      // Once staged, the frame no longer holds its buffer or budget
+      pool_.release(frame.buffer);
+      releaseBudget(frame.permits);
+      completePending();
+      written.whenComplete((v, e) -> {
+         commitEvent(frame, offset, e != null);
+         if (e != null) {
+            error_.compareAndSet(null, e);
+            frame.result.completeExceptionally(e);
+         }
+         else {
+            frame.result.complete(offset);
+         }
+      });
+      return true;
+   }
+
+   private static void markWriteStart(Frame frame) {
+      if (frame.event != null) {
+         frame.writeStartNanos = System.nanoTime();
+      }
+   }
+
+   // Commit the frame's flight recorder event, splitting its duration into
+   // waiting for budget, waiting to be placed (and for preallocation), and
+   // writing
+   private static void commitEvent(Frame frame, long offset, boolean failed) {
+      if (frame.event == null) {
+         return;
+      }
+      long now = System.nanoTime();
+      frame.event.commit(offset, (long) frame.size, frame.budgetWaitNanos,
+         frame.writeStartNanos - frame.stagedNanos,
+         now - frame.writeStartNanos, failed);
+   }
+
+   private void fail(Frame frame, Throwable e) {
+      commitEvent(frame, -1, true);
+      pool_.release(frame.buffer);
+      releaseBudget(frame.permits);
+      frame.result.completeExceptionally(e);
+      completePending();
+   }
+
+   private void track(CompletionStage<Void> write) {
+      pending_.incrementAndGet();
+      write.whenComplete((v, e) -> {
+         if (e != null) {
+            error_.compareAndSet(null, e);
+         }
+         completePending();
+      });
+   }
+
+   private void completePending() {
+      if (pending_.decrementAndGet() == 0) {
+         drained_.complete(null);
+      }
+   }
+
+   private TiffHeader createHeader(long firstIFDOffset) {
+      TiffFormat format = template_.getTiffFormat();
+      return TiffHeader.createForWrite(format, template_.getTiffByteOrder(),
+         TiffOffsetField.forOffsetValue(format,
+            UnbufferedPosition.at(firstIFDOffset), "FirstIFDOffset"));
+   }
+
+   //
+   //
+   //
+
+   /**
+    * Finish the file once all submitted frames have been written.
+    *
+    * No frames may be submitted after this method is called, and frames
+    * still waiting for a missing predecessor are failed. The chain is
+    * terminated by zeroing the NextIFDOffset of the last frame (or, if there
+    * are no frames, the FirstIFDOffset).
+    *
+    * If the writer was created with {@link #open}, the file is closed. If
+    * preallocating, the file is truncated to the end of the last frame.
+    *
+    * @return a completion stage that completes when the file is complete,
+    * or exceptionally if any write failed
+    */
+   public CompletionStage<Void> finish() {
+      Preconditions.checkState(!finished_, "Writer already finished");
+      finished_ = true;
+      drain();
+      completePending();
+      CompletionStage<Void> done = drained_.thenCompose(v -> {
+         Throwable error = error_.get();
+         if (error != null) {
+            return Async.completedExceptionally(error);
+         }
+         if (appender_ == null) {
+            CompletionStage<Void> trimmed = preallocator_ == null ?
+               CompletableFuture.completedFuture(null) :
+               preallocator_.trim(cursor_.getEnd());
+            return trimmed.thenCompose(t -> terminateChain(chan_));
+         }
+         return appender_.finish().thenCompose(end -> preallocator_ == null ?
+            finishDirect(end) :
+            preallocator_.trim(end).thenCompose(t -> finishDirect(end)));
+      });
+      if (file_ == null) {
+         return done;
+      }
+      // Close our channel, whether or not we succeeded
+      return done.handle((v, e) -> {
+         try {
+            chan_.close();
+         }
+         catch (IOException closeError) {
+            if (e == null) {
+               e = closeError;
+            }
+         }
+         return e;
+      }).thenCompose(e -> e == null ? CompletableFuture.completedFuture(null) :
+         Async.completedExceptionally(e));
+   }
+
+   private CompletionStage<Void> finishDirect(long end) {
+      AsynchronousFileChannel buffered;
+      try {
+         chan_.close();
+         buffered = AsynchronousFileChannel.open(file_, StandardOpenOption.WRITE);
+      }
+      catch (IOException e) {
+         return Async.completedExceptionally(e);
+      }
+      CompletionStage<Void> patched;
+      try {
+         buffered.truncate(end);
+         patched = terminateChain(buffered);
+      }
+      catch (IOException e) {
+         patched = Async.completedExceptionally(e);
+      }
+      return patched.handle((v, e) -> {
+         try {
+            buffered.close();
+         }
+         catch (IOException closeError) {
+            if (e == null) {
+               e = closeError;
+            }
+         }
+         return e;
+      }).thenCompose(e -> e == null ? CompletableFuture.completedFuture(null) :
+         Async.completedExceptionally(e));
+   }
+
+   private CompletionStage<Void> terminateChain(AsynchronousFileChannel chan) {
+      long last = lastRecordOffset_;
+      if (last < 0) {
+         return createHeader(0).write(chan);
+      }
+      TiffFormat format = template_.getTiffFormat();
+      return TiffOffsetField.forOffsetValue(format, UnbufferedPosition.at(0),
+         "NextIFDOffset").write(chan, template_.getTiffByteOrder(),
+         last + template_.getNextIFDOffsetPosition());
+   }
+}
@@ -95,12 +95,17 @@ public abstract class TiffTag {
       ImageLength(257, SHORT, LONG),
       ImageWidth(256, SHORT, LONG),
       PhotometricInterpretation(262, SHORT),
+      PlanarConfiguration(284, SHORT),
       ResolutionUnit(296, SHORT),
       RowsPerStrip(278, SHORT, LONG),
       SamplesPerPixel(277, SHORT),
       Software(305, ASCII),
-      StripByteCounts(279, SHORT, LONG),
-      StripOffsets(273, SHORT, LONG),
+      StripByteCounts(279, SHORT, LONG, LONG8),
+      StripOffsets(273, SHORT, LONG, LONG8),
+      TileByteCounts(325, SHORT, LONG, LONG8),
+      TileLength(323, SHORT, LONG),
+      TileOffsets(324, LONG, LONG8),
+      TileWidth(322, SHORT, LONG),
       XResolution(282, RATIONAL),
       YResolution(283, RATIONAL),
 
@@ -36,6 +36,10 @@ public abstract class TiffValue {
       return getTiffType().fitsInIFDEntry(getCount());
    }
 
+   public final boolean fitsInIFDEntry(TiffFormat format) {
+      return getTiffType().fitsInIFDEntry(getCount(), format);
+   }
+
    public abstract void write(ByteBuffer b, BufferedPositionGroup posGroup);
 
    public void writeAndPad(ByteBuffer b, BufferedPositionGroup posGroup, int fixedSize) {
@@ -354,6 +358,92 @@ public abstract class TiffValue {
       }
    }
 
+   public static class Long8s extends TiffValue {
+      protected final long[] values_;
+
+      Long8s(int count, ByteBuffer b) {
+         values_ = new long[count];
+         b.asLongBuffer().get(values_);
+         b.position(b.position() + 8 * count);
+      }
+
+      private Long8s(long[] values) {
+         values_ = values;
+      }
+
+      public static Long8s create(long[] values) {
+         return new Long8s(values);
+      }
+
+      public static Long8s create(long value) {
+         return create(new long[] { value });
+      }
+
+      @Override
+      public TiffFieldType getTiffType() {
+         return TiffFieldType.LONG8;
+      }
+
+      @Override
+      public int getCount() {
+         return values_.length;
+      }
+
+      @Override
+      public long longValue(int index) {
+         // Values above 2^63 - 1 are not supported (and not useful as offsets)
+         return values_[index];
+      }
+
+      @Override
+      public void write(ByteBuffer b, BufferedPositionGroup posGroup) {
+         b.asLongBuffer().put(values_);
+         b.position(b.position() + 8 * values_.length);
+      }
+   }
+
+   public static class SignedLong8s extends Long8s {
+      SignedLong8s(int count, ByteBuffer b) {
+         super(count, b);
+      }
+
+      private SignedLong8s(long[] values) {
+         super(values);
+      }
+
+      public static SignedLong8s create(long[] values) {
+         return new SignedLong8s(values);
+      }
+
+      public static SignedLong8s create(long value) {
+         return create(new long[] { value });
+      }
+
+      @Override
+      public TiffFieldType getTiffType() {
+         return TiffFieldType.SLONG8;
+      }
+   }
+
+   public static class IFD8s extends Long8s {
+      IFD8s(int count, ByteBuffer b) {
+         super(count, b);
+      }
+
+      private IFD8s(long[] values) {
+         super(values);
+      }
+
+      public static IFD8s create(long[] values) {
+         return new IFD8s(values);
+      }
+
+      @Override
+      public TiffFieldType getTiffType() {
+         return TiffFieldType.IFD8;
+      }
+   }
+
    public static class Rationals extends TiffValue {
       protected final int[] numersDenoms_;
 
@@ -528,11 +618,14 @@ public abstract class TiffValue {
    }
 
    public static class Offsets extends TiffValue {
+      private final TiffFormat format_;
       private final List<TiffOffsetField> offsets_ = new ArrayList<>();
 
-      private Offsets(int count, String annotation, TiffOffsetFieldGroup fieldGroup) {
+      private Offsets(TiffFormat format, int count, String annotation,
+                      TiffOffsetFieldGroup fieldGroup) {
+         format_ = format;
          for (int i = 0; i < count; ++i) {
-            TiffOffsetField offsetField = TiffOffsetField.create(
+            TiffOffsetField offsetField = TiffOffsetField.create(format,
                annotation + String.format("[%d]", i));
             fieldGroup.add(offsetField);
             offsets_.add(offsetField);
@@ -541,12 +634,19 @@ public abstract class TiffValue {
 
       public static Offsets create(int count, String annotation,
                                    TiffOffsetFieldGroup fieldGroup) {
-         return new Offsets(count, annotation, fieldGroup);
+         return create(TiffFormat.CLASSIC, count, annotation, fieldGroup);
+      }
+
+      public static Offsets create(TiffFormat format, int count,
+                                   String annotation,
+                                   TiffOffsetFieldGroup fieldGroup) {
+         return new Offsets(format, count, annotation, fieldGroup);
       }
 
       @Override
       public TiffFieldType getTiffType() {
-         return TiffFieldType.LONG;
+         return format_ == TiffFormat.BIGTIFF ?
+            TiffFieldType.LONG8 : TiffFieldType.LONG;
       }
 
       @Override
@@ -0,0 +1,130 @@
+package org.micromanager.data.internal.io.asynctiff;
+
+import com.google.common.base.Preconditions;
+import org.micromanager.data.internal.io.DirectIO;
+import org.micromanager.data.internal.io.Preallocator;
+
+/**
+ * Options controlling how a {@link TiffStackWriter} writes a file.
+ */
+public final class TiffWriteOptions {
+   private static final TiffWriteOptions DEFAULTS = builder().build();
+
+   private final int maxInFlightBytes_;
+   private final boolean directIO_;
+   private final Preallocator.Mode preallocationMode_; // null for none
+   private final long preallocationChunkSize_;
+   private final int headerReserve_;
+
+   public static TiffWriteOptions defaults() {
+      return DEFAULTS;
+   }
+
+   public static Builder builder() {
+      return new Builder();
+   }
+
+   public static class Builder {
+      private int maxInFlightBytes_ = 256 << 20;
+      private boolean directIO_ = false;
+      private Preallocator.Mode preallocationMode_ = null;
+      private long preallocationChunkSize_ = 64 << 20;
+      private int headerReserve_ = 0;
+
+      private Builder() {}
+
+      /**
+       * Maximum total size of frames submitted but not yet written, beyond
+       * which submitting blocks.
+       *
+       * @param bytes the budget (default 256 MiB)
+       * @return this builder
+       */
+      public Builder maxInFlightBytes(int bytes) {
+         Preconditions.checkArgument(bytes > 0,
+            "In-flight byte budget must be positive");
+         maxInFlightBytes_ = bytes;
+         return this;
+      }
+
+      /**
+       * Write with direct I/O, bypassing the page cache, if supported.
+       *
+       * Only applies to files opened by the writer; see
+       * {@link TiffStackWriter#open} and {@link DirectIO}.
+       *
+       * @param enable whether to use direct I/O (default false)
+       * @return this builder
+       */
+      public Builder directIO(boolean enable) {
+         directIO_ = enable;
+         return this;
+      }
+
+      /**
+       * Allocate file space ahead of the frames being written.
+       *
+       * @param mode the preallocation mode, or null for none (the default)
+       * @param chunkSize the size by which to extend the file (default 64
+       * MiB); rounded up to the block size for direct I/O
+       * @return this builder
+       */
+      public Builder preallocation(Preallocator.Mode mode, long chunkSize) {
+         Preconditions.checkArgument(chunkSize > 0,
+            "Preallocation chunk size must be positive");
+         preallocationMode_ = mode;
+         preallocationChunkSize_ = chunkSize;
+         return this;
+      }
+
+      /**
+       * Leave space between the TIFF header and the first frame.
+       *
+       * The space is zero-filled (with direct I/O) or left unwritten. The
+       * caller may write it, for example with Micro-Manager's summary
+       * metadata, through its own channel; with direct I/O, only after the
+       * writer has finished.
+       *
+       * @param bytes the size of the space (default 0)
+       * @return this builder
+       */
+      public Builder headerReserve(int bytes) {
+         Preconditions.checkArgument(bytes >= 0,
+            "Header reserve must not be negative");
+         headerReserve_ = bytes;
+         return this;
+      }
+
+      public TiffWriteOptions build() {
+         return new TiffWriteOptions(this);
+      }
+   }
+
+   private TiffWriteOptions(Builder b) {
+      maxInFlightBytes_ = b.maxInFlightBytes_;
+      directIO_ = b.directIO_;
+      preallocationMode_ = b.preallocationMode_;
+      preallocationChunkSize_ = b.preallocationChunkSize_;
+      headerReserve_ = b.headerReserve_;
+   }
+
+   public int getMaxInFlightBytes() {
+      return maxInFlightBytes_;
+   }
+
+   public boolean isDirectIO() {
+      return directIO_;
+   }
+
+   public Preallocator.Mode getPreallocationMode() {
+      return preallocationMode_;
+   }
+
+   public long getPreallocationChunkSize() {
+      return preallocationChunkSize_;
+   }
+
+   public int getHeaderReserve() {
+      return headerReserve_;
+   }
+}
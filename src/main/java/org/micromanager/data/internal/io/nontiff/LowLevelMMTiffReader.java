@@ -1,13 +1,17 @@
 package org.micromanager.data.internal.io.nontiff;
 
 import org.micromanager.data.internal.io.Async;
+import org.micromanager.data.internal.io.FlightRecorderEvents;
+import org.micromanager.data.internal.io.IOKind;
 import org.micromanager.data.internal.io.Unsigned;
+import org.micromanager.data.internal.io.asynctiff.TiffReadOptions;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.AsynchronousFileChannel;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 
 /**
  * A TIFF reader that also reads MM-specific data.
@@ -16,18 +20,25 @@ import java.util.concurrent.CompletionStage;
  */
 public class LowLevelMMTiffReader {
    private final ByteOrder byteOrder_;
+   private final Executor executor_;
 
    public static LowLevelMMTiffReader create(ByteOrder order) {
-      return new LowLevelMMTiffReader(order);
+      return create(order, TiffReadOptions.defaults().getExecutor());
    }
 
-   private LowLevelMMTiffReader(ByteOrder order) {
+   public static LowLevelMMTiffReader create(ByteOrder order, Executor executor) {
+      return new LowLevelMMTiffReader(order, executor);
+   }
+
+   private LowLevelMMTiffReader(ByteOrder order, Executor executor) {
       byteOrder_ = order;
+      executor_ = executor;
    }
 
    public CompletionStage<int[]> readRawIndexMap(AsynchronousFileChannel chan) {
       return readMMBlockPointer(chan, 8, 0x0343C790, 0x0034b2b7, 20).
          thenApply(buffer -> {
+            buffer.rewind();
             int[] ret = new int[buffer.capacity() / 4];
             buffer.asIntBuffer().get(ret);
             return ret;
@@ -60,8 +71,9 @@ public class LowLevelMMTiffReader {
                                                           int entrySize) {
       final int pointerSize = 8;
       ByteBuffer offsetBuffer = ByteBuffer.allocate(pointerSize).order(byteOrder_);
-      return Async.read(chan, offsetBuffer, pointerOffset).
+      return Async.read(chan, offsetBuffer, pointerOffset, IOKind.MM_BLOCK).
          thenComposeAsync(buffer -> {
+            buffer.rewind();
             int observedPointerMagic = buffer.getInt();
             if (observedPointerMagic != pointerMagic) {
                return Async.completedExceptionally(new IOException(
@@ -71,17 +83,32 @@ public class LowLevelMMTiffReader {
             }
             long blockOffset = Unsigned.from(buffer.getInt());
             return readMMBlock(chan, blockOffset, blockMagic, entrySize);
-         });
+         }, executor_);
    }
 
    private CompletionStage<ByteBuffer> readMMBlock(AsynchronousFileChannel chan,
                                                    long offset,
                                                    long blockMagic,
                                                    int entrySize) {
+      FlightRecorderEvents.Event event = FlightRecorderEvents.OPERATION.begin();
+      CompletionStage<ByteBuffer> block = readMMBlockUntraced(chan, offset,
+         blockMagic, entrySize);
+      if (event != null) {
+         FlightRecorderEvents.commitOperation(event, block,
+            "LowLevelMMTiffReader.readMMBlock", offset, b -> b.capacity());
+      }
+      return block;
+   }
+
+   private CompletionStage<ByteBuffer> readMMBlockUntraced(AsynchronousFileChannel chan,
+                                                           long offset,
+                                                           long blockMagic,
+                                                           int entrySize) {
       final int headerSize = 8;
       ByteBuffer blockHeaderBuffer = ByteBuffer.allocate(headerSize).order(byteOrder_);
-      return Async.read(chan, blockHeaderBuffer, offset).
+      return Async.read(chan, blockHeaderBuffer, offset, IOKind.MM_BLOCK).
          thenComposeAsync(buffer -> {
+            buffer.rewind();
             int observedBlockMagic = buffer.getInt();
             if (observedBlockMagic != blockMagic) {
                return Async.completedExceptionally(new IOException(
@@ -92,7 +119,7 @@ public class LowLevelMMTiffReader {
             long length = Unsigned.from(buffer.getInt());
             ByteBuffer resultBuffer = ByteBuffer.allocate(
                (int) length * entrySize).order(byteOrder_);
-            return Async.read(chan, resultBuffer, offset + headerSize);
-         });
+            return Async.read(chan, resultBuffer, offset + headerSize, IOKind.MM_BLOCK);
+         }, executor_);
    }
 }
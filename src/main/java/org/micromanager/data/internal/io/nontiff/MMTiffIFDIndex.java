@@ -0,0 +1,219 @@
+package org.micromanager.data.internal.io.nontiff;
+
+import org.micromanager.data.internal.io.Async;
+import org.micromanager.data.internal.io.Unsigned;
+import org.micromanager.data.internal.io.asynctiff.TiffFormat;
+import org.micromanager.data.internal.io.asynctiff.TiffHeader;
+import org.micromanager.data.internal.io.asynctiff.TiffIFD;
+import org.micromanager.data.internal.io.asynctiff.TiffReadOptions;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Random-access index of the IFDs in a Micro-Manager TIFF file.
+ *
+ * The index is built from the Micro-Manager index map, which allows IFDs to
+ * be looked up by plane coordinates without walking the IFD chain. If the
+ * index map is missing or inconsistent with the file, the IFD chain is walked
+ * instead, in which case planes can only be looked up by their ordinal.
+ */
+public class MMTiffIFDIndex {
+   private static final int INDEX_MAP_ENTRY_INTS = 5;
+
+   private final TiffHeader header_;
+   private final long[] ifdOffsets_;
+   private final Map<Coords, Long> ifdOffsetsByCoords_; // null if from chain
+
+   // Plane coordinates, as a map key
+   private static final class Coords {
+      private final int channel_;
+      private final int slice_;
+      private final int frame_;
+      private final int position_;
+
+      Coords(int channel, int slice, int frame, int position) {
+         channel_ = channel;
+         slice_ = slice;
+         frame_ = frame;
+         position_ = position;
+      }
+
+      @Override
+      public boolean equals(Object other) {
+         if (!(other instanceof Coords)) {
+            return false;
+         }
+         Coords o = (Coords) other;
+         return channel_ == o.channel_ && slice_ == o.slice_ &&
+            frame_ == o.frame_ && position_ == o.position_;
+      }
+
+      @Override
+      public int hashCode() {
+         return ((channel_ * 31 + slice_) * 31 + frame_) * 31 + position_;
+      }
+   }
+
+   public static CompletionStage<MMTiffIFDIndex> build(AsynchronousFileChannel chan) {
+      return build(chan, TiffReadOptions.defaults());
+   }
+
+   public static CompletionStage<MMTiffIFDIndex> build(AsynchronousFileChannel chan,
+                                                       TiffReadOptions options) {
+      return TiffHeader.read(chan, options).thenCompose(header ->
+         Async.size(chan).thenCompose(fileSize ->
+            readIndexMap(chan, header).thenCompose(indexMap -> {
+               if (indexMap != null) {
+                  MMTiffIFDIndex ret = fromIndexMap(header, indexMap, fileSize);
+                  if (ret != null) {
+                     return CompletableFuture.completedFuture(ret);
+                  }
+               }
+               return fromIFDChain(chan, header);
+            })));
+   }
+
+   private static CompletionStage<int[]> readIndexMap(AsynchronousFileChannel chan,
+                                                      TiffHeader header) {
+      if (header.getTiffFormat() != TiffFormat.CLASSIC) {
+         return CompletableFuture.completedFuture(null);
+      }
+      // A missing or corrupt index map is not an error; we fall back
+      return LowLevelMMTiffReader.create(header.getTiffByteOrder(),
+         header.getReadOptions().getExecutor()).
+         readRawIndexMap(chan).
+         handle((indexMap, t) -> t == null ? indexMap : null);
+   }
+
+   private static MMTiffIFDIndex fromIndexMap(TiffHeader header, int[] indexMap,
+                                              long fileSize) {
+      if (indexMap.length == 0 || indexMap.length % INDEX_MAP_ENTRY_INTS != 0) {
+         return null;
+      }
+      int planeCount = indexMap.length / INDEX_MAP_ENTRY_INTS;
+      long[] offsets = new long[planeCount];
+      Map<Coords, Long> offsetsByCoords = new HashMap<>(2 * planeCount);
+      boolean containsFirstIFD = false;
+      for (int i = 0; i < planeCount; ++i) {
+         int base = i * INDEX_MAP_ENTRY_INTS;
+         int channel = indexMap[base];
+         int slice = indexMap[base + 1];
+         int frame = indexMap[base + 2];
+         int position = indexMap[base + 3];
+         long offset = Unsigned.from(indexMap[base + 4]);
+         if (!isValidCoordinate(channel) || !isValidCoordinate(slice) ||
+               !isValidCoordinate(frame) || !isValidCoordinate(position)) {
+            return null;
+         }
+         if (offset < header.getTiffFormat().getHeaderSize() ||
+               offset % 2 != 0 ||
+               offset + header.getTiffFormat().getIFDSize(0) > fileSize) {
+            return null;
+         }
+         if (offsetsByCoords.put(new Coords(channel, slice, frame, position),
+               offset) != null) {
+            return null; // Duplicate coordinates
+         }
+         offsets[i] = offset;
+         containsFirstIFD |= offset == header.getFirstIFDOffset();
+      }
+      if (!containsFirstIFD) {
+         return null;
+      }
+      return new MMTiffIFDIndex(header, offsets, offsetsByCoords);
+   }
+
+   private static CompletionStage<MMTiffIFDIndex> fromIFDChain(AsynchronousFileChannel chan,
+                                                               TiffHeader header) {
+      List<Long> offsets = new ArrayList<>();
+      return header.forEachIFD(chan, (offset, ifd) -> {
+         offsets.add(offset);
+         return CompletableFuture.completedFuture(null);
+      }).thenApply(v -> new MMTiffIFDIndex(header,
+         offsets.stream().mapToLong(Long::longValue).toArray(), null));
+   }
+
+   private MMTiffIFDIndex(TiffHeader header, long[] ifdOffsets,
+                          Map<Coords, Long> ifdOffsetsByCoords) {
+      header_ = header;
+      ifdOffsets_ = ifdOffsets;
+      ifdOffsetsByCoords_ = ifdOffsetsByCoords;
+   }
+
+   private static boolean isValidCoordinate(int c) {
+      return c >= 0;
+   }
+
+   //
+   //
+   //
+
+   public TiffHeader getHeader() {
+      return header_;
+   }
+
+   /**
+    * Whether planes can be looked up by coordinates.
+    *
+    * @return false if the index was built by walking the IFD chain
+    */
+   public boolean hasPlaneCoordinates() {
+      return ifdOffsetsByCoords_ != null;
+   }
+
+   public int getPlaneCount() {
+      return ifdOffsets_.length;
+   }
+
+   public long getIFDOffset(int planeIndex) {
+      return ifdOffsets_[planeIndex];
+   }
+
+   /**
+    * Look up the IFD offset for the given plane coordinates.
+    *
+    * @return the IFD offset, or -1 if there is no such plane or the index
+    * does not have plane coordinates
+    */
+   public long getIFDOffset(int channel, int slice, int frame, int position) {
+      if (ifdOffsetsByCoords_ == null ||
+            !isValidCoordinate(channel) || !isValidCoordinate(slice) ||
+            !isValidCoordinate(frame) || !isValidCoordinate(position)) {
+         return -1;
+      }
+      Long ret = ifdOffsetsByCoords_.get(
+         new Coords(channel, slice, frame, position));
+      return ret == null ? -1 : ret;
+   }
+
+   public CompletionStage<TiffIFD> readIFD(AsynchronousFileChannel chan,
+                                           int planeIndex) {
+      return readIFDAt(chan, getIFDOffset(planeIndex));
+   }
+
+   public CompletionStage<TiffIFD> readIFD(AsynchronousFileChannel chan,
+                                           int channel, int slice, int frame,
+                                           int position) {
+      long offset = getIFDOffset(channel, slice, frame, position);
+      if (offset < 0) {
+         return Async.completedExceptionally(new IOException(String.format(
+            "No plane at channel=%d, slice=%d, frame=%d, position=%d%s",
+            channel, slice, frame, position,
+            hasPlaneCoordinates() ? "" : " (file has no usable index map)")));
+      }
+      return readIFDAt(chan, offset);
+   }
+
+   private CompletionStage<TiffIFD> readIFDAt(AsynchronousFileChannel chan,
+                                              long offset) {
+      return TiffIFD.read(chan, header_.getTiffFormat(),
+         header_.getTiffByteOrder(), offset, header_.getReadOptions());
+   }
+}
@@ -0,0 +1,154 @@
+package org.micromanager.data.internal.io;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AlignedAppenderTest {
+   private Path tmpFile_;
+
+   @BeforeEach
+   public void init() throws IOException {
+      tmpFile_ = Files.createTempFile(getClass().getSimpleName(), ".bin");
+   }
+
+   @AfterEach
+   public void tearDown() throws IOException {
+      Files.deleteIfExists(tmpFile_);
+   }
+
+   private AsynchronousFileChannel open(boolean direct) throws IOException {
+      Set<OpenOption> options = new HashSet<>(Arrays.asList(
+         StandardOpenOption.WRITE));
+      if (direct) {
+         Assumptions.assumeTrue(DirectIO.isSupported());
+         options.add(DirectIO.directOption());
+         try {
+            return AsynchronousFileChannel.open(tmpFile_, options, null);
+         }
+         catch (IOException e) {
+            Assumptions.assumeTrue(false, "File system does not support direct I/O");
+         }
+      }
+      return AsynchronousFileChannel.open(tmpFile_, options, null);
+   }
+
+   // With direct I/O, any misaligned write would fail
+   @ParameterizedTest
+   @ValueSource(ints = { 0, 1 })
+   public void testAppendUnalignedRecords(int d) throws Exception {
+      boolean direct = d != 0;
+      int blockSize = DirectIO.blockSize(tmpFile_);
+      byte[] expected = new byte[3 * blockSize * 4 + 100];
+      List<CompletableFuture<Void>> writes = new ArrayList<>();
+      long end;
+      try (AsynchronousFileChannel chan = open(direct)) {
+         AlignedAppender appender = AlignedAppender.create(chan, 0, blockSize,
+            2 * blockSize, 2);
+         int pos = 0;
+         int size = 1;
+         while (pos + size + 3 <= expected.length) {
+            pos += 3; // Gap, which must read as zeros
+            byte[] record = new byte[size];
+            for (int i = 0; i < size; ++i) {
+               record[i] = (byte) (pos + i + 1);
+            }
+            System.arraycopy(record, 0, expected, pos, size);
+            writes.add(appender.append(ByteBuffer.wrap(record), pos).
+               toCompletableFuture());
+            pos += size;
+            assertEquals(pos, appender.getEnd());
+            size = size * 3 + 1;
+         }
+         end = appender.finish().toCompletableFuture().get();
+         assertEquals(pos, end);
+         for (CompletableFuture<Void> w : writes) {
+            assertTrue(w.isDone());
+         }
+         assertEquals(Alignment.align(end, blockSize), chan.size());
+      }
+
+      byte[] actual = Files.readAllBytes(tmpFile_);
+      for (int i = 0; i < end; ++i) {
+         assertEquals(expected[i], actual[i], "at " + i);
+      }
+   }
+
+   @Test
+   public void testTryAppendDoesNotBlock() throws Exception {
+      int blockSize = 512;
+      byte[] expected = new byte[1400];
+      for (int i = 0; i < expected.length; ++i) {
+         expected[i] = (byte) (i + 1);
+      }
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      CountDownLatch gate = new CountDownLatch(1);
+      try {
+         // Hold back all writes until the gate is opened
+         executor.submit(() -> {
+            gate.await();
+            return null;
+         });
+         try (AsynchronousFileChannel chan = PositionalFileChannel.open(tmpFile_,
+            executor, StandardOpenOption.WRITE)) {
+            AlignedAppender appender = AlignedAppender.create(chan, 0, blockSize,
+               blockSize, 2);
+            CompletionStage<Void> first = appender.tryAppend(
+               ByteBuffer.wrap(expected, 0, 600), 0);
+            assertNotNull(first);
+
+            ByteBuffer second = ByteBuffer.wrap(expected, 600, 800).slice();
+            assertNull(appender.tryAppend(second, 600));
+            assertEquals(1024 - 600, second.position());
+            CompletableFuture<Void> freed =
+               appender.whenChunkFree().toCompletableFuture();
+            assertFalse(freed.isDone());
+
+            // The rest fits in the first chunk once it has been written
+            gate.countDown();
+            freed.get();
+            CompletionStage<Void> rest = appender.tryAppend(second,
+               600 + second.position());
+            assertNotNull(rest);
+            assertFalse(second.hasRemaining());
+
+            assertEquals(expected.length,
+               (long) appender.finish().toCompletableFuture().get());
+            assertTrue(first.toCompletableFuture().isDone());
+            assertTrue(rest.toCompletableFuture().isDone());
+         }
+      }
+      finally {
+         gate.countDown();
+         executor.shutdown();
+      }
+
+      byte[] actual = Files.readAllBytes(tmpFile_);
+      for (int i = 0; i < expected.length; ++i) {
+         assertEquals(expected[i], actual[i], "at " + i);
+      }
+   }
+}
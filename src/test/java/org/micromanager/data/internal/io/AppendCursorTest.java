@@ -0,0 +1,57 @@
+package org.micromanager.data.internal.io;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AppendCursorTest {
+   @Test
+   public void testReserveAligned() {
+      AppendCursor cursor = AppendCursor.at(3);
+      assertEquals(4, cursor.reserve(10, 4));
+      assertEquals(14, cursor.getEnd());
+      assertEquals(14, cursor.reserve(1));
+      assertEquals(16, cursor.reserve(0, 8));
+      assertEquals(16, cursor.getEnd());
+   }
+
+   @Test
+   public void testConcurrentReservationsDoNotOverlap() throws Exception {
+      AppendCursor cursor = AppendCursor.at(0);
+      ConcurrentHashMap<Long, Long> regions = new ConcurrentHashMap<>();
+      ExecutorService pool = Executors.newFixedThreadPool(4);
+      try {
+         List<Future<?>> futures = new ArrayList<>();
+         for (int t = 0; t < 4; ++t) {
+            futures.add(pool.submit(() -> {
+               for (int i = 0; i < 1000; ++i) {
+                  long size = 1 + i % 7;
+                  long start = cursor.reserve(size, 4);
+                  assertEquals(0, start % 4);
+                  assertNull(regions.put(start, size));
+               }
+            }));
+         }
+         for (Future<?> f : futures) {
+            f.get();
+         }
+      }
+      finally {
+         pool.shutdown();
+      }
+
+      long[] starts = regions.keySet().stream().mapToLong(Long::longValue).
+         sorted().toArray();
+      assertEquals(4000, starts.length);
+      for (int i = 1; i < starts.length; ++i) {
+         assertTrue(starts[i - 1] + regions.get(starts[i - 1]) <= starts[i]);
+      }
+   }
+}
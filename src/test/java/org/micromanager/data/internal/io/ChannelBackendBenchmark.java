@@ -0,0 +1,85 @@
+package org.micromanager.data.internal.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares read latency of the {@link ChannelBackend}s.
+ *
+ * Measures small (IFD-entry-sized) reads at random offsets and large
+ * (pixel-sized) reads, each issued one at a time and awaited, so that the
+ * figures include the completion handoff. The file is freshly written and
+ * thus mostly in the page cache; the comparison is of per-operation overhead,
+ * not of storage performance.
+ *
+ * Run with:
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.micromanager.data.internal.io.ChannelBackendBenchmark}
+ */
+public class ChannelBackendBenchmark {
+   private static final long FILE_SIZE = 256L << 20;
+   private static final int SMALL_SIZE = 12;
+   private static final int LARGE_SIZE = 8 << 20;
+   private static final int SMALL_ITERATIONS = 20000;
+   private static final int LARGE_ITERATIONS = 200;
+
+   public static void main(String[] args) throws Exception {
+      Path file = Files.createTempFile("ChannelBackendBenchmark", ".bin");
+      try {
+         writeFile(file);
+         for (int round = 0; round < 2; ++round) {
+            System.out.println(round == 0 ? "Warm-up:" : "Results:");
+            for (ChannelBackend backend : ChannelBackend.values()) {
+               try (AsynchronousFileChannel chan = backend.open(file,
+                  StandardOpenOption.READ)) {
+                  report(backend + " small", measure(chan, SMALL_SIZE, SMALL_ITERATIONS));
+                  report(backend + " large", measure(chan, LARGE_SIZE, LARGE_ITERATIONS));
+               }
+            }
+         }
+      }
+      finally {
+         Files.deleteIfExists(file);
+      }
+   }
+
+   private static void writeFile(Path file) throws IOException {
+      ByteBuffer chunk = ByteBuffer.allocateDirect(1 << 20);
+      try (FileChannel chan = FileChannel.open(file, StandardOpenOption.WRITE)) {
+         for (long pos = 0; pos < FILE_SIZE; pos += chunk.capacity()) {
+            chunk.clear();
+            chan.write(chunk, pos);
+         }
+      }
+   }
+
+   private static long[] measure(AsynchronousFileChannel chan, int size,
+                                 int iterations) throws Exception {
+      Random random = new Random(0);
+      ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+      long[] nanos = new long[iterations];
+      for (int i = 0; i < iterations; ++i) {
+         long offset = (long) (random.nextDouble() * (FILE_SIZE - size)) & ~7L;
+         buffer.clear();
+         long start = System.nanoTime();
+         Async.read(chan, buffer, offset).toCompletableFuture().get();
+         nanos[i] = System.nanoTime() - start;
+      }
+      Arrays.sort(nanos);
+      return nanos;
+   }
+
+   private static void report(String name, long[] sortedNanos) {
+      System.out.println(String.format(
+         "  %-18s median %9.1f us, p99 %9.1f us", name,
+         sortedNanos[sortedNanos.length / 2] / 1e3,
+         sortedNanos[sortedNanos.length * 99 / 100] / 1e3));
+   }
+}
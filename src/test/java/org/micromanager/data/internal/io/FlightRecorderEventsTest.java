@@ -0,0 +1,124 @@
+package org.micromanager.data.internal.io;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.micromanager.data.internal.io.asynctiff.TiffIFD;
+import org.micromanager.data.internal.io.asynctiff.TiffIFDTemplate;
+import org.micromanager.data.internal.io.asynctiff.TiffStackWriter;
+import org.micromanager.data.internal.io.asynctiff.TiffTag;
+import org.micromanager.data.internal.io.asynctiff.TiffValue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class FlightRecorderEventsTest {
+   private Path tmpFile_;
+   private Path dumpFile_;
+
+   @BeforeEach
+   public void init() throws IOException {
+      tmpFile_ = Files.createTempFile(getClass().getSimpleName(), ".tif");
+      dumpFile_ = Files.createTempFile(getClass().getSimpleName(), ".jfr");
+   }
+
+   @AfterEach
+   public void tearDown() throws IOException {
+      Files.deleteIfExists(tmpFile_);
+      Files.deleteIfExists(dumpFile_);
+   }
+
+   private static List<RecordedEvent> eventsNamed(List<RecordedEvent> events,
+                                                  String name) {
+      return events.stream().
+         filter(e -> e.getEventType().getName().equals(name)).
+         collect(Collectors.toList());
+   }
+
+   @Test
+   public void testNoEventsWhenNotRecording() {
+      assumeTrue(FlightRecorderEvents.isSupported());
+      assertFalse(FlightRecorderEvents.isRecording());
+      assertNull(FlightRecorderEvents.FILE_IO.begin());
+   }
+
+   @Test
+   public void testWriteAndReadEvents() throws Exception {
+      assumeTrue(FlightRecorderEvents.isSupported());
+      int width = 16;
+      int height = 8;
+      TiffIFDTemplate template = TiffIFDTemplate.builder(ByteOrder.LITTLE_ENDIAN).
+         entry(TiffTag.Known.ImageWidth.get(), TiffValue.Longs.create(width)).
+         entry(TiffTag.Known.ImageLength.get(), TiffValue.Longs.create(height)).
+         entry(TiffTag.Known.BitsPerSample.get(), TiffValue.Shorts.create((short) 8)).
+         entry(TiffTag.Known.RowsPerStrip.get(), TiffValue.Longs.create(height)).
+         stripByteCounts(width * height).
+         build();
+
+      long ifdOffset;
+      try (Recording recording = new Recording()) {
+         recording.start();
+         assertTrue(FlightRecorderEvents.isRecording());
+         try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+            StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            TiffStackWriter writer = TiffStackWriter.create(chan, template);
+            ifdOffset = writer.submit(null, ByteBuffer.allocate(width * height)).
+               toCompletableFuture().get();
+            writer.finish().toCompletableFuture().get();
+
+            TiffIFD ifd = TiffIFD.read(chan, ByteOrder.LITTLE_ENDIAN, ifdOffset).
+               toCompletableFuture().get();
+            ByteBuffer pixels = ifd.readPixels(chan).toCompletableFuture().get();
+            assertEquals(width * height, pixels.remaining());
+         }
+         recording.stop();
+         recording.dump(dumpFile_);
+      }
+      assertFalse(FlightRecorderEvents.isRecording());
+
+      List<RecordedEvent> events = RecordingFile.readAllEvents(dumpFile_);
+
+      List<RecordedEvent> frames = eventsNamed(events,
+         FlightRecorderEvents.FRAME_WRITE.getName());
+      assertEquals(1, frames.size());
+      RecordedEvent frame = frames.get(0);
+      assertEquals(ifdOffset, frame.getLong("offset"));
+      assertEquals(template.getRecordSize(0), frame.getLong("bytes"));
+      assertFalse(frame.getBoolean("failed"));
+      assertTrue(frame.getLong("writeTime") >= 0);
+
+      List<RecordedEvent> io = eventsNamed(events,
+         FlightRecorderEvents.FILE_IO.getName());
+      assertTrue(io.stream().anyMatch(e ->
+         e.getString("operation").equals("WRITE") &&
+         e.getString("kind").equals("RECORD") &&
+         e.getLong("offset") == ifdOffset &&
+         e.getLong("bytes") == template.getRecordSize(0)));
+      assertTrue(io.stream().anyMatch(e ->
+         e.getString("operation").equals("READ") &&
+         e.getString("kind").equals("PIXELS") &&
+         e.getLong("bytes") == width * height));
+
+      List<RecordedEvent> operations = eventsNamed(events,
+         FlightRecorderEvents.OPERATION.getName());
+      assertTrue(operations.stream().anyMatch(e ->
+         e.getString("name").equals("TiffIFD.read") &&
+         e.getLong("offset") == ifdOffset));
+      assertTrue(operations.stream().anyMatch(e ->
+         e.getString("name").equals("TiffIFD.readPixels") &&
+         e.getLong("bytes") == width * height));
+   }
+}
@@ -0,0 +1,137 @@
+package org.micromanager.data.internal.io;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import javax.management.JMX;
+import javax.management.ObjectName;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IOMetricsTest {
+   private Path tmpFile_;
+
+   @BeforeEach
+   public void init() throws IOException {
+      tmpFile_ = Files.createTempFile(getClass().getSimpleName(), ".bin");
+      IOMetrics.reset();
+   }
+
+   @AfterEach
+   public void tearDown() throws IOException {
+      IOMetrics.setEnabled(false);
+      IOMetrics.reset();
+      Files.deleteIfExists(tmpFile_);
+   }
+
+   private void writeAndRead() throws Exception {
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+         Async.write(chan, ByteBuffer.allocate(100), 0, IOKind.PIXELS).
+            toCompletableFuture().get();
+         Async.write(chan, ByteBuffer.allocate(8), 100, IOKind.IFD).
+            toCompletableFuture().get();
+         Async.read(chan, ByteBuffer.allocate(40), 10, IOKind.PIXELS).
+            toCompletableFuture().get();
+         Async.readAtMost(chan, ByteBuffer.allocate(50), 80, IOKind.IFD).
+            toCompletableFuture().get();
+         Async.read(chan, ByteBuffer.allocate(16), 0).
+            toCompletableFuture().get();
+         assertThrows(ExecutionException.class, () ->
+            Async.read(chan, ByteBuffer.allocate(16), 100, IOKind.VALUE).
+               toCompletableFuture().get());
+      }
+   }
+
+   @Test
+   public void testNothingRecordedWhenDisabled() throws Exception {
+      writeAndRead();
+      IOMetrics.Snapshot s = IOMetrics.snapshot();
+      for (IOMetrics.Op op : IOMetrics.Op.values()) {
+         for (IOKind kind : IOKind.values()) {
+            assertEquals(0, s.get(op, kind).getCount());
+         }
+      }
+   }
+
+   @Test
+   public void testRecordsByKind() throws Exception {
+      IOMetrics.setEnabled(true);
+      writeAndRead();
+      IOMetrics.Snapshot s = IOMetrics.snapshot();
+
+      assertEquals(1, s.get(IOMetrics.Op.WRITE, IOKind.PIXELS).getCount());
+      assertEquals(100, s.get(IOMetrics.Op.WRITE, IOKind.PIXELS).getBytes());
+      assertEquals(1, s.get(IOMetrics.Op.WRITE, IOKind.IFD).getCount());
+      assertEquals(8, s.get(IOMetrics.Op.WRITE, IOKind.IFD).getBytes());
+
+      assertEquals(1, s.get(IOMetrics.Op.READ, IOKind.PIXELS).getCount());
+      assertEquals(40, s.get(IOMetrics.Op.READ, IOKind.PIXELS).getBytes());
+      assertEquals(1, s.get(IOMetrics.Op.READ, IOKind.IFD).getCount());
+      assertEquals(28, s.get(IOMetrics.Op.READ, IOKind.IFD).getBytes());
+      assertEquals(1, s.get(IOMetrics.Op.READ, IOKind.OTHER).getCount());
+
+      LatencyHistogram.Snapshot failed = s.get(IOMetrics.Op.READ, IOKind.VALUE);
+      assertEquals(1, failed.getCount());
+      assertEquals(1, failed.getErrorCount());
+      assertEquals(8, failed.getBytes());
+
+      assertTrue(s.get(IOMetrics.Op.WRITE, IOKind.PIXELS).getMaxNanos() > 0);
+      assertTrue(s.toString().contains("PIXELS"));
+
+      IOMetrics.reset();
+      assertEquals(0, IOMetrics.snapshot().
+         get(IOMetrics.Op.WRITE, IOKind.PIXELS).getCount());
+   }
+
+   @Test
+   public void testPreallocationAndQueuedWriteKinds() throws Exception {
+      IOMetrics.setEnabled(true);
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+         Preallocator preallocator = Preallocator.create(chan, 0,
+            Preallocator.Mode.ZERO_FILL, 4096, 1);
+         preallocator.ready(100).toCompletableFuture().get();
+         WriteBehindQueue queue = WriteBehindQueue.builder(chan).build();
+         queue.write(ByteBuffer.allocate(100), 0);
+         queue.close().toCompletableFuture().get();
+      }
+      IOMetrics.Snapshot s = IOMetrics.snapshot();
+      assertTrue(s.get(IOMetrics.Op.WRITE, IOKind.PREALLOCATE).getCount() > 0);
+      assertEquals(1, s.get(IOMetrics.Op.WRITE, IOKind.RECORD).getCount());
+      assertEquals(0, s.get(IOMetrics.Op.WRITE, IOKind.OTHER).getCount());
+   }
+
+   @Test
+   public void testMBean() throws Exception {
+      ObjectName name = new ObjectName(IOMetrics.OBJECT_NAME);
+      IOMetrics.registerMBean();
+      try {
+         assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+         IOMetrics.IOMetricsMXBean bean = JMX.newMXBeanProxy(
+            ManagementFactory.getPlatformMBeanServer(), name,
+            IOMetrics.IOMetricsMXBean.class);
+         assertFalse(bean.isEnabled());
+         bean.setEnabled(true);
+         writeAndRead();
+         Map<String, Long> counts = bean.getCounts();
+         assertEquals(Long.valueOf(1), counts.get("WRITE/PIXELS"));
+         assertFalse(counts.containsKey("WRITE/HEADER"));
+         assertEquals(Long.valueOf(100), bean.getBytes().get("WRITE/PIXELS"));
+      }
+      finally {
+         IOMetrics.unregisterMBean();
+      }
+      assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+   }
+}
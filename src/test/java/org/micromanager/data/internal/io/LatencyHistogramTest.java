@@ -0,0 +1,66 @@
+package org.micromanager.data.internal.io;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LatencyHistogramTest {
+   @Test
+   public void testBucketsAreContiguous() {
+      long previousUpper = -1;
+      for (long nanos = 0; nanos < 1 << 16; ++nanos) {
+         int index = LatencyHistogram.bucketIndex(nanos);
+         long upper = LatencyHistogram.upperBound(index);
+         assertTrue(nanos <= upper, "at " + nanos);
+         if (nanos > previousUpper) {
+            assertEquals(previousUpper + 1, nanos);
+            previousUpper = upper;
+         }
+      }
+      int top = LatencyHistogram.bucketIndex(Long.MAX_VALUE);
+      for (int shift = 16; shift < 62; ++shift) {
+         long nanos = (1L << shift) + 12345;
+         int index = LatencyHistogram.bucketIndex(nanos);
+         assertTrue(index <= top);
+         if (index < top) {
+            assertTrue(nanos <= LatencyHistogram.upperBound(index));
+            assertTrue(nanos > LatencyHistogram.upperBound(index - 1));
+         }
+      }
+   }
+
+   @Test
+   public void testPercentiles() {
+      LatencyHistogram h = new LatencyHistogram();
+      for (long i = 1; i <= 1000; ++i) {
+         h.record(i * 1000, 10, i % 100 == 0);
+      }
+      LatencyHistogram.Snapshot s = h.snapshot();
+      assertEquals(1000, s.getCount());
+      assertEquals(10, s.getErrorCount());
+      assertEquals(10000, s.getBytes());
+      assertEquals(500500, s.getMeanNanos());
+      assertEquals(1000000, s.getMaxNanos());
+      for (double p : new double[] { 1.0, 50.0, 90.0, 99.0 }) {
+         long exact = (long) (p * 10) * 1000;
+         long reported = s.getPercentileNanos(p);
+         assertTrue(reported >= exact, "p" + p);
+         assertTrue(reported <= exact + exact / 16, "p" + p);
+      }
+      assertEquals(1000000, s.getPercentileNanos(100.0));
+      assertThrows(IllegalArgumentException.class,
+         () -> s.getPercentileNanos(101.0));
+   }
+
+   @Test
+   public void testReset() {
+      LatencyHistogram h = new LatencyHistogram();
+      h.record(100, 1, false);
+      h.reset();
+      LatencyHistogram.Snapshot s = h.snapshot();
+      assertEquals(0, s.getCount());
+      assertEquals(0, s.getBytes());
+      assertEquals(0, s.getMaxNanos());
+      assertEquals(0, s.getPercentileNanos(50.0));
+   }
+}
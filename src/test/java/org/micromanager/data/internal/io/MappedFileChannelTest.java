@@ -0,0 +1,74 @@
+package org.micromanager.data.internal.io;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MappedFileChannelTest {
+   private static final int FILE_SIZE = 100;
+   private Path tmpFile_;
+
+   @BeforeEach
+   public void init() throws IOException {
+      tmpFile_ = Files.createTempFile(getClass().getSimpleName(), ".bin");
+      byte[] content = new byte[FILE_SIZE];
+      for (int i = 0; i < FILE_SIZE; ++i) {
+         content[i] = (byte) i;
+      }
+      Files.write(tmpFile_, content);
+   }
+
+   @AfterEach
+   public void tearDown() throws IOException {
+      Files.deleteIfExists(tmpFile_);
+   }
+
+   @Test
+   public void testViewsWithinWindows() throws Exception {
+      try (MappedFileChannel chan = MappedFileChannel.open(tmpFile_, 16)) {
+         assertEquals(FILE_SIZE, chan.size());
+
+         ByteBuffer view = chan.view(30, 16);
+         assertTrue(view.isReadOnly());
+         assertEquals(0, view.position());
+         assertEquals(16, view.limit());
+         assertEquals(30, view.get(0));
+         assertEquals(45, view.get(15));
+
+         // Longer than the stride, but fits in the window at 32
+         assertNotNull(chan.view(32, 30));
+         assertNull(chan.view(40, 30));
+
+         assertEquals(99, chan.view(99, 1).get(0));
+         assertThrows(EOFException.class, () -> chan.view(90, 11));
+      }
+   }
+
+   @Test
+   public void testCopyingReadsAcrossWindows() throws Exception {
+      try (MappedFileChannel chan = MappedFileChannel.open(tmpFile_, 16)) {
+         ByteBuffer dst = ByteBuffer.allocate(70);
+         Async.read(chan, dst, 10).toCompletableFuture().get();
+         for (int i = 0; i < 70; ++i) {
+            assertEquals(10 + i, dst.get(i));
+         }
+
+         ByteBuffer tail = ByteBuffer.allocate(20);
+         Async.readAtMost(chan, tail, 90).toCompletableFuture().get();
+         assertEquals(10, tail.position());
+         assertEquals(-1, (int) chan.read(ByteBuffer.allocate(1), FILE_SIZE).get());
+
+         assertThrows(NonWritableChannelException.class,
+            () -> chan.write(ByteBuffer.allocate(1), 0));
+      }
+   }
+}
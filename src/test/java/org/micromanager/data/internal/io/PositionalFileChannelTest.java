@@ -0,0 +1,67 @@
+package org.micromanager.data.internal.io;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PositionalFileChannelTest {
+   private Path tmpFile_;
+
+   @BeforeEach
+   public void init() throws IOException {
+      tmpFile_ = Files.createTempFile(getClass().getSimpleName(), ".bin");
+   }
+
+   @AfterEach
+   public void tearDown() throws IOException {
+      Files.deleteIfExists(tmpFile_);
+   }
+
+   @Test
+   public void testWriteAndRead() throws Exception {
+      try (AsynchronousFileChannel chan = ChannelBackend.POSITIONAL.open(tmpFile_,
+         StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+         ByteBuffer src = ByteBuffer.allocateDirect(6);
+         src.put(new byte[] { 1, 2, 3, 4, 5, 6 }).flip();
+         Async.write(chan, src, 2).toCompletableFuture().get();
+         assertEquals(8, chan.size());
+
+         ByteBuffer dst = ByteBuffer.allocate(4);
+         Async.read(chan, dst, 3).toCompletableFuture().get();
+         assertArrayEquals(new byte[] { 2, 3, 4, 5 }, dst.array());
+
+         ByteBuffer partial = ByteBuffer.allocate(16);
+         Async.readAtMost(chan, partial, 4).toCompletableFuture().get();
+         assertEquals(4, partial.position());
+
+         ExecutionException e = assertThrows(ExecutionException.class,
+            () -> Async.read(chan, ByteBuffer.allocate(4), 6).
+               toCompletableFuture().get());
+         assertTrue(e.getCause() instanceof EOFException);
+
+         assertEquals(-1, (int) chan.read(ByteBuffer.allocate(1), 8).get());
+      }
+   }
+
+   @Test
+   public void testFailureIsReported() throws Exception {
+      try (AsynchronousFileChannel chan = ChannelBackend.POSITIONAL.open(tmpFile_,
+         StandardOpenOption.READ)) {
+         ExecutionException e = assertThrows(ExecutionException.class,
+            () -> Async.write(chan, ByteBuffer.allocate(4), 0).
+               toCompletableFuture().get());
+         assertNotNull(e.getCause());
+      }
+   }
+}
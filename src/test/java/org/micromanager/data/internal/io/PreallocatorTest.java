@@ -0,0 +1,97 @@
+package org.micromanager.data.internal.io;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PreallocatorTest {
+   private Path tmpFile_;
+
+   @BeforeEach
+   public void init() throws IOException {
+      tmpFile_ = Files.createTempFile(getClass().getSimpleName(), ".bin");
+   }
+
+   @AfterEach
+   public void tearDown() throws IOException {
+      Files.deleteIfExists(tmpFile_);
+   }
+
+   @ParameterizedTest
+   @EnumSource(Preallocator.Mode.class)
+   public void testAllocateAheadAndTrim(Preallocator.Mode mode) throws Exception {
+      int recordSize = 1000;
+      int recordCount = 20;
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.WRITE)) {
+         Preallocator preallocator = Preallocator.create(chan, 0, mode, 4096, 1);
+         for (int r = 0; r < recordCount; ++r) {
+            long offset = (long) r * recordSize;
+            long end = offset + recordSize;
+            byte[] record = filled(recordSize, r + 1);
+            preallocator.ready(end).toCompletableFuture().get();
+            assertTrue(preallocator.getAllocatedEnd() >= end + 4096);
+            assertTrue(chan.size() >= end);
+            Async.write(chan, ByteBuffer.wrap(record), offset).
+               toCompletableFuture().get();
+         }
+         assertTrue(chan.size() > recordSize * recordCount);
+         preallocator.trim(recordSize * recordCount).toCompletableFuture().get();
+         assertEquals(recordSize * recordCount, chan.size());
+         assertThrows(IllegalStateException.class, () -> preallocator.ready(0));
+      }
+
+      byte[] actual = Files.readAllBytes(tmpFile_);
+      assertEquals(recordSize * recordCount, actual.length);
+      for (int i = 0; i < actual.length; ++i) {
+         assertEquals((byte) (i / recordSize + 1), actual[i], "at " + i);
+      }
+   }
+
+   @ParameterizedTest
+   @EnumSource(Preallocator.Mode.class)
+   public void testConcurrentWrites(Preallocator.Mode mode) throws Exception {
+      List<CompletableFuture<Void>> writes = new ArrayList<>();
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.WRITE)) {
+         Preallocator preallocator = Preallocator.create(chan, 0, mode, 1024, 1);
+         // Writes are issued only once ready, so zeros never clobber data
+         for (int r = 0; r < 10; ++r) {
+            long offset = r * 300L;
+            ByteBuffer record = ByteBuffer.wrap(filled(300, r + 1));
+            writes.add(preallocator.ready(offset + 300).thenCompose(v ->
+               Async.write(chan, record, offset)).toCompletableFuture());
+         }
+         for (CompletableFuture<Void> w : writes) {
+            w.get();
+         }
+         preallocator.trim(3000).toCompletableFuture().get();
+      }
+      byte[] actual = Files.readAllBytes(tmpFile_);
+      assertEquals(3000, actual.length);
+      for (int i = 0; i < actual.length; ++i) {
+         assertEquals((byte) (i / 300 + 1), actual[i], "at " + i);
+      }
+   }
+
+   private static byte[] filled(int size, int value) {
+      byte[] b = new byte[size];
+      for (int i = 0; i < size; ++i) {
+         b[i] = (byte) value;
+      }
+      return b;
+   }
+}
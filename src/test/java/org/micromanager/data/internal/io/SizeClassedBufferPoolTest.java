@@ -0,0 +1,85 @@
+package org.micromanager.data.internal.io;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SizeClassedBufferPoolTest {
+   @Test
+   public void testSizeClasses() {
+      SizeClassedBufferPool pool = SizeClassedBufferPool.builder().
+         minClassSize(64).maxClassSize(1024).build();
+      ByteBuffer small = pool.acquire(3);
+      assertTrue(small.isDirect());
+      assertEquals(0, small.position());
+      assertEquals(3, small.limit());
+      assertEquals(64, small.capacity());
+      assertEquals(128, pool.acquire(65).capacity());
+      assertEquals(1024, pool.acquire(1024).capacity());
+      assertEquals(1025, pool.acquire(1025).capacity());
+      assertEquals(64 + 128 + 1024 + 1025, pool.getOutstandingBytes());
+   }
+
+   @Test
+   public void testReuse() {
+      SizeClassedBufferPool pool = SizeClassedBufferPool.builder().build();
+      ByteBuffer b = pool.acquire(100).order(ByteOrder.LITTLE_ENDIAN);
+      b.position(10);
+      pool.release(b);
+      assertEquals(0, pool.getOutstandingBytes());
+
+      ByteBuffer again = pool.acquire(120);
+      assertSame(b, again);
+      assertEquals(0, again.position());
+      assertEquals(120, again.limit());
+      assertEquals(ByteOrder.BIG_ENDIAN, again.order());
+      assertEquals(2, pool.getAcquireCount());
+      assertEquals(1, pool.getHitCount());
+      assertEquals(0.5, pool.getHitRate());
+   }
+
+   @Test
+   public void testSharedFreeListIsBounded() {
+      SizeClassedBufferPool pool = SizeClassedBufferPool.builder().
+         maxThreadLocalSize(0).maxPooledBytes(256).build();
+      ByteBuffer a = pool.acquire(128);
+      ByteBuffer b = pool.acquire(128);
+      ByteBuffer c = pool.acquire(128);
+      pool.release(a);
+      pool.release(b);
+      pool.release(c);
+      assertEquals(256, pool.getPooledBytes());
+      assertEquals(0, pool.getOutstandingBytes());
+
+      pool.acquire(128);
+      assertEquals(128, pool.getPooledBytes());
+   }
+
+   @Test
+   public void testOversizedBuffersAreNotRetained() {
+      SizeClassedBufferPool pool = SizeClassedBufferPool.builder().
+         maxClassSize(1024).build();
+      ByteBuffer big = pool.acquire(2048);
+      pool.release(big);
+      assertEquals(0, pool.getPooledBytes());
+      assertNotSame(big, pool.acquire(2048));
+      assertEquals(0, pool.getHitCount());
+   }
+
+   @Test
+   public void testReleasedOnAnotherThread() throws Exception {
+      SizeClassedBufferPool pool = SizeClassedBufferPool.builder().build();
+      ByteBuffer b = pool.acquire(100);
+      ByteBuffer other = pool.acquire(100);
+      pool.release(other); // fills this thread's cache
+      Thread t = new Thread(() -> pool.release(b));
+      t.start();
+      t.join();
+      assertSame(other, pool.acquire(100));
+      // The other thread's cache is not visible here
+      assertNotSame(b, pool.acquire(100));
+   }
+}
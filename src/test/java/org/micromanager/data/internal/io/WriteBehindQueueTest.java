@@ -0,0 +1,215 @@
+package org.micromanager.data.internal.io;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteBehindQueueTest {
+   private Path tmpFile_;
+
+   @BeforeEach
+   public void init() throws IOException {
+      tmpFile_ = Files.createTempFile(getClass().getSimpleName(), ".bin");
+   }
+
+   @AfterEach
+   public void tearDown() throws IOException {
+      Files.deleteIfExists(tmpFile_);
+   }
+
+   @ParameterizedTest
+   @EnumSource(WriteBehindQueue.Durability.class)
+   public void testWriteBehind(WriteBehindQueue.Durability durability)
+      throws Exception {
+      int recordSize = 1000;
+      int recordCount = 100;
+      List<CompletableFuture<Void>> writes = new ArrayList<>();
+      WriteBehindQueue.Stats stats;
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.WRITE)) {
+         WriteBehindQueue queue = WriteBehindQueue.builder(chan).
+            maxQueuedBytes(3 * recordSize).durability(durability).
+            groupCommitInterval(5).build();
+         ByteBuffer record = ByteBuffer.allocate(recordSize);
+         for (int r = 0; r < recordCount; ++r) {
+            for (int i = 0; i < recordSize; ++i) {
+               record.put(i, (byte) r);
+            }
+            record.rewind();
+            writes.add(queue.write(record, (long) r * recordSize).
+               toCompletableFuture());
+            assertFalse(record.hasRemaining());
+            assertTrue(queue.getStats().getQueuedBytes() <= 3 * recordSize);
+         }
+         queue.close().toCompletableFuture().get();
+         for (CompletableFuture<Void> w : writes) {
+            assertTrue(w.isDone());
+            w.get();
+         }
+         stats = queue.getStats();
+         assertThrows(IllegalStateException.class, queue::close);
+      }
+      assertEquals(0, stats.getQueuedBytes());
+      assertEquals(0, stats.getQueuedWrites());
+      assertTrue(stats.getPeakQueuedBytes() <= 3 * recordSize);
+      assertEquals(recordCount, stats.getCompletedWrites());
+      assertTrue(stats.getMaxWriteLatencyNanos() >= stats.getMeanWriteLatencyNanos());
+      if (durability == WriteBehindQueue.Durability.NONE) {
+         assertEquals(0, stats.getForceCount());
+      }
+      else {
+         assertTrue(stats.getForceCount() >= 1);
+      }
+
+      byte[] actual = Files.readAllBytes(tmpFile_);
+      assertEquals(recordSize * recordCount, actual.length);
+      for (int i = 0; i < actual.length; ++i) {
+         assertEquals((byte) (i / recordSize), actual[i], "at " + i);
+      }
+   }
+
+   @Test
+   public void testTryWriteAndClosed() throws Exception {
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.WRITE)) {
+         WriteBehindQueue queue = WriteBehindQueue.builder(chan).
+            maxQueuedBytes(16).build();
+         CompletableFuture<Void> first = queue.tryWrite(ByteBuffer.allocate(16), 0).
+            toCompletableFuture();
+         first.get();
+         // Larger than the queue, but admitted once empty
+         queue.write(ByteBuffer.allocate(100), 16).toCompletableFuture().get();
+         queue.close().toCompletableFuture().get();
+         CompletableFuture<Void> late = queue.write(ByteBuffer.allocate(1), 0).
+            toCompletableFuture();
+         ExecutionException e = assertThrows(ExecutionException.class, late::get);
+         assertTrue(e.getCause() instanceof IllegalStateException);
+      }
+      assertEquals(116, Files.size(tmpFile_));
+   }
+
+   @Test
+   public void testGroupCommitFlushDoesNotWaitForInterval() throws Exception {
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.WRITE)) {
+         WriteBehindQueue queue = WriteBehindQueue.builder(chan).
+            durability(WriteBehindQueue.Durability.GROUP_COMMIT).
+            groupCommitInterval(10_000).build();
+         CompletableFuture<Void> write = queue.write(ByteBuffer.allocate(16), 0).
+            toCompletableFuture();
+         queue.flush().toCompletableFuture().get(2, TimeUnit.SECONDS);
+         assertTrue(write.isDone());
+         write.get();
+         assertEquals(1, queue.getStats().getForceCount());
+         queue.close().toCompletableFuture().get(2, TimeUnit.SECONDS);
+      }
+      assertEquals(16, Files.size(tmpFile_));
+   }
+
+   @ParameterizedTest
+   @EnumSource(WriteBehindQueue.Durability.class)
+   public void testCloseWithConcurrentWriters(
+      WriteBehindQueue.Durability durability) throws Exception {
+      int writerCount = 4;
+      int recordSize = 64;
+      ExecutorService writers = Executors.newFixedThreadPool(writerCount);
+      List<Future<List<CompletableFuture<Void>>>> perWriter = new ArrayList<>();
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.WRITE)) {
+         WriteBehindQueue queue = WriteBehindQueue.builder(chan).
+            maxQueuedBytes(16 * recordSize).durability(durability).
+            groupCommitInterval(10_000).build();
+         CountDownLatch started = new CountDownLatch(writerCount);
+         for (int w = 0; w < writerCount; ++w) {
+            int writer = w;
+            perWriter.add(writers.submit(() -> {
+               List<CompletableFuture<Void>> writes = new ArrayList<>();
+               started.countDown();
+               for (long i = 0; ; ++i) {
+                  CompletableFuture<Void> f = queue.write(
+                     ByteBuffer.allocate(recordSize),
+                     (i * writerCount + writer) * recordSize).
+                     toCompletableFuture();
+                  writes.add(f);
+                  if (f.isCompletedExceptionally()) {
+                     return writes;
+                  }
+               }
+            }));
+         }
+         started.await();
+         Thread.sleep(20);
+         queue.close().toCompletableFuture().get(5, TimeUnit.SECONDS);
+         for (Future<List<CompletableFuture<Void>>> writes : perWriter) {
+            for (CompletableFuture<Void> f : writes.get(5, TimeUnit.SECONDS)) {
+               assertTrue(f.isDone());
+               if (f.isCompletedExceptionally()) {
+                  ExecutionException e = assertThrows(ExecutionException.class,
+                     f::get);
+                  assertTrue(e.getCause() instanceof IllegalStateException);
+               }
+            }
+         }
+         assertEquals(0, queue.getStats().getQueuedWrites());
+      }
+      finally {
+         writers.shutdownNow();
+      }
+   }
+
+   @Test
+   public void testBlockedWriteWokenByRelease() throws Exception {
+      ExecutorService io = Executors.newSingleThreadExecutor();
+      ExecutorService writer = Executors.newSingleThreadExecutor();
+      CountDownLatch gate = new CountDownLatch(1);
+      try {
+         // Hold back all writes until the gate is opened
+         io.submit(() -> {
+            gate.await();
+            return null;
+         });
+         try (AsynchronousFileChannel chan = PositionalFileChannel.open(tmpFile_,
+            io, StandardOpenOption.WRITE)) {
+            WriteBehindQueue queue = WriteBehindQueue.builder(chan).
+               maxQueuedBytes(16).build();
+            CompletableFuture<Void> first = queue.write(ByteBuffer.allocate(16), 0).
+               toCompletableFuture();
+            Future<CompletableFuture<Void>> second = writer.submit(() ->
+               queue.write(ByteBuffer.allocate(16), 16).toCompletableFuture());
+            Thread.sleep(50);
+            assertFalse(second.isDone());
+
+            gate.countDown();
+            first.get();
+            second.get().get();
+            queue.close().toCompletableFuture().get();
+         }
+      }
+      finally {
+         gate.countDown();
+         io.shutdown();
+         writer.shutdown();
+      }
+      assertEquals(32, Files.size(tmpFile_));
+   }
+}
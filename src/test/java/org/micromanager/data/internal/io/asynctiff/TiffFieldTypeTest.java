@@ -55,4 +55,23 @@ public class TiffFieldTypeTest {
 
       assertFalse(TiffFieldType.DOUBLE.fitsInIFDEntry(1));
    }
+
+   @Test
+   public void testFitsInBigTiffIFDEntry() {
+      assertTrue(TiffFieldType.BYTE.fitsInIFDEntry(8, TiffFormat.BIGTIFF));
+      assertFalse(TiffFieldType.BYTE.fitsInIFDEntry(9, TiffFormat.BIGTIFF));
+
+      assertTrue(TiffFieldType.SHORT.fitsInIFDEntry(4, TiffFormat.BIGTIFF));
+      assertFalse(TiffFieldType.SHORT.fitsInIFDEntry(5, TiffFormat.BIGTIFF));
+
+      assertTrue(TiffFieldType.LONG.fitsInIFDEntry(2, TiffFormat.BIGTIFF));
+      assertFalse(TiffFieldType.LONG.fitsInIFDEntry(3, TiffFormat.BIGTIFF));
+
+      assertTrue(TiffFieldType.RATIONAL.fitsInIFDEntry(1, TiffFormat.BIGTIFF));
+      assertTrue(TiffFieldType.DOUBLE.fitsInIFDEntry(1, TiffFormat.BIGTIFF));
+
+      assertFalse(TiffFieldType.LONG8.fitsInIFDEntry(1));
+      assertTrue(TiffFieldType.LONG8.fitsInIFDEntry(1, TiffFormat.BIGTIFF));
+      assertFalse(TiffFieldType.LONG8.fitsInIFDEntry(2, TiffFormat.BIGTIFF));
+   }
 }
@@ -8,6 +8,7 @@ import org.junit.jupiter.params.provider.ValueSource;
 import org.micromanager.data.internal.io.Alignment;
 import org.micromanager.data.internal.io.Async;
 import org.micromanager.data.internal.io.BufferedPositionGroup;
+import org.micromanager.data.internal.io.MappedFileChannel;
 import org.micromanager.data.internal.io.UnbufferedPosition;
 
 import java.io.IOException;
@@ -18,7 +19,10 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -148,6 +152,117 @@ public class TiffHeaderTest {
       }
    }
 
+   @ParameterizedTest
+   @ValueSource(ints = { 0, 12, 4096 })
+   public void testReadAhead(int readAheadSize) throws Exception {
+      ByteBuffer b = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+      b.put("II".getBytes("US-ASCII")).putShort((short) 0x002A).putInt(8);
+
+      // IFD, followed by its out-of-line values
+      b.putShort((short) 2);
+      b.putShort((short) 0x0100).putShort((short) 0x0004).putInt(1).putInt(8);
+      b.putShort((short) 0x011a).putShort((short) 0x0005).putInt(1).putInt(38);
+      b.putInt(0); // NextIFDOffset
+      b.putInt(1).putInt(10000);
+
+      b.flip();
+      try (FileChannel writeChan = FileChannel.open(tmpFile_,
+         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+         writeChan.write(b);
+      }
+
+      TiffReadOptions options = TiffReadOptions.builder().
+         readAheadSize(readAheadSize).build();
+      TiffIFD ifd;
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.READ)) {
+         TiffHeader header = TiffHeader.read(chan, options).toCompletableFuture().get();
+         ifd = header.readFirstIFD(chan).toCompletableFuture().get();
+         assertEquals(2, ifd.getEntries().size());
+         assertFalse(ifd.hasNextIFD());
+         assertEquals(1e-4, ifd.getRequiredEntryWithTag(TiffTag.Known.XResolution.get()).
+            readValue(chan).toCompletableFuture().get().doubleValue(0), 1e-10);
+      }
+
+      if (readAheadSize >= 46) {
+         // The value was prefetched, so no I/O is needed
+         assertEquals(1e-4, ifd.getRequiredEntryWithTag(TiffTag.Known.XResolution.get()).
+            readValue(null).toCompletableFuture().get().doubleValue(0), 1e-10);
+      }
+   }
+
+   @Test
+   public void testReadWithDedicatedThreadPools() throws Exception {
+      ByteBuffer b = ByteBuffer.allocate(64).order(ByteOrder.BIG_ENDIAN);
+      b.put("MM".getBytes("US-ASCII")).putShort((short) 0x002A).putInt(8);
+      b.putShort((short) 1);
+      b.putShort((short) 0x011a).putShort((short) 0x0005).putInt(1).putInt(26);
+      b.putInt(0); // NextIFDOffset
+      b.putInt(1).putInt(4);
+      b.flip();
+      try (FileChannel writeChan = FileChannel.open(tmpFile_,
+         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+         writeChan.write(b);
+      }
+
+      ExecutorService ioPool = Async.newThreadPool("test-io", 1);
+      ExecutorService parsePool = Async.newThreadPool("test-parse", 1);
+      AtomicInteger parseTasks = new AtomicInteger();
+      TiffReadOptions options = TiffReadOptions.builder().executor(r -> {
+         parseTasks.incrementAndGet();
+         parsePool.execute(r);
+      }).build();
+      try (AsynchronousFileChannel chan = Async.open(tmpFile_, ioPool,
+         StandardOpenOption.READ)) {
+         TiffValue value = TiffHeader.read(chan, options).
+            thenCompose(h -> h.readFirstIFD(chan)).
+            thenCompose(ifd -> ifd.getEntryWithTag(
+               TiffTag.Known.XResolution.get()).readValue(chan)).
+            toCompletableFuture().get();
+         assertEquals(0.25, value.doubleValue(0));
+      }
+      finally {
+         ioPool.shutdown();
+         parsePool.shutdown();
+      }
+      // Header, IFD entry count, IFD body, value
+      assertEquals(4, parseTasks.get());
+   }
+
+   @Test
+   public void testForEachIFDLongChainWithDirectExecutor() throws Exception {
+      int ifdCount = 20000;
+      int ifdSize = 2 + 12 + 4;
+      ByteBuffer b = ByteBuffer.allocate(8 + ifdCount * ifdSize).
+         order(ByteOrder.LITTLE_ENDIAN);
+      b.put("II".getBytes("US-ASCII")).putShort((short) 0x002A).putInt(8);
+      for (int i = 0; i < ifdCount; ++i) {
+         b.putShort((short) 1);
+         b.putShort((short) 0x0100).putShort((short) 0x0004).putInt(1).putInt(i);
+         b.putInt(i + 1 < ifdCount ? b.position() + 4 : 0); // NextIFDOffset
+      }
+      b.flip();
+      try (FileChannel writeChan = FileChannel.open(tmpFile_,
+         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+         writeChan.write(b);
+      }
+
+      // Every read completes synchronously, so the chain must be walked
+      // without recursion
+      TiffReadOptions options = TiffReadOptions.builder().
+         executor(Runnable::run).build();
+      AtomicInteger visited = new AtomicInteger();
+      try (MappedFileChannel chan = MappedFileChannel.open(tmpFile_)) {
+         TiffHeader header = TiffHeader.read(chan, options).toCompletableFuture().get();
+         header.forEachIFD(chan, (offset, ifd) -> {
+            assertEquals(8 + (long) visited.getAndIncrement() * ifdSize,
+               offset.longValue());
+            return CompletableFuture.completedFuture(null);
+         }).toCompletableFuture().get();
+      }
+      assertEquals(ifdCount, visited.get());
+   }
+
    @ParameterizedTest
    @ValueSource(ints = { 0, 1 })
    public void testWriteMinimalExample(int o) throws Exception {
@@ -247,4 +362,91 @@ public class TiffHeaderTest {
          assertEquals(8 * 4, readBackPixels.limit());
       }
    }
+
+   @ParameterizedTest
+   @ValueSource(ints = { 0, 1 })
+   public void testWriteMinimalBigTiffExample(int o) throws Exception {
+      ByteOrder order = o != 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+      TiffFormat format = TiffFormat.BIGTIFF;
+
+      TiffOffsetField firstIFDOffset = TiffOffsetField.create(format, "FirstIFDOffset");
+      TiffHeader header = TiffHeader.createForWrite(format, order, firstIFDOffset);
+
+      ByteBuffer pixels = ByteBuffer.allocate(4 * 8);
+      for (int y = 0; y < 4; ++y) {
+         for (int x = 0; x < 8; ++x) {
+            pixels.put((byte) ((y << 4) + x)); // 8x4 image
+         }
+      }
+      pixels.rewind();
+
+      TiffOffsetField nextIFDOffset = TiffOffsetField.create(format, "NextIFDOffset");
+      TiffOffsetFieldGroup ifdFieldGroup = TiffOffsetFieldGroup.create();
+      TiffValue.Offsets stripOffsets = TiffValue.Offsets.create(format, 1, "StripOffsets", ifdFieldGroup);
+      TiffOffsetField pixelsOffset = stripOffsets.offsetValue(0);
+      TiffIFD ifd = TiffIFD.builder(format, order, nextIFDOffset, ifdFieldGroup).
+         entry(TiffTag.Known.ImageWidth.get(), TiffValue.Longs.create(8)).
+         entry(TiffTag.Known.ImageLength.get(), TiffValue.Shorts.create((short) 4)).
+         entry(TiffTag.Known.BitsPerSample.get(), TiffValue.Shorts.create((short) 8)).
+         entry(TiffTag.Known.StripOffsets.get(), stripOffsets).
+         entry(TiffTag.Known.RowsPerStrip.get(), TiffValue.Longs.create(4)).
+         entry(TiffTag.Known.StripByteCounts.get(), TiffValue.Long8s.create(32)).
+         entry(TiffTag.Known.XResolution.get(), TiffValue.Rationals.create(1, 10000)).
+         entry(TiffTag.Known.Software.get(), TiffValue.Ascii.createUtf8("BigTIFF test")).
+         build();
+
+      ByteBuffer ifdBuffer = ByteBuffer.allocate(1024).order(order);
+      BufferedPositionGroup ifdBufferPosGroup = BufferedPositionGroup.create();
+      for (TiffIFDEntry entry : ifd.getEntries()) {
+         entry.writeValue(ifdBuffer, ifdBufferPosGroup);
+         ifdBuffer.position(Alignment.align(ifdBuffer.position(), 2));
+      }
+      firstIFDOffset.setOffsetValue(ifdBufferPosGroup.positionInBuffer(ifdBuffer.position()));
+      ifd.write(ifdBuffer, ifdBufferPosGroup);
+      ifdBuffer.limit(ifdBuffer.position());
+      ifdBuffer.rewind();
+
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_, StandardOpenOption.WRITE)) {
+         header.write(chan).
+            thenCompose(v -> Async.size(chan)).
+            thenCompose(s -> {
+               pixelsOffset.setOffsetValue(UnbufferedPosition.at(s));
+               return Async.write(chan, pixels, s);
+            }).
+            thenCompose(v -> Async.pad(chan, 8)).
+            thenCompose(v -> Async.size(chan)).
+            thenCompose(s -> {
+               ifdBufferPosGroup.setBufferFileOffset(s);
+               ifdFieldGroup.updateAll(ifdBuffer);
+               return Async.write(chan, ifdBuffer, s);
+            }).
+            thenCompose(v -> firstIFDOffset.update(chan, order)).
+            toCompletableFuture().get();
+      }
+
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.READ)) {
+         TiffHeader readBackHeader = TiffHeader.read(chan).toCompletableFuture().get();
+         assertEquals(43, readBackHeader.getTiffMagic());
+         assertEquals(TiffFormat.BIGTIFF, readBackHeader.getTiffFormat());
+         assertEquals(order, readBackHeader.getTiffByteOrder());
+
+         TiffIFD readBackIFD = readBackHeader.readFirstIFD(chan).toCompletableFuture().get();
+         assertEquals(TiffFormat.BIGTIFF, readBackIFD.getTiffFormat());
+         assertFalse(readBackIFD.hasNextIFD());
+
+         assertEquals(TiffFieldType.LONG8, readBackIFD.getRequiredEntryWithTag(
+            TiffTag.Known.StripOffsets.get()).getType());
+         assertEquals(8, readBackIFD.getRequiredEntryWithTag(TiffTag.Known.ImageWidth.get()).
+            readValue(chan).toCompletableFuture().get().longValue(0));
+         assertEquals(1e-4, readBackIFD.getRequiredEntryWithTag(TiffTag.Known.XResolution.get()).
+            readValue(chan).toCompletableFuture().get().doubleValue(0), 1e-10);
+         assertEquals("BigTIFF test", readBackIFD.getRequiredEntryWithTag(TiffTag.Known.Software.get()).
+            readValue(chan).toCompletableFuture().get().utf8Value());
+
+         ByteBuffer readBackPixels = readBackIFD.readPixels(chan).toCompletableFuture().get();
+         assertEquals(8 * 4, readBackPixels.limit());
+         assertEquals((byte) 0x37, readBackPixels.get(31));
+      }
+   }
 }
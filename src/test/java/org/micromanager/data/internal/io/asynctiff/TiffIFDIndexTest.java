@@ -0,0 +1,182 @@
+package org.micromanager.data.internal.io.asynctiff;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TiffIFDIndexTest {
+   private Path tmpFile_;
+   private Path sidecar_;
+
+   @BeforeEach
+   public void init() throws IOException {
+      tmpFile_ = Files.createTempFile(getClass().getSimpleName(), ".tif");
+      sidecar_ = TiffIFDIndex.getDefaultSidecarPath(tmpFile_);
+      writeFile();
+   }
+
+   @AfterEach
+   public void tearDown() throws IOException {
+      Files.deleteIfExists(tmpFile_);
+      Files.deleteIfExists(sidecar_);
+   }
+
+   // Three IFDs: one strip, two strips (out-of-line values), and no strips
+   private void writeFile() throws IOException {
+      ByteBuffer b = ByteBuffer.allocate(1024).order(ByteOrder.BIG_ENDIAN);
+      b.put("MM".getBytes("US-ASCII")).putShort((short) 42).putInt(8);
+
+      // IFD 0 at 8
+      b.putShort((short) 2);
+      b.putShort((short) 0x0111).putShort((short) 0x0004).putInt(1).putInt(500);
+      b.putShort((short) 0x0117).putShort((short) 0x0004).putInt(1).putInt(32);
+      b.putInt(64); // next
+
+      // Out-of-line values of IFD 1
+      b.position(40);
+      b.putInt(600).putInt(700);
+      b.putInt(16).putInt(17);
+
+      // IFD 1 at 64
+      b.position(64);
+      b.putShort((short) 2);
+      b.putShort((short) 0x0111).putShort((short) 0x0004).putInt(2).putInt(40);
+      b.putShort((short) 0x0117).putShort((short) 0x0004).putInt(2).putInt(48);
+      b.putInt(100); // next
+
+      // IFD 2 at 100
+      b.position(100);
+      b.putShort((short) 1);
+      b.putShort((short) 0x0100).putShort((short) 0x0004).putInt(1).putInt(8);
+      b.putInt(0);
+
+      b.flip();
+      try (FileChannel chan = FileChannel.open(tmpFile_,
+         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+         chan.write(b);
+      }
+   }
+
+   private static void checkIndex(TiffIFDIndex index) {
+      assertEquals(3, index.getIFDCount());
+      assertEquals(8, index.getIFDOffset(0));
+      assertEquals(64, index.getIFDOffset(1));
+      assertEquals(100, index.getIFDOffset(2));
+
+      assertEquals(1, index.getStripCount(0));
+      assertEquals(500, index.getStripOffset(0, 0));
+      assertEquals(32, index.getStripByteCount(0, 0));
+
+      assertEquals(2, index.getStripCount(1));
+      assertEquals(600, index.getStripOffset(1, 0));
+      assertEquals(700, index.getStripOffset(1, 1));
+      assertEquals(16, index.getStripByteCount(1, 0));
+      assertEquals(17, index.getStripByteCount(1, 1));
+
+      assertEquals(0, index.getStripCount(2));
+      assertThrows(IndexOutOfBoundsException.class,
+         () -> index.getStripOffset(2, 0));
+   }
+
+   @Test
+   public void testBuild() throws Exception {
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.READ)) {
+         TiffHeader header = TiffHeader.read(chan).toCompletableFuture().get();
+         checkIndex(TiffIFDIndex.build(chan, header).toCompletableFuture().get());
+      }
+   }
+
+   @Test
+   public void testSidecarRoundTrip() throws Exception {
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.READ)) {
+         assertFalse(Files.exists(sidecar_));
+         checkIndex(TiffIFDIndex.openOrBuild(tmpFile_, chan).toCompletableFuture().get());
+         assertTrue(Files.exists(sidecar_));
+
+         TiffIFDIndex.FileKey key = TiffIFDIndex.FileKey.compute(tmpFile_, chan).
+            toCompletableFuture().get();
+         TiffIFDIndex cached = TiffIFDIndex.readSidecar(sidecar_, key);
+         assertNotNull(cached);
+         checkIndex(cached);
+      }
+   }
+
+   @Test
+   public void testSidecarInvalidatedWhenFileGrows() throws Exception {
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.READ)) {
+         TiffIFDIndex.openOrBuild(tmpFile_, chan).toCompletableFuture().get();
+      }
+
+      try (FileChannel chan = FileChannel.open(tmpFile_, StandardOpenOption.APPEND)) {
+         chan.write(ByteBuffer.allocate(16));
+      }
+
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.READ)) {
+         TiffIFDIndex.FileKey key = TiffIFDIndex.FileKey.compute(tmpFile_, chan).
+            toCompletableFuture().get();
+         assertNull(TiffIFDIndex.readSidecar(sidecar_, key));
+
+         checkIndex(TiffIFDIndex.openOrBuild(tmpFile_, chan).toCompletableFuture().get());
+         assertNotNull(TiffIFDIndex.readSidecar(sidecar_, key));
+      }
+   }
+
+   @Test
+   public void testBuildRejectsMismatchedStripCounts() throws Exception {
+      // Give IFD 0 two strip byte counts (out-of-line) but one strip offset
+      try (FileChannel chan = FileChannel.open(tmpFile_, StandardOpenOption.WRITE)) {
+         ByteBuffer entry = ByteBuffer.allocate(8).order(ByteOrder.BIG_ENDIAN);
+         entry.putInt(2).putInt(48).flip();
+         chan.write(entry, 8 + 2 + 12 + 4);
+      }
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.READ)) {
+         TiffHeader header = TiffHeader.read(chan).toCompletableFuture().get();
+         ExecutionException e = assertThrows(ExecutionException.class,
+            () -> TiffIFDIndex.build(chan, header).toCompletableFuture().get());
+         assertTrue(e.getCause() instanceof TiffFormatException);
+      }
+   }
+
+   @Test
+   public void testCorruptSidecarStripStartsRebuilt() throws Exception {
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.READ)) {
+         TiffIFDIndex.openOrBuild(tmpFile_, chan).toCompletableFuture().get();
+      }
+
+      // Point the second IFD's strips past the end of the strip arrays
+      long sidecarSize = Files.size(sidecar_);
+      try (FileChannel chan = FileChannel.open(sidecar_, StandardOpenOption.WRITE)) {
+         ByteBuffer start = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+         start.putInt(99).flip();
+         chan.write(start, sidecarSize - 4 * 4 + 4);
+      }
+
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.READ)) {
+         TiffIFDIndex.FileKey key = TiffIFDIndex.FileKey.compute(tmpFile_, chan).
+            toCompletableFuture().get();
+         assertThrows(IOException.class,
+            () -> TiffIFDIndex.readSidecar(sidecar_, key));
+         checkIndex(TiffIFDIndex.openOrBuild(tmpFile_, chan).toCompletableFuture().get());
+         checkIndex(TiffIFDIndex.readSidecar(sidecar_, key));
+      }
+   }
+}
@@ -0,0 +1,97 @@
+package org.micromanager.data.internal.io.asynctiff;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.micromanager.data.internal.io.AppendCursor;
+import org.micromanager.data.internal.io.UnbufferedPosition;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TiffIFDTemplateTest {
+   private Path tmpFile_;
+
+   @BeforeEach
+   public void init() throws IOException {
+      tmpFile_ = Files.createTempFile(getClass().getSimpleName(), ".tif");
+   }
+
+   @AfterEach
+   public void tearDown() throws IOException {
+      Files.deleteIfExists(tmpFile_);
+   }
+
+   @ParameterizedTest
+   @EnumSource(TiffFormat.class)
+   public void testWriteFramesAndReadBack(TiffFormat format) throws Exception {
+      ByteOrder order = ByteOrder.LITTLE_ENDIAN;
+      TiffIFDTemplate template = TiffIFDTemplate.builder(format, order).
+         entry(TiffTag.Known.ImageWidth.get(), TiffValue.Longs.create(8)).
+         entry(TiffTag.Known.ImageLength.get(), TiffValue.Longs.create(4)).
+         entry(TiffTag.Known.BitsPerSample.get(), TiffValue.Shorts.create((short) 8)).
+         entry(TiffTag.Known.RowsPerStrip.get(), TiffValue.Longs.create(2)).
+         entry(TiffTag.Known.XResolution.get(), TiffValue.Rationals.create(1, 4)).
+         stripByteCounts(16, 16).
+         variableAsciiEntry(TiffTag.Known.ImageDescription.get()).
+         build();
+      assertEquals(32, template.getPixelByteCount());
+
+      String[] descriptions = { "frame 0 with a long description", "f1" };
+      ByteBuffer pixels = ByteBuffer.allocate(32);
+      long[] offsets = new long[descriptions.length];
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.WRITE)) {
+         AppendCursor cursor = AppendCursor.at(format.getHeaderSize());
+         // Write in reverse so that each frame knows its successor
+         long next = 0;
+         for (int f = descriptions.length - 1; f >= 0; --f) {
+            for (int i = 0; i < 32; ++i) {
+               pixels.put(i, (byte) (f * 100 + i));
+            }
+            ByteBuffer description = ByteBuffer.wrap(
+               descriptions[f].getBytes(StandardCharsets.UTF_8));
+            offsets[f] = template.write(chan, cursor, description, pixels, next).
+               toCompletableFuture().get();
+            assertEquals(0, description.position());
+            assertEquals(0, pixels.position());
+            next = offsets[f];
+         }
+         assertEquals(cursor.getEnd(), chan.size());
+         TiffHeader.createForWrite(format, order, TiffOffsetField.forOffsetValue(
+            format, UnbufferedPosition.at(offsets[0]), "FirstIFDOffset")).
+            write(chan).toCompletableFuture().get();
+      }
+
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.READ)) {
+         TiffIFD ifd = TiffHeader.read(chan).
+            thenCompose(h -> h.readFirstIFD(chan)).
+            toCompletableFuture().get();
+         for (int f = 0; f < descriptions.length; ++f) {
+            assertEquals(descriptions[f], ifd.getRequiredEntryWithTag(
+               TiffTag.Known.ImageDescription.get()).readValue(chan).
+               toCompletableFuture().get().utf8Value());
+            assertEquals(0.25, ifd.getRequiredEntryWithTag(
+               TiffTag.Known.XResolution.get()).readValue(chan).
+               toCompletableFuture().get().doubleValue(0));
+            ByteBuffer readBack = ifd.readPixels(chan).toCompletableFuture().get();
+            assertEquals(32, readBack.remaining());
+            assertEquals((byte) (f * 100 + 31), readBack.get(31));
+            assertEquals(f < descriptions.length - 1, ifd.hasNextIFD());
+            if (ifd.hasNextIFD()) {
+               ifd = ifd.readNextIFD(chan).toCompletableFuture().get();
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,405 @@
+package org.micromanager.data.internal.io.asynctiff;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.micromanager.data.internal.io.AppendCursor;
+import org.micromanager.data.internal.io.Async;
+import org.micromanager.data.internal.io.BufferPool;
+import org.micromanager.data.internal.io.ChannelBackend;
+import org.micromanager.data.internal.io.SizeClassedBufferPool;
+import org.micromanager.data.internal.io.UnbufferedPosition;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TiffIFDTest {
+   private Path tmpFile_;
+
+   @BeforeEach
+   public void init() throws IOException {
+      tmpFile_ = Files.createTempFile(getClass().getSimpleName(), ".tif");
+   }
+
+   @AfterEach
+   public void tearDown() throws IOException {
+      Files.deleteIfExists(tmpFile_);
+   }
+
+   private void writeFile(ByteBuffer b) throws IOException {
+      b.flip();
+      try (FileChannel chan = FileChannel.open(tmpFile_,
+         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+         chan.write(b);
+      }
+   }
+
+   @Test
+   public void testReadValues() throws Exception {
+      ByteBuffer b = ByteBuffer.allocate(4096).order(ByteOrder.BIG_ENDIAN);
+      b.put("MM".getBytes("US-ASCII")).putShort((short) 42).putInt(8);
+
+      b.putShort((short) 4);
+      b.putShort((short) 0x0100).putShort((short) 0x0004).putInt(1).putInt(8);
+      b.putShort((short) 0x011a).putShort((short) 0x0005).putInt(1).putInt(100);
+      b.putShort((short) 0x011b).putShort((short) 0x0005).putInt(1).putInt(108);
+      b.putShort((short) 0x0131).putShort((short) 0x0002).putInt(6).putInt(3000);
+      b.putInt(0);
+
+      b.position(100);
+      b.putInt(1).putInt(4).putInt(1).putInt(8);
+      b.position(3000);
+      b.put("hello\0".getBytes("US-ASCII"));
+      writeFile(b);
+
+      TiffReadOptions options = TiffReadOptions.builder().maxValueReadGap(64).build();
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.READ)) {
+         TiffIFD ifd = TiffHeader.read(chan, options).
+            thenCompose(h -> h.readFirstIFD(chan)).toCompletableFuture().get();
+
+         TiffIFDEntry xRes = ifd.getRequiredEntryWithTag(TiffTag.Known.XResolution.get());
+         TiffIFDEntry yRes = ifd.getRequiredEntryWithTag(TiffTag.Known.YResolution.get());
+         TiffIFDEntry software = ifd.getRequiredEntryWithTag(TiffTag.Known.Software.get());
+
+         Map<TiffIFDEntry, TiffValue> subset = ifd.readValues(chan,
+            Arrays.asList(xRes, yRes)).toCompletableFuture().get();
+         assertEquals(2, subset.size());
+         assertEquals(0.25, subset.get(xRes).doubleValue(0));
+         assertEquals(0.125, subset.get(yRes).doubleValue(0));
+
+         Map<TiffIFDEntry, TiffValue> all = ifd.readValues(chan).
+            toCompletableFuture().get();
+         assertEquals(4, all.size());
+         assertEquals(8, all.get(ifd.getRequiredEntryWithTag(
+            TiffTag.Known.ImageWidth.get())).longValue(0));
+         assertEquals("hello", all.get(software).utf8Value());
+      }
+   }
+
+   // Overwrites buffers on release, so that any use after release is seen
+   private static final class ScribblingPool implements BufferPool {
+      private final BufferPool pool_ = SizeClassedBufferPool.builder().
+         maxThreadLocalSize(0).build();
+
+      @Override
+      public ByteBuffer acquire(int size) {
+         return pool_.acquire(size);
+      }
+
+      @Override
+      public void release(ByteBuffer buffer) {
+         ByteBuffer b = buffer.duplicate();
+         b.clear();
+         while (b.hasRemaining()) {
+            b.put((byte) 0xff);
+         }
+         pool_.release(buffer);
+      }
+   }
+
+   @Test
+   public void testReadManyConcurrentlyFromSharedPool() throws Exception {
+      int ifdCount = 200;
+      ByteBuffer b = ByteBuffer.allocate(8 + ifdCount * (2 + 8 * 12 + 4)).
+         order(ByteOrder.LITTLE_ENDIAN);
+      b.put("II".getBytes("US-ASCII")).putShort((short) 42).putInt(8);
+      long[] offsets = new long[ifdCount];
+      for (int i = 0; i < ifdCount; ++i) {
+         offsets[i] = b.position();
+         int entryCount = i % 8 + 1;
+         b.putShort((short) entryCount);
+         for (int k = 0; k < entryCount; ++k) {
+            b.putShort((short) (0x8000 + k)).putShort((short) 0x0004).
+               putInt(1).putInt(i);
+         }
+         b.putInt(i + 1 < ifdCount ? b.position() + 4 : 0);
+      }
+      writeFile(b);
+
+      ExecutorService executor = Async.newThreadPool("TiffIFDTest", 4);
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.READ)) {
+         TiffReadOptions options = TiffReadOptions.builder().
+            bufferPool(new ScribblingPool()).executor(executor).build();
+         List<CompletableFuture<TiffHeader>> headers = new ArrayList<>();
+         List<CompletableFuture<TiffIFD>> ifds = new ArrayList<>();
+         for (int i = 0; i < ifdCount; ++i) {
+            headers.add(TiffHeader.read(chan, options).toCompletableFuture());
+            ifds.add(TiffIFD.read(chan, TiffFormat.CLASSIC,
+               ByteOrder.LITTLE_ENDIAN, offsets[i], options).toCompletableFuture());
+         }
+         for (int i = 0; i < ifdCount; ++i) {
+            TiffHeader header = headers.get(i).get();
+            assertEquals(ByteOrder.LITTLE_ENDIAN, header.getTiffByteOrder());
+            TiffIFD ifd = ifds.get(i).get();
+            assertEquals(i % 8 + 1, ifd.getEntries().size(), "IFD " + i);
+            assertEquals(i, ifd.getEntries().get(0).readValue(chan).
+               toCompletableFuture().get().longValue(0), "IFD " + i);
+         }
+      }
+      finally {
+         executor.shutdown();
+      }
+   }
+
+   @Test
+   public void testWriteConcurrentlyWithAppendCursor() throws Exception {
+      TiffOffsetFieldGroup fieldGroup = TiffOffsetFieldGroup.create();
+      TiffIFD ifd = TiffIFD.builder(ByteOrder.BIG_ENDIAN,
+         TiffOffsetField.forOffsetValue(UnbufferedPosition.at(0), "NextIFDOffset"),
+         fieldGroup).
+         entry(TiffTag.Known.ImageWidth.get(), TiffValue.Longs.create(8)).
+         entry(TiffTag.Known.XResolution.get(), TiffValue.Rationals.create(1, 4)).
+         entry(TiffTag.Known.Software.get(), TiffValue.Ascii.createUtf8("hello")).
+         build();
+
+      long ifdOffset;
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.WRITE)) {
+         AppendCursor cursor = AppendCursor.at(9);
+         List<CompletableFuture<?>> writes = new ArrayList<>();
+         for (TiffIFDEntry entry : ifd.getEntries()) {
+            writes.add(entry.writeValue(chan, cursor).toCompletableFuture());
+         }
+         CompletableFuture<Long> ifdWrite = ifd.write(chan, cursor).toCompletableFuture();
+         writes.add(ifdWrite);
+         CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).get();
+         ifdOffset = ifdWrite.get();
+         assertEquals(0, ifdOffset % 4);
+         assertEquals(ifdOffset + 2 + 3 * 12 + 4, cursor.getEnd());
+         assertEquals(cursor.getEnd(), chan.size());
+      }
+
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.READ)) {
+         TiffIFD readBack = TiffIFD.read(chan, ByteOrder.BIG_ENDIAN, ifdOffset).
+            toCompletableFuture().get();
+         Map<TiffIFDEntry, TiffValue> values = readBack.readValues(chan).
+            toCompletableFuture().get();
+         assertEquals(0.25, values.get(readBack.getRequiredEntryWithTag(
+            TiffTag.Known.XResolution.get())).doubleValue(0));
+         assertEquals("hello", values.get(readBack.getRequiredEntryWithTag(
+            TiffTag.Known.Software.get())).utf8Value());
+      }
+   }
+
+   private static void putEntry(ByteBuffer b, int tag, int type, int count, int value) {
+      b.putShort((short) tag).putShort((short) type).putInt(count);
+      if (type == 3 && count == 1) {
+         b.putShort((short) value).putShort((short) 0);
+      }
+      else {
+         b.putInt(value);
+      }
+   }
+
+   private ByteBuffer readFirstIFDPixels() throws Exception {
+      return readFirstIFDPixels(ChannelBackend.ASYNCHRONOUS);
+   }
+
+   private ByteBuffer readFirstIFDPixels(ChannelBackend backend) throws Exception {
+      try (AsynchronousFileChannel chan = backend.open(tmpFile_,
+         StandardOpenOption.READ)) {
+         return TiffHeader.read(chan).
+            thenCompose(h -> h.readFirstIFD(chan)).
+            thenCompose(ifd -> ifd.readPixels(chan)).
+            toCompletableFuture().get();
+      }
+   }
+
+   private void writeMultipleStripsFile() throws Exception {
+      ByteBuffer b = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+      b.put("II".getBytes("US-ASCII")).putShort((short) 42).putInt(8);
+
+      // 4x4 image in 4 strips, of which strips 0, 1 and 3 are contiguous
+      b.putShort((short) 6);
+      putEntry(b, 0x0100, 3, 1, 4); // ImageWidth
+      putEntry(b, 0x0101, 3, 1, 4); // ImageLength
+      putEntry(b, 0x0102, 3, 1, 8); // BitsPerSample
+      putEntry(b, 0x0111, 4, 4, 100); // StripOffsets
+      putEntry(b, 0x0116, 3, 1, 1); // RowsPerStrip
+      putEntry(b, 0x0117, 4, 4, 116); // StripByteCounts
+      b.putInt(0);
+
+      b.position(100);
+      b.putInt(200).putInt(204).putInt(300).putInt(208);
+      b.putInt(4).putInt(4).putInt(4).putInt(4);
+
+      int[] stripOffsets = { 200, 204, 300, 208 };
+      for (int y = 0; y < 4; ++y) {
+         for (int x = 0; x < 4; ++x) {
+            b.put(stripOffsets[y] + x, (byte) ((y << 4) + x));
+         }
+      }
+      b.position(400);
+      writeFile(b);
+   }
+
+   @ParameterizedTest
+   @EnumSource(ChannelBackend.class)
+   public void testReadPixelsMultipleStrips(ChannelBackend backend) throws Exception {
+      writeMultipleStripsFile();
+      ByteBuffer pixels = readFirstIFDPixels(backend);
+      assertEquals(0, pixels.position());
+      assertEquals(16, pixels.limit());
+      for (int y = 0; y < 4; ++y) {
+         for (int x = 0; x < 4; ++x) {
+            assertEquals((byte) ((y << 4) + x), pixels.get(y * 4 + x));
+         }
+      }
+   }
+
+   @Test
+   public void testReadPixelsFromBufferPool() throws Exception {
+      writeMultipleStripsFile();
+      SizeClassedBufferPool pool = SizeClassedBufferPool.builder().build();
+      TiffReadOptions options = TiffReadOptions.builder().bufferPool(pool).build();
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.READ)) {
+         ByteBuffer pixels = TiffHeader.read(chan, options).
+            thenCompose(h -> h.readFirstIFD(chan)).
+            thenCompose(ifd -> ifd.readPixels(chan)).
+            toCompletableFuture().get();
+         assertEquals(16, pixels.limit());
+         assertEquals((byte) 0x32, pixels.get(14));
+
+         // Only the returned buffer remains outstanding
+         assertEquals(pixels.capacity(), pool.getOutstandingBytes());
+         pool.release(pixels);
+         assertEquals(0, pool.getOutstandingBytes());
+         assertTrue(pool.getAcquireCount() > 1);
+      }
+   }
+
+   @Test
+   public void testReadPixelsMapped() throws Exception {
+      ByteBuffer b = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+      b.put("II".getBytes("US-ASCII")).putShort((short) 42).putInt(8);
+
+      // 2x2 16-bit image in 2 contiguous strips
+      b.putShort((short) 6);
+      putEntry(b, 0x0100, 3, 1, 2); // ImageWidth
+      putEntry(b, 0x0101, 3, 1, 2); // ImageLength
+      putEntry(b, 0x0102, 3, 1, 16); // BitsPerSample
+      putEntry(b, 0x0111, 4, 2, 100); // StripOffsets
+      putEntry(b, 0x0116, 3, 1, 1); // RowsPerStrip
+      putEntry(b, 0x0117, 4, 2, 108); // StripByteCounts
+      b.putInt(0);
+
+      b.position(100);
+      b.putInt(200).putInt(204);
+      b.putInt(4).putInt(4);
+      b.position(200);
+      b.putShort((short) 1).putShort((short) 2).putShort((short) 3).putShort((short) 4);
+      writeFile(b);
+
+      try (AsynchronousFileChannel chan = ChannelBackend.MAPPED.open(tmpFile_)) {
+         TiffIFD ifd = TiffHeader.read(chan).
+            thenCompose(h -> h.readFirstIFD(chan)).toCompletableFuture().get();
+         TiffValue offsets = ifd.getRequiredEntryWithTag(
+            TiffTag.Known.StripOffsets.get()).readValue(chan).toCompletableFuture().get();
+         assertEquals(204, offsets.longValue(1));
+
+         ByteBuffer pixels = ifd.readPixels(chan).toCompletableFuture().get();
+         assertTrue(pixels.isReadOnly());
+         assertTrue(pixels.isDirect());
+         assertEquals(ByteOrder.LITTLE_ENDIAN, pixels.order());
+         assertEquals(8, pixels.limit());
+         assertEquals(4, pixels.asShortBuffer().get(3));
+      }
+   }
+
+   @Test
+   public void testReadPixelsIntoSuppliedBuffer() throws Exception {
+      writeMultipleStripsFile();
+      ByteBuffer ring = ByteBuffer.allocate(64);
+      ring.position(16);
+      ByteBuffer dest = ring.slice();
+      dest.position(4);
+
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.READ)) {
+         TiffIFD ifd = TiffHeader.read(chan).
+            thenCompose(h -> h.readFirstIFD(chan)).toCompletableFuture().get();
+         assertEquals(16, (int) ifd.readPixelByteCount(chan).toCompletableFuture().get());
+         ByteBuffer result = ifd.readPixels(chan, dest).toCompletableFuture().get();
+         assertSame(dest, result);
+         assertEquals(20, dest.position());
+
+         ByteBuffer tooSmall = ByteBuffer.allocateDirect(15);
+         assertThrows(ExecutionException.class,
+            () -> ifd.readPixels(chan, tooSmall).toCompletableFuture().get());
+      }
+
+      for (int y = 0; y < 4; ++y) {
+         for (int x = 0; x < 4; ++x) {
+            assertEquals((byte) ((y << 4) + x), ring.get(16 + 4 + y * 4 + x));
+         }
+      }
+      assertEquals(0, ring.get(16 + 3));
+      assertEquals(0, ring.get(16 + 20));
+   }
+
+   @Test
+   public void testReadPixelsTiled() throws Exception {
+      ByteBuffer b = ByteBuffer.allocate(1024).order(ByteOrder.BIG_ENDIAN);
+      b.put("MM".getBytes("US-ASCII")).putShort((short) 42).putInt(8);
+
+      // 5x3 image in 4x2 tiles (2 across, 2 down), partly contiguous
+      b.putShort((short) 7);
+      putEntry(b, 0x0100, 3, 1, 5); // ImageWidth
+      putEntry(b, 0x0101, 3, 1, 3); // ImageLength
+      putEntry(b, 0x0102, 3, 1, 8); // BitsPerSample
+      putEntry(b, 0x0142, 3, 1, 4); // TileWidth
+      putEntry(b, 0x0143, 3, 1, 2); // TileLength
+      putEntry(b, 0x0144, 4, 4, 100); // TileOffsets
+      putEntry(b, 0x0145, 4, 4, 116); // TileByteCounts
+      b.putInt(0);
+
+      int[] tileOffsets = { 400, 408, 416, 500 };
+      b.position(100);
+      for (int offset : tileOffsets) {
+         b.putInt(offset);
+      }
+      b.putInt(8).putInt(8).putInt(8).putInt(8);
+
+      for (int t = 0; t < 4; ++t) {
+         for (int ty = 0; ty < 2; ++ty) {
+            for (int tx = 0; tx < 4; ++tx) {
+               int x = (t % 2) * 4 + tx;
+               int y = (t / 2) * 2 + ty;
+               b.put(tileOffsets[t] + ty * 4 + tx,
+                  x < 5 && y < 3 ? (byte) ((y << 4) + x) : (byte) 0xFF);
+            }
+         }
+      }
+      b.position(508);
+      writeFile(b);
+
+      ByteBuffer pixels = readFirstIFDPixels();
+      assertEquals(15, pixels.limit());
+      for (int y = 0; y < 3; ++y) {
+         for (int x = 0; x < 5; ++x) {
+            assertEquals((byte) ((y << 4) + x), pixels.get(y * 5 + x));
+         }
+      }
+   }
+}
@@ -0,0 +1,126 @@
+package org.micromanager.data.internal.io.asynctiff;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.micromanager.data.internal.io.AppendCursor;
+import org.micromanager.data.internal.io.UnbufferedPosition;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TiffImageRecordTest {
+   private Path tmpFile_;
+
+   @BeforeEach
+   public void init() throws IOException {
+      tmpFile_ = Files.createTempFile(getClass().getSimpleName(), ".tif");
+   }
+
+   @AfterEach
+   public void tearDown() throws IOException {
+      Files.deleteIfExists(tmpFile_);
+   }
+
+   // 8-bit image of the given width and height, in two strips
+   private static TiffImageRecord createRecord(ByteOrder order, int width,
+                                               int height, ByteBuffer pixels) {
+      TiffOffsetFieldGroup fieldGroup = TiffOffsetFieldGroup.create();
+      int stripHeight = height / 2;
+      TiffIFD ifd = TiffIFD.builder(order,
+         TiffOffsetField.forOffsetValue(UnbufferedPosition.at(0), "NextIFDOffset"),
+         fieldGroup).
+         entry(TiffTag.Known.ImageWidth.get(), TiffValue.Longs.create(width)).
+         entry(TiffTag.Known.ImageLength.get(), TiffValue.Longs.create(height)).
+         entry(TiffTag.Known.BitsPerSample.get(), TiffValue.Shorts.create((short) 8)).
+         entry(TiffTag.Known.StripOffsets.get(),
+            TiffValue.Offsets.create(2, "StripOffsets", fieldGroup)).
+         entry(TiffTag.Known.RowsPerStrip.get(), TiffValue.Longs.create(stripHeight)).
+         entry(TiffTag.Known.StripByteCounts.get(), TiffValue.Longs.create(
+            new int[] { width * stripHeight, width * stripHeight })).
+         entry(TiffTag.Known.XResolution.get(), TiffValue.Rationals.create(1, 4)).
+         entry(TiffTag.Known.Software.get(), TiffValue.Ascii.createUtf8("hello")).
+         build();
+      return TiffImageRecord.create(ifd, fieldGroup, pixels);
+   }
+
+   private static ByteBuffer createPixels(int size) {
+      ByteBuffer pixels = ByteBuffer.allocate(size);
+      for (int i = 0; i < size; ++i) {
+         pixels.put((byte) (i * 7));
+      }
+      pixels.rewind();
+      return pixels;
+   }
+
+   @Test
+   public void testSerializeExactSize() {
+      ByteBuffer pixels = createPixels(32);
+      TiffImageRecord record = createRecord(ByteOrder.LITTLE_ENDIAN, 8, 4, pixels);
+      // IFD (2 + 8 * 12 + 4), StripOffsets (8), StripByteCounts (8),
+      // XResolution (8), Software (6, padded)
+      assertEquals(136, record.getPixelsOffset());
+      assertEquals(168, record.getSize());
+
+      ByteBuffer dest = ByteBuffer.allocate(200);
+      dest.position(4);
+      record.serialize(dest, 1000);
+      assertEquals(172, dest.position());
+      assertEquals(0, pixels.position());
+
+      dest.order(ByteOrder.LITTLE_ENDIAN);
+      // StripOffsets value is the first out-of-line value
+      assertEquals(1000 + 104, dest.getInt(4 + 2 + 3 * 12 + 8));
+      assertEquals(1000 + 136, dest.getInt(4 + 104));
+      assertEquals(1000 + 152, dest.getInt(4 + 108));
+      dest.limit(172);
+      dest.position(4 + 136);
+      assertEquals(pixels, dest);
+   }
+
+   @ParameterizedTest
+   @ValueSource(ints = { 16, 512 }) // Pixels copied, or written separately
+   public void testWriteAndReadBack(int size) throws Exception {
+      ByteOrder order = ByteOrder.BIG_ENDIAN;
+      ByteBuffer pixels = createPixels(size * size);
+      TiffImageRecord record = createRecord(order, size, size, pixels);
+
+      long recordOffset;
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.WRITE)) {
+         AppendCursor cursor = AppendCursor.at(8);
+         recordOffset = record.write(chan, cursor).toCompletableFuture().get();
+         assertEquals(8, recordOffset);
+         assertEquals(recordOffset + record.getSize(), cursor.getEnd());
+         TiffHeader.createForWrite(order, TiffOffsetField.forOffsetValue(
+            UnbufferedPosition.at(recordOffset), "FirstIFDOffset")).
+            write(chan).toCompletableFuture().get();
+      }
+
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.READ)) {
+         assertEquals(recordOffset + record.getSize(), chan.size());
+         TiffIFD ifd = TiffHeader.read(chan).
+            thenCompose(h -> h.readFirstIFD(chan)).
+            toCompletableFuture().get();
+         Map<TiffIFDEntry, TiffValue> values = ifd.readValues(chan).
+            toCompletableFuture().get();
+         assertEquals(0.25, values.get(ifd.getRequiredEntryWithTag(
+            TiffTag.Known.XResolution.get())).doubleValue(0));
+         assertEquals("hello", values.get(ifd.getRequiredEntryWithTag(
+            TiffTag.Known.Software.get())).utf8Value());
+         ByteBuffer readBack = ifd.readPixels(chan).toCompletableFuture().get();
+         assertEquals(pixels, readBack);
+      }
+   }
+}
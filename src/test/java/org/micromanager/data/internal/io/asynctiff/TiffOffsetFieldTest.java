@@ -15,6 +15,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -315,4 +316,49 @@ public class TiffOffsetFieldTest {
       b.get(data);
       assertArrayEquals(POINTEE_DATA, data);
    }
+
+   @Test
+   public void testUpdateAllCoalesced() throws Exception {
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(file_,
+         StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+         TiffOffsetFieldGroup fieldGroup = TiffOffsetFieldGroup.create();
+         // A contiguous array at 100, plus two fields separated by a gap
+         long[] positions = { 108, 100, 104, 112, 200, 210 };
+         for (int i = 0; i < positions.length; ++i) {
+            TiffOffsetField field = TiffOffsetField.atPosition(
+               UnbufferedPosition.at(positions[i]), "test " + i);
+            field.setOffsetValue(UnbufferedPosition.at(1000 + i));
+            fieldGroup.add(field);
+         }
+
+         fieldGroup.updateAll(chan, ByteOrder.LITTLE_ENDIAN, 8).
+            toCompletableFuture().get();
+      }
+
+      ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(file_)).
+         order(ByteOrder.LITTLE_ENDIAN);
+      assertEquals(1001, b.getInt(100));
+      assertEquals(1002, b.getInt(104));
+      assertEquals(1000, b.getInt(108));
+      assertEquals(1003, b.getInt(112));
+      assertEquals(1004, b.getInt(200));
+      assertEquals(1005, b.getInt(210));
+      // The gap was preserved
+      for (int i = 204; i < 210; ++i) {
+         assertEquals(FILE_BACKGROUND, b.get(i));
+      }
+      assertEquals(FILE_BACKGROUND, b.get(116));
+   }
+
+   @Test
+   public void testUpdateAllIncompleteField() throws Exception {
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(file_,
+         StandardOpenOption.WRITE)) {
+         TiffOffsetFieldGroup fieldGroup = TiffOffsetFieldGroup.create();
+         fieldGroup.add(TiffOffsetField.atPosition(UnbufferedPosition.at(0), "test"));
+         assertThrows(ExecutionException.class,
+            () -> fieldGroup.updateAll(chan, ByteOrder.BIG_ENDIAN).
+               toCompletableFuture().get());
+      }
+   }
 }
@@ -0,0 +1,141 @@
+package org.micromanager.data.internal.io.asynctiff;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.micromanager.data.internal.io.Alignment;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.micromanager.data.internal.io.asynctiff.TiffStackWriterTest.createTemplate;
+import static org.micromanager.data.internal.io.asynctiff.TiffStackWriterTest.description;
+import static org.micromanager.data.internal.io.asynctiff.TiffStackWriterTest.readDescriptions;
+
+public class TiffRolloverWriterTest {
+   private Path tmpDir_;
+
+   @BeforeEach
+   public void init() throws IOException {
+      tmpDir_ = Files.createTempDirectory(getClass().getSimpleName());
+   }
+
+   @AfterEach
+   public void tearDown() throws IOException {
+      try (Stream<Path> files = Files.walk(tmpDir_)) {
+         files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+      }
+   }
+
+   private Path fileName(int index) {
+      return tmpDir_.resolve("stack_" + index + ".tif");
+   }
+
+   @Test
+   public void testRollOver() throws Exception {
+      TiffIFDTemplate template = createTemplate(16, 16);
+      int recordSize = template.getRecordSize(description(0).remaining());
+      // Room for 3 frames per file
+      long maxFileSize = 8 + 3 * Alignment.align((long) recordSize, 4);
+      TiffRolloverWriter writer = TiffRolloverWriter.builder(this::fileName, template).
+         maxFileSize(maxFileSize).preopenMargin(maxFileSize).open();
+      List<CompletableFuture<TiffRolloverWriter.Location>> locations = new ArrayList<>();
+      ByteBuffer pixels = ByteBuffer.allocate(16 * 16);
+      for (int f = 0; f < 7; ++f) {
+         for (int i = 0; i < pixels.capacity(); ++i) {
+            pixels.put(i, (byte) f);
+         }
+         locations.add(writer.submit(description(f), pixels).toCompletableFuture());
+      }
+      assertEquals(2, writer.getFileIndex());
+      writer.finish().toCompletableFuture().get();
+      assertThrows(IllegalStateException.class, writer::finish);
+
+      for (int f = 0; f < 7; ++f) {
+         TiffRolloverWriter.Location loc = locations.get(f).get();
+         assertEquals(f / 3, loc.getFileIndex());
+         assertEquals(fileName(f / 3), loc.getFile());
+         assertTrue(loc.getOffset() + recordSize <= maxFileSize);
+      }
+      assertEquals(3, readDescriptions(fileName(0)).size());
+      assertEquals(3, readDescriptions(fileName(1)).size());
+      List<String> last = readDescriptions(fileName(2));
+      assertEquals(1, last.size());
+      assertEquals("frame 6", last.get(0));
+      // The file opened ahead for index 3 is removed
+      assertFalse(Files.exists(fileName(3)));
+   }
+
+   @Test
+   public void testNoVariableEntry() throws Exception {
+      TiffIFDTemplate template = TiffIFDTemplate.builder(ByteOrder.LITTLE_ENDIAN).
+         entry(TiffTag.Known.ImageWidth.get(), TiffValue.Longs.create(16)).
+         entry(TiffTag.Known.ImageLength.get(), TiffValue.Longs.create(16)).
+         entry(TiffTag.Known.BitsPerSample.get(), TiffValue.Shorts.create((short) 8)).
+         entry(TiffTag.Known.RowsPerStrip.get(), TiffValue.Longs.create(16)).
+         stripByteCounts(16 * 16).
+         build();
+      long recordSize = Alignment.align((long) template.getRecordSize(0), 4);
+      TiffRolloverWriter writer = TiffRolloverWriter.builder(this::fileName, template).
+         maxFileSize(8 + 2 * recordSize).open();
+      List<CompletableFuture<TiffRolloverWriter.Location>> locations = new ArrayList<>();
+      for (int f = 0; f < 3; ++f) {
+         locations.add(writer.submit(null, ByteBuffer.allocate(16 * 16)).
+            toCompletableFuture());
+      }
+      writer.finish().toCompletableFuture().get();
+      assertEquals(0, locations.get(1).get().getFileIndex());
+      assertEquals(1, locations.get(2).get().getFileIndex());
+   }
+
+   @Test
+   public void testFrameTooLarge() throws Exception {
+      TiffIFDTemplate template = createTemplate(16, 16);
+      TiffRolloverWriter writer = TiffRolloverWriter.builder(this::fileName, template).
+         maxFileSize(8 + template.getRecordSize(8)).open();
+      CompletableFuture<TiffRolloverWriter.Location> tooLong = writer.submit(
+         ByteBuffer.allocate(100), ByteBuffer.allocate(16 * 16)).
+         toCompletableFuture();
+      assertTrue(tooLong.isCompletedExceptionally());
+      writer.submit(description(0), ByteBuffer.allocate(16 * 16));
+      writer.finish().toCompletableFuture().get();
+      assertEquals(1, readDescriptions(fileName(0)).size());
+   }
+
+   @Test
+   public void testClassicFileSizeLimit() throws Exception {
+      TiffIFDTemplate template = createTemplate(16, 16);
+      assertThrows(IllegalArgumentException.class, () ->
+         TiffRolloverWriter.builder(this::fileName, template).
+            maxFileSize(1L << 32).open());
+      TiffRolloverWriter.builder(this::fileName, template).
+         maxFileSize((1L << 32) - 4).open().finish().toCompletableFuture().get();
+   }
+
+   @Test
+   public void testFailedUnusedPreopenIgnored() throws Exception {
+      TiffIFDTemplate template = createTemplate(16, 16);
+      long recordSize = Alignment.align((long) template.getRecordSize(
+         description(0).remaining()), 4);
+      long maxFileSize = 8 + 2 * recordSize;
+      // The next file cannot be created
+      TiffRolloverWriter writer = TiffRolloverWriter.builder(
+         i -> i == 0 ? fileName(i) : tmpDir_.resolve("missing").resolve("next.tif"),
+         template).maxFileSize(maxFileSize).preopenMargin(maxFileSize).open();
+      CompletableFuture<TiffRolloverWriter.Location> location =
+         writer.submit(description(0), ByteBuffer.allocate(16 * 16)).
+            toCompletableFuture();
+      writer.finish().toCompletableFuture().get();
+      assertEquals(0, location.get().getFileIndex());
+      assertEquals(1, readDescriptions(fileName(0)).size());
+   }
+}
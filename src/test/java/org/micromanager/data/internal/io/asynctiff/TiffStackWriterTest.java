@@ -0,0 +1,307 @@
+package org.micromanager.data.internal.io.asynctiff;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.micromanager.data.internal.io.Preallocator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TiffStackWriterTest {
+   private Path tmpFile_;
+
+   @BeforeEach
+   public void init() throws IOException {
+      tmpFile_ = Files.createTempFile(getClass().getSimpleName(), ".tif");
+   }
+
+   @AfterEach
+   public void tearDown() throws IOException {
+      Files.deleteIfExists(tmpFile_);
+   }
+
+   static TiffIFDTemplate createTemplate(int width, int height) {
+      return TiffIFDTemplate.builder(ByteOrder.LITTLE_ENDIAN).
+         entry(TiffTag.Known.ImageWidth.get(), TiffValue.Longs.create(width)).
+         entry(TiffTag.Known.ImageLength.get(), TiffValue.Longs.create(height)).
+         entry(TiffTag.Known.BitsPerSample.get(), TiffValue.Shorts.create((short) 8)).
+         entry(TiffTag.Known.RowsPerStrip.get(), TiffValue.Longs.create(height)).
+         stripByteCounts(width * height).
+         variableAsciiEntry(TiffTag.Known.ImageDescription.get()).
+         build();
+   }
+
+   static ByteBuffer description(int frame) {
+      return ByteBuffer.wrap(("frame " + frame).getBytes(StandardCharsets.UTF_8));
+   }
+
+   // Read back the chain, checking that frame i has pixels filled with i
+   static List<String> readDescriptions(Path file) throws Exception {
+      List<String> descriptions = new ArrayList<>();
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(file,
+         StandardOpenOption.READ)) {
+         TiffHeader header = TiffHeader.read(chan).toCompletableFuture().get();
+         if (header.getFirstIFDOffset() == 0) {
+            return descriptions;
+         }
+         header.forEachIFD(chan, (offset, ifd) ->
+            ifd.getEntryWithTag(TiffTag.Known.ImageDescription.get()).
+               readValue(chan).
+               thenCombine(ifd.readPixels(chan), (d, pixels) -> {
+                  String description = d.utf8Value();
+                  byte expected = (byte) Integer.parseInt(description.substring(6));
+                  for (int i = 0; i < pixels.remaining(); ++i) {
+                     assertEquals(expected, pixels.get(i));
+                  }
+                  descriptions.add(description);
+                  return null;
+               })).
+            toCompletableFuture().get();
+      }
+      return descriptions;
+   }
+
+   @Test
+   public void testWriteWithSmallBudget() throws Exception {
+      TiffIFDTemplate template = createTemplate(64, 64);
+      int frameCount = 50;
+      List<CompletableFuture<Long>> writes = new ArrayList<>();
+      ByteBuffer pixels = ByteBuffer.allocate(64 * 64);
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.WRITE)) {
+         // Budget for about two frames at a time
+         TiffStackWriter writer = TiffStackWriter.create(chan, template,
+            TiffWriteOptions.builder().
+               maxInFlightBytes(2 * template.getRecordSize(8)).build());
+         for (int f = 0; f < frameCount; ++f) {
+            for (int i = 0; i < pixels.capacity(); ++i) {
+               pixels.put(i, (byte) f);
+            }
+            writes.add(writer.submit(description(f), pixels).toCompletableFuture());
+            assertTrue(writer.getInFlightBytes() <= 2 * template.getRecordSize(8));
+         }
+         writer.finish().toCompletableFuture().get();
+         assertEquals(frameCount, writer.getFrameCount());
+         assertEquals(0, writer.getInFlightBytes());
+         assertEquals(writer.getEnd(), chan.size());
+         assertThrows(IllegalStateException.class, writer::finish);
+      }
+      for (int f = 1; f < frameCount; ++f) {
+         assertTrue(writes.get(f).get() > writes.get(f - 1).get());
+      }
+
+      List<String> descriptions = readDescriptions(tmpFile_);
+      assertEquals(frameCount, descriptions.size());
+      for (int f = 0; f < frameCount; ++f) {
+         assertEquals("frame " + f, descriptions.get(f));
+      }
+   }
+
+   @Test
+   public void testConcurrentSequencedSubmit() throws Exception {
+      TiffIFDTemplate template = createTemplate(32, 32);
+      int threadCount = 4;
+      int framesPerThread = 25;
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.WRITE)) {
+         TiffStackWriter writer = TiffStackWriter.create(chan, template,
+            TiffWriteOptions.builder().
+               maxInFlightBytes(3 * template.getRecordSize(8)).build());
+         ExecutorService producers = Executors.newFixedThreadPool(threadCount);
+         List<Future<?>> done = new ArrayList<>();
+         for (int t = 0; t < threadCount; ++t) {
+            int thread = t;
+            done.add(producers.submit(() -> {
+               // Each thread submits every threadCount-th frame, in order
+               ByteBuffer pixels = ByteBuffer.allocate(32 * 32);
+               for (int i = 0; i < framesPerThread; ++i) {
+                  int f = i * threadCount + thread;
+                  for (int j = 0; j < pixels.capacity(); ++j) {
+                     pixels.put(j, (byte) f);
+                  }
+                  writer.submit(f, description(f), pixels);
+                  Thread.yield();
+               }
+               return null;
+            }));
+         }
+         for (Future<?> f : done) {
+            f.get();
+         }
+         producers.shutdown();
+         writer.finish().toCompletableFuture().get();
+         assertEquals(threadCount * framesPerThread, writer.getFrameCount());
+      }
+
+      List<String> descriptions = readDescriptions(tmpFile_);
+      assertEquals(threadCount * framesPerThread, descriptions.size());
+      for (int f = 0; f < descriptions.size(); ++f) {
+         assertEquals("frame " + f, descriptions.get(f));
+      }
+   }
+
+   @Test
+   public void testMissingSequenceNumber() throws Exception {
+      TiffIFDTemplate template = createTemplate(4, 4);
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.WRITE)) {
+         TiffStackWriter writer = TiffStackWriter.create(chan, template);
+         ByteBuffer pixels = ByteBuffer.allocate(16);
+         CompletableFuture<Long> first = writer.submit(0, description(0), pixels).
+            toCompletableFuture();
+         CompletableFuture<Long> third = writer.submit(2, description(2), pixels).
+            toCompletableFuture();
+         assertEquals(8, (long) first.get());
+         assertFalse(third.isDone());
+         writer.finish().toCompletableFuture().get();
+         ExecutionException e = assertThrows(ExecutionException.class, third::get);
+         assertTrue(e.getCause() instanceof IllegalStateException);
+      }
+      assertEquals(1, readDescriptions(tmpFile_).size());
+   }
+
+   @Test
+   public void testWriteDirect() throws Exception {
+      TiffIFDTemplate template = createTemplate(100, 10);
+      ByteBuffer pixels = ByteBuffer.allocate(100 * 10);
+      TiffStackWriter writer;
+      try {
+         writer = TiffStackWriter.open(tmpFile_, template,
+            TiffWriteOptions.builder().maxInFlightBytes(1 << 20).
+               directIO(true).build());
+      }
+      catch (IOException e) {
+         Assumptions.assumeTrue(false, "File system does not support direct I/O");
+         return;
+      }
+      for (int f = 0; f < 30; ++f) {
+         for (int i = 0; i < pixels.capacity(); ++i) {
+            pixels.put(i, (byte) f);
+         }
+         writer.submit(description(f), pixels);
+      }
+      writer.finish().toCompletableFuture().get();
+      assertEquals(writer.getEnd(), Files.size(tmpFile_));
+
+      List<String> descriptions = readDescriptions(tmpFile_);
+      assertEquals(30, descriptions.size());
+      assertEquals("frame 29", descriptions.get(29));
+   }
+
+   // More data than the staging chunks hold, so that placement must wait
+   // for chunk writes
+   @Test
+   public void testWriteDirectLargeFrames() throws Exception {
+      int width = 1024;
+      int height = 1024;
+      TiffIFDTemplate template = createTemplate(width, height);
+      ByteBuffer pixels = ByteBuffer.allocate(width * height);
+      TiffStackWriter writer;
+      try {
+         writer = TiffStackWriter.open(tmpFile_, template,
+            TiffWriteOptions.builder().maxInFlightBytes(8 << 20).
+               directIO(true).build());
+      }
+      catch (IOException e) {
+         Assumptions.assumeTrue(false, "File system does not support direct I/O");
+         return;
+      }
+      List<CompletableFuture<Long>> offsets = new ArrayList<>();
+      for (int f = 0; f < 40; ++f) {
+         Arrays.fill(pixels.array(), (byte) f);
+         offsets.add(writer.submit(description(f), pixels).toCompletableFuture());
+      }
+      // Earlier frames complete as their chunks are written
+      offsets.get(0).get();
+      writer.finish().toCompletableFuture().get();
+      assertEquals(writer.getEnd(), Files.size(tmpFile_));
+
+      List<String> descriptions = readDescriptions(tmpFile_);
+      assertEquals(40, descriptions.size());
+      assertEquals("frame 39", descriptions.get(39));
+      for (CompletableFuture<Long> o : offsets) {
+         assertTrue(o.isDone());
+      }
+   }
+
+   // Bit 0: zero-fill (else extend); bit 1: direct I/O
+   @ParameterizedTest
+   @ValueSource(ints = { 0, 1, 2, 3 })
+   public void testWritePreallocated(int variant) throws Exception {
+      Preallocator.Mode mode = (variant & 1) != 0 ?
+         Preallocator.Mode.ZERO_FILL : Preallocator.Mode.EXTEND;
+      TiffIFDTemplate template = createTemplate(100, 10);
+      ByteBuffer pixels = ByteBuffer.allocate(100 * 10);
+      TiffStackWriter writer;
+      try {
+         writer = TiffStackWriter.open(tmpFile_, template,
+            TiffWriteOptions.builder().directIO((variant & 2) != 0).
+               preallocation(mode, 8192).build());
+      }
+      catch (IOException e) {
+         Assumptions.assumeTrue(false, "File system does not support direct I/O");
+         return;
+      }
+      for (int f = 0; f < 30; ++f) {
+         for (int i = 0; i < pixels.capacity(); ++i) {
+            pixels.put(i, (byte) f);
+         }
+         writer.submit(description(f), pixels);
+      }
+      writer.finish().toCompletableFuture().get();
+      assertEquals(writer.getEnd(), Files.size(tmpFile_));
+
+      List<String> descriptions = readDescriptions(tmpFile_);
+      assertEquals(30, descriptions.size());
+      assertEquals("frame 29", descriptions.get(29));
+   }
+
+   @Test
+   public void testHeaderReserve() throws Exception {
+      TiffIFDTemplate template = createTemplate(4, 4);
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.WRITE)) {
+         TiffStackWriter writer = TiffStackWriter.create(chan, template,
+            TiffWriteOptions.builder().headerReserve(30).build());
+         CompletableFuture<Long> first = writer.submit(description(0),
+            ByteBuffer.allocate(16)).toCompletableFuture();
+         writer.finish().toCompletableFuture().get();
+         assertEquals(40, (long) first.get());
+      }
+      assertEquals(1, readDescriptions(tmpFile_).size());
+   }
+
+   @Test
+   public void testEmptyStack() throws Exception {
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.WRITE)) {
+         TiffStackWriter writer = TiffStackWriter.create(chan, createTemplate(4, 4));
+         writer.finish().toCompletableFuture().get();
+         CompletableFuture<Long> late = writer.submit(description(0),
+            ByteBuffer.allocate(16)).toCompletableFuture();
+         ExecutionException e = assertThrows(ExecutionException.class, late::get);
+         assertTrue(e.getCause() instanceof IllegalStateException);
+      }
+      assertTrue(readDescriptions(tmpFile_).isEmpty());
+   }
+}
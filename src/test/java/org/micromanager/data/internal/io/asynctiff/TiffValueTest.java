@@ -192,6 +192,33 @@ public class TiffValueTest {
       assertEquals(-1, v.intValue(3));
    }
 
+   @ParameterizedTest
+   @ValueSource(ints = { 0, 1 })
+   public void testReadLong8s(int o) throws EOFException {
+      ByteOrder order = o != 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+      ByteBuffer b = ByteBuffer.allocate(24).order(order);
+      b.asLongBuffer().put(new long[] {
+         0L,
+         0x100000000L,
+         Long.MAX_VALUE,
+      });
+
+      b.rewind();
+      TiffValue v = TiffValue.read(TiffFieldType.LONG8, 3, b);
+      assertEquals(TiffFieldType.LONG8, v.getTiffType());
+      assertEquals(3, v.getCount());
+      assertEquals(24, b.position());
+
+      assertEquals(0L, v.longValue(0));
+      assertEquals(0x100000000L, v.longValue(1));
+      assertEquals(Long.MAX_VALUE, v.longValue(2));
+
+      b.rewind();
+      v = TiffValue.read(TiffFieldType.IFD8, 3, b);
+      assertEquals(TiffFieldType.IFD8, v.getTiffType());
+      assertEquals(0x100000000L, v.longValue(1));
+   }
+
    @Test
    public void testReadRationals() throws EOFException {
       ByteBuffer b = ByteBuffer.allocate(8);
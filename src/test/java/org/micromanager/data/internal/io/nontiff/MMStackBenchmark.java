@@ -0,0 +1,354 @@
+package org.micromanager.data.internal.io.nontiff;
+
+import org.micromanager.data.internal.io.BufferPool;
+import org.micromanager.data.internal.io.Preallocator;
+import org.micromanager.data.internal.io.asynctiff.TiffIFDTemplate;
+import org.micromanager.data.internal.io.asynctiff.TiffRolloverWriter;
+import org.micromanager.data.internal.io.asynctiff.TiffTag;
+import org.micromanager.data.internal.io.asynctiff.TiffValue;
+import org.micromanager.data.internal.io.asynctiff.TiffWriteOptions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+/**
+ * Measures end-to-end throughput of writing and reading back a synthetic
+ * Micro-Manager-style dataset.
+ *
+ * The dataset is a time series of 16-bit planes in several channels,
+ * written with a {@link TiffRolloverWriter} into files of bounded size,
+ * each with per-plane MicroManagerMetadata, summary metadata and an index
+ * map. The benchmark reports write throughput; the time to open the dataset
+ * (read the header, index map and summary metadata of every file), cold and
+ * then warm; and the latency of {@code readPixels} for planes read in order
+ * and in random order.
+ *
+ * "Cold" means only that the files have not been opened by this process:
+ * the page cache is dropped first if {@code /proc/sys/vm/drop_caches} is
+ * writable (which requires root), and is otherwise likely to hold the data
+ * just written.
+ *
+ * Run with:
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.micromanager.data.internal.io.nontiff.MMStackBenchmark}
+ *
+ * Settings are taken from system properties (given as {@code -D} options
+ * on the same command line):
+ * {@code mmbench.dir} (default: a new temporary directory),
+ * {@code mmbench.totalMiB} (2048), {@code mmbench.width} (2048),
+ * {@code mmbench.height} (2048), {@code mmbench.channels} (2),
+ * {@code mmbench.maxFileMB} (4000), {@code mmbench.directIO} (false),
+ * {@code mmbench.preallocate} (false), {@code mmbench.randomReads} (200),
+ * {@code mmbench.keep} (false; keep the files).
+ */
+public class MMStackBenchmark {
+   private static final int INDEX_MAP_POINTER_MAGIC = 0x0343C790;
+   private static final int INDEX_MAP_MAGIC = 0x0034b2b7;
+   private static final int SUMMARY_METADATA_MAGIC = 0x0023F124;
+   private static final int HEADER_SIZE = 8; // Classic TIFF
+   private static final int SUMMARY_METADATA_OFFSET = 32;
+   private static final int WARM_OPEN_ROUNDS = 5;
+   private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+   private final int width_ = Integer.getInteger("mmbench.width", 2048);
+   private final int height_ = Integer.getInteger("mmbench.height", 2048);
+   private final int channels_ = Integer.getInteger("mmbench.channels", 2);
+   private final int planeBytes_ = width_ * height_ * 2;
+   private final int planeCount_ = Math.max(1, (int)
+      ((Long.getLong("mmbench.totalMiB", 2048) << 20) / planeBytes_));
+   private final long maxFileSize_ =
+      Long.getLong("mmbench.maxFileMB", 4000) * 1_000_000;
+   private final boolean directIO_ = Boolean.getBoolean("mmbench.directIO");
+   private final boolean preallocate_ = Boolean.getBoolean("mmbench.preallocate");
+   private final int randomReads_ = Integer.getInteger("mmbench.randomReads", 200);
+
+   private final Path dir_;
+   private final List<Path> files_ = new ArrayList<>();
+   private final List<List<int[]>> indexMaps_ = new ArrayList<>();
+
+   public static void main(String[] args) throws Exception {
+      String dir = System.getProperty("mmbench.dir");
+      Path path = dir != null ? Files.createDirectories(Paths.get(dir)) :
+         Files.createTempDirectory("MMStackBenchmark");
+      MMStackBenchmark benchmark = new MMStackBenchmark(path);
+      try {
+         benchmark.run();
+      }
+      finally {
+         if (!Boolean.getBoolean("mmbench.keep")) {
+            benchmark.deleteFiles();
+         }
+      }
+   }
+
+   private MMStackBenchmark(Path dir) {
+      dir_ = dir;
+   }
+
+   private void run() throws Exception {
+      System.out.println(String.format(
+         "%d planes of %dx%d 16-bit in %d channels (%.1f MiB) in %s",
+         planeCount_, width_, height_, channels_,
+         (double) planeCount_ * planeBytes_ / (1 << 20), dir_));
+      write();
+      System.out.println(String.format("%d file(s); page cache %s",
+         files_.size(), dropPageCache() ? "dropped" : "not dropped"));
+      long cold = open(null);
+      long[] warm = new long[WARM_OPEN_ROUNDS];
+      for (int i = 0; i < warm.length; ++i) {
+         warm[i] = open(null);
+      }
+      Arrays.sort(warm);
+      System.out.println(String.format("Open: cold %.2f ms, warm median %.2f ms",
+         cold / 1e6, warm[warm.length / 2] / 1e6));
+
+      List<OpenFile> open = new ArrayList<>();
+      open(open);
+      try {
+         List<int[]> planes = new ArrayList<>(); // { file, plane }
+         for (int f = 0; f < open.size(); ++f) {
+            for (int p = 0; p < open.get(f).index.getPlaneCount(); ++p) {
+               planes.add(new int[] { f, p });
+            }
+         }
+         report("Sequential readPixels", readPixels(open, planes));
+         Collections.shuffle(planes, new Random(0));
+         report("Random readPixels", readPixels(open,
+            planes.subList(0, Math.min(randomReads_, planes.size()))));
+      }
+      finally {
+         for (OpenFile f : open) {
+            f.chan.close();
+         }
+      }
+   }
+
+   //
+   //
+   //
+
+   private void write() throws Exception {
+      byte[] summary = String.format("{\"Prefix\":\"bench\",\"Width\":%d," +
+            "\"Height\":%d,\"Channels\":%d,\"Frames\":%d,\"Slices\":1," +
+            "\"Positions\":1,\"PixelType\":\"GRAY16\",\"BitDepth\":16," +
+            "\"MicroManagerVersion\":\"benchmark\"}",
+         width_, height_, channels_, (planeCount_ + channels_ - 1) / channels_).
+         getBytes(StandardCharsets.UTF_8);
+      TiffIFDTemplate template = TiffIFDTemplate.builder(ORDER).
+         entry(TiffTag.Known.ImageWidth.get(), TiffValue.Longs.create(width_)).
+         entry(TiffTag.Known.ImageLength.get(), TiffValue.Longs.create(height_)).
+         entry(TiffTag.Known.BitsPerSample.get(), TiffValue.Shorts.create((short) 16)).
+         entry(TiffTag.Known.RowsPerStrip.get(), TiffValue.Longs.create(height_)).
+         stripByteCounts(planeBytes_).
+         variableAsciiEntry(TiffTag.Known.MicroManagerMetadata.get()).
+         build();
+      TiffWriteOptions.Builder options = TiffWriteOptions.builder().
+         directIO(directIO_).
+         headerReserve(headerReserve(summary));
+      if (preallocate_) {
+         options.preallocation(Preallocator.Mode.EXTEND, 64 << 20);
+      }
+
+      ByteBuffer pixels = ByteBuffer.allocateDirect(planeBytes_).order(ORDER);
+      Random random = new Random(0);
+      while (pixels.hasRemaining()) {
+         pixels.putShort((short) random.nextInt(4096));
+      }
+      List<CompletableFuture<TiffRolloverWriter.Location>> locations =
+         new ArrayList<>();
+      long start = System.nanoTime();
+      TiffRolloverWriter writer = TiffRolloverWriter.builder(this::fileName,
+         template).maxFileSize(maxFileSize_).writeOptions(options.build()).open();
+      for (int i = 0; i < planeCount_; ++i) {
+         pixels.putShort(0, (short) i);
+         pixels.rewind();
+         locations.add(writer.submit(ByteBuffer.wrap(planeMetadata(i)), pixels).
+            toCompletableFuture());
+      }
+      writer.finish().toCompletableFuture().get();
+      long elapsed = System.nanoTime() - start;
+      System.out.println(String.format("Write: %.1f MB/s, %.1f frames/s",
+         (double) planeCount_ * planeBytes_ / elapsed * 1e3,
+         planeCount_ / (elapsed / 1e9)));
+
+      for (int i = 0; i < planeCount_; ++i) {
+         TiffRolloverWriter.Location loc = locations.get(i).get();
+         while (files_.size() <= loc.getFileIndex()) {
+            files_.add(fileName(files_.size()));
+            indexMaps_.add(new ArrayList<>());
+         }
+         indexMaps_.get(loc.getFileIndex()).add(new int[] {
+            i % channels_, 0, i / channels_, 0, (int) loc.getOffset() });
+      }
+      for (int f = 0; f < files_.size(); ++f) {
+         writeMMBlocks(files_.get(f), summary, indexMaps_.get(f));
+      }
+   }
+
+   private Path fileName(int index) {
+      return dir_.resolve(index == 0 ? "bench_MMStack.ome.tif" :
+         "bench_MMStack_" + index + ".ome.tif");
+   }
+
+   private byte[] planeMetadata(int plane) {
+      return String.format("{\"ChannelIndex\":%d,\"SliceIndex\":0," +
+            "\"FrameIndex\":%d,\"PositionIndex\":0,\"ElapsedTime-ms\":%.3f," +
+            "\"Camera\":\"Synthetic\",\"Exposure-ms\":10.0,\"Binning\":\"1\"," +
+            "\"PixelSizeUm\":0.1,\"XPositionUm\":0.0,\"YPositionUm\":0.0," +
+            "\"ZPositionUm\":0.0,\"ImageNumber\":\"%d\"}",
+         plane % channels_, plane / channels_, plane * 10.0, plane).
+         getBytes(StandardCharsets.UTF_8);
+   }
+
+   // The bytes following the TIFF header up to the end of the summary
+   // metadata block (its magic, length and content)
+   private static int headerReserve(byte[] summary) {
+      return SUMMARY_METADATA_OFFSET + 8 + summary.length - HEADER_SIZE;
+   }
+
+   // Write the summary metadata into the header reserve, and append the
+   // index map
+   private static void writeMMBlocks(Path file, byte[] summary,
+                                     List<int[]> indexMap) throws IOException {
+      try (FileChannel chan = FileChannel.open(file, StandardOpenOption.WRITE)) {
+         long indexMapOffset = (chan.size() + 3) & ~3L;
+         ByteBuffer head = ByteBuffer.allocate(headerReserve(summary)).
+            order(ORDER);
+         head.putInt(INDEX_MAP_POINTER_MAGIC).putInt((int) indexMapOffset);
+         head.position(SUMMARY_METADATA_OFFSET - HEADER_SIZE);
+         head.putInt(SUMMARY_METADATA_MAGIC).putInt(summary.length).put(summary);
+         head.flip();
+         chan.write(head, HEADER_SIZE);
+
+         ByteBuffer map = ByteBuffer.allocate(8 + 20 * indexMap.size()).
+            order(ORDER);
+         map.putInt(INDEX_MAP_MAGIC).putInt(indexMap.size());
+         for (int[] entry : indexMap) {
+            for (int v : entry) {
+               map.putInt(v);
+            }
+         }
+         map.flip();
+         chan.write(map, indexMapOffset);
+      }
+   }
+
+   //
+   //
+   //
+
+   private static final class OpenFile {
+      final AsynchronousFileChannel chan;
+      final MMTiffIFDIndex index;
+
+      OpenFile(AsynchronousFileChannel chan, MMTiffIFDIndex index) {
+         this.chan = chan;
+         this.index = index;
+      }
+   }
+
+   // Open every file, reading its index and summary metadata; keep them
+   // open if a list is given
+   private long open(List<OpenFile> keep) throws Exception {
+      long start = System.nanoTime();
+      for (Path file : files_) {
+         AsynchronousFileChannel chan = AsynchronousFileChannel.open(file,
+            StandardOpenOption.READ);
+         MMTiffIFDIndex index = MMTiffIFDIndex.build(chan).toCompletableFuture().get();
+         if (!index.hasPlaneCoordinates()) {
+            throw new IOException("Index map not usable in " + file);
+         }
+         LowLevelMMTiffReader.create(ORDER).readRawSummaryMetadata(chan).
+            toCompletableFuture().get();
+         if (keep != null) {
+            keep.add(new OpenFile(chan, index));
+         }
+         else {
+            chan.close();
+         }
+      }
+      return System.nanoTime() - start;
+   }
+
+   private long[] readPixels(List<OpenFile> open, List<int[]> planes)
+      throws Exception {
+      BufferPool pool = BufferPool.getDefault();
+      long[] nanos = new long[planes.size()];
+      for (int i = 0; i < planes.size(); ++i) {
+         OpenFile f = open.get(planes.get(i)[0]);
+         long start = System.nanoTime();
+         ByteBuffer pixels = f.index.readIFD(f.chan, planes.get(i)[1]).
+            thenCompose(ifd -> ifd.readPixels(f.chan)).
+            toCompletableFuture().get();
+         nanos[i] = System.nanoTime() - start;
+         if (pixels.remaining() != planeBytes_) {
+            throw new IOException("Unexpected pixel data size");
+         }
+         pool.release(pixels);
+      }
+      Arrays.sort(nanos);
+      return nanos;
+   }
+
+   private void report(String name, long[] sortedNanos) {
+      long total = 0;
+      for (long n : sortedNanos) {
+         total += n;
+      }
+      System.out.println(String.format(
+         "%s (%d planes): p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms; %.1f MB/s",
+         name, sortedNanos.length,
+         sortedNanos[sortedNanos.length / 2] / 1e6,
+         sortedNanos[sortedNanos.length * 9 / 10] / 1e6,
+         sortedNanos[sortedNanos.length * 99 / 100] / 1e6,
+         sortedNanos[sortedNanos.length - 1] / 1e6,
+         (double) sortedNanos.length * planeBytes_ / total * 1e3));
+   }
+
+   //
+   //
+   //
+
+   private static boolean dropPageCache() {
+      Path control = Paths.get("/proc/sys/vm/drop_caches");
+      if (!Files.isWritable(control)) {
+         return false;
+      }
+      try {
+         new ProcessBuilder("sync").inheritIO().start().waitFor();
+         Files.write(control, "1".getBytes(StandardCharsets.US_ASCII));
+         return true;
+      }
+      catch (IOException | InterruptedException e) {
+         return false;
+      }
+   }
+
+   private void deleteFiles() throws IOException {
+      try (Stream<Path> files = Files.list(dir_)) {
+         for (Path f : (Iterable<Path>) files::iterator) {
+            if (f.getFileName().toString().startsWith("bench_MMStack")) {
+               Files.delete(f);
+            }
+         }
+      }
+      if (System.getProperty("mmbench.dir") == null) {
+         Files.deleteIfExists(dir_);
+      }
+   }
+}
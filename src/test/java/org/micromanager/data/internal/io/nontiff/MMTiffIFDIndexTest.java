@@ -0,0 +1,150 @@
+package org.micromanager.data.internal.io.nontiff;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.micromanager.data.internal.io.asynctiff.TiffIFD;
+import org.micromanager.data.internal.io.asynctiff.TiffTag;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MMTiffIFDIndexTest {
+   private static final int PLANE_COUNT = 6;
+
+   private Path tmpFile_;
+
+   @BeforeEach
+   public void init() throws IOException {
+      tmpFile_ = Files.createTempFile(getClass().getSimpleName(), ".tif");
+   }
+
+   @AfterEach
+   public void tearDown() throws IOException {
+      Files.deleteIfExists(tmpFile_);
+   }
+
+   private void writeFile(boolean withIndexMap, int corruptOffsetOfPlane) throws IOException {
+      writeFile(withIndexMap, corruptOffsetOfPlane, 0);
+   }
+
+   // Write planes with 2 channels and 3 frames (starting at firstFrame),
+   // each IFD holding a single ImageWidth entry whose value identifies the
+   // plane
+   private void writeFile(boolean withIndexMap, int corruptOffsetOfPlane,
+                          int firstFrame) throws IOException {
+      ByteBuffer b = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+      b.put("II".getBytes("US-ASCII")).putShort((short) 42);
+      int firstIFDOffsetFieldOffset = b.position();
+      b.putInt(0);
+      int indexMapPointerOffset = b.position();
+      b.putInt(0).putInt(0);
+      b.position(40);
+
+      int[] ifdOffsets = new int[PLANE_COUNT];
+      int prevNextIFDOffsetFieldOffset = firstIFDOffsetFieldOffset;
+      for (int i = 0; i < PLANE_COUNT; ++i) {
+         ifdOffsets[i] = b.position();
+         b.putInt(prevNextIFDOffsetFieldOffset, ifdOffsets[i]);
+         b.putShort((short) 1);
+         b.putShort((short) 0x0100).putShort((short) 0x0004);
+         b.putInt(1).putInt(100 + i);
+         prevNextIFDOffsetFieldOffset = b.position();
+         b.putInt(0);
+      }
+
+      if (withIndexMap) {
+         b.putInt(indexMapPointerOffset, 0x0343C790);
+         b.putInt(indexMapPointerOffset + 4, b.position());
+         b.putInt(0x0034b2b7).putInt(PLANE_COUNT);
+         for (int i = 0; i < PLANE_COUNT; ++i) {
+            b.putInt(i % 2).putInt(0).putInt(firstFrame + i / 2).putInt(0);
+            b.putInt(i == corruptOffsetOfPlane ? 1023 : ifdOffsets[i]);
+         }
+      }
+
+      b.flip();
+      try (FileChannel chan = FileChannel.open(tmpFile_,
+         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+         chan.write(b);
+      }
+   }
+
+   private static long imageWidth(AsynchronousFileChannel chan, TiffIFD ifd) throws Exception {
+      return ifd.getRequiredEntryWithTag(TiffTag.Known.ImageWidth.get()).
+         readValue(chan).toCompletableFuture().get().longValue(0);
+   }
+
+   @Test
+   public void testIndexMap() throws Exception {
+      writeFile(true, -1);
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.READ)) {
+         MMTiffIFDIndex index = MMTiffIFDIndex.build(chan).toCompletableFuture().get();
+         assertTrue(index.hasPlaneCoordinates());
+         assertEquals(PLANE_COUNT, index.getPlaneCount());
+         assertEquals(-1, index.getIFDOffset(2, 0, 0, 0));
+         assertEquals(-1, index.getIFDOffset(0, 0, 3, 0));
+
+         TiffIFD ifd = index.readIFD(chan, 1, 0, 2, 0).toCompletableFuture().get();
+         assertEquals(105, imageWidth(chan, ifd));
+         ifd = index.readIFD(chan, 0, 0, 1, 0).toCompletableFuture().get();
+         assertEquals(102, imageWidth(chan, ifd));
+
+         assertThrows(ExecutionException.class,
+            () -> index.readIFD(chan, 0, 1, 0, 0).toCompletableFuture().get());
+      }
+   }
+
+   @Test
+   public void testIndexMapWithLargeCoordinates() throws Exception {
+      int firstFrame = 70000;
+      writeFile(true, -1, firstFrame);
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.READ)) {
+         MMTiffIFDIndex index = MMTiffIFDIndex.build(chan).toCompletableFuture().get();
+         assertTrue(index.hasPlaneCoordinates());
+         assertEquals(-1, index.getIFDOffset(1, 0, 2, 0));
+         assertEquals(-1, index.getIFDOffset(1, 0, firstFrame + 2 - 65536, 0));
+         TiffIFD ifd = index.readIFD(chan, 1, 0, firstFrame + 2, 0).
+            toCompletableFuture().get();
+         assertEquals(105, imageWidth(chan, ifd));
+      }
+   }
+
+   @Test
+   public void testFallbackWithoutIndexMap() throws Exception {
+      writeFile(false, -1);
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.READ)) {
+         MMTiffIFDIndex index = MMTiffIFDIndex.build(chan).toCompletableFuture().get();
+         assertFalse(index.hasPlaneCoordinates());
+         assertEquals(PLANE_COUNT, index.getPlaneCount());
+         assertEquals(-1, index.getIFDOffset(0, 0, 0, 0));
+         TiffIFD ifd = index.readIFD(chan, 4).toCompletableFuture().get();
+         assertEquals(104, imageWidth(chan, ifd));
+      }
+   }
+
+   @Test
+   public void testFallbackWithInconsistentIndexMap() throws Exception {
+      writeFile(true, 3);
+      try (AsynchronousFileChannel chan = AsynchronousFileChannel.open(tmpFile_,
+         StandardOpenOption.READ)) {
+         MMTiffIFDIndex index = MMTiffIFDIndex.build(chan).toCompletableFuture().get();
+         assertFalse(index.hasPlaneCoordinates());
+         assertEquals(PLANE_COUNT, index.getPlaneCount());
+         TiffIFD ifd = index.readIFD(chan, 3).toCompletableFuture().get();
+         assertEquals(103, imageWidth(chan, ifd));
+      }
+   }
+}